@@ -0,0 +1,75 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full publish cycles, encoding and shipping every batch to an in-process sender that discards it. A quarter
+ * each of the meters are counters, gauges, timers and distribution summaries with two tags.
+ *
+ * @author ning.chai@foxmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NightingalePublishBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int meters;
+
+    @Param({"none", "gzip"})
+    public String compression;
+
+    @Param({"json", "remote_write"})
+    public String format;
+
+    private NightingaleMeterRegistry registry;
+
+    @Setup
+    public void setup() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.compression", compression);
+        props.put("nightingale.format", format);
+        NightingaleConfig config = props::get;
+        registry = NightingaleMeterRegistry.builder(config)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+
+        for (int i = 0; i < meters; i++) {
+            Tags tags = Tags.of("instance", "i-" + (i % 16), "shard", Integer.toString(i));
+            switch (i % 4) {
+                case 0:
+                    registry.counter("bench.counter", tags).increment(i);
+                    break;
+                case 1:
+                    registry.gauge("bench.gauge", tags, i);
+                    break;
+                case 2:
+                    registry.timer("bench.timer", tags).record(i, TimeUnit.MICROSECONDS);
+                    break;
+                default:
+                    registry.summary("bench.summary", tags).record(i);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        registry.publish();
+    }
+}
@@ -0,0 +1,60 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.ipc.http.HttpSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and starting a registry, as a Spring context does on startup, with the first meters registered. The
+ * endpoint is either configured or left to be looked up from the local host, which only costs DNS in the
+ * background. The registry is closed after every invocation, outside of the measurement.
+ *
+ * @author ning.chai@foxmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NightingaleStartupBenchmark {
+
+    @Param({"configured", "local"})
+    public String endpoint;
+
+    @Param({"json", "remote_write"})
+    public String format;
+
+    private NightingaleConfig config;
+    private NightingaleMeterRegistry registry;
+
+    @Setup
+    public void setup() {
+        Map<String, String> props = new HashMap<>();
+        if ("configured".equals(endpoint)) {
+            props.put("nightingale.endpoint", "127.0.0.1");
+        }
+        props.put("nightingale.url", "http://n9e-transfer.invalid:5810/api/transfer/push");
+        props.put("nightingale.format", format);
+        config = props::get;
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public NightingaleMeterRegistry start() {
+        registry = NightingaleMeterRegistry.builder(config)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+        for (int i = 0; i < 100; i++) {
+            registry.counter("startup.counter", "index", Integer.toString(i));
+        }
+        return registry;
+    }
+}
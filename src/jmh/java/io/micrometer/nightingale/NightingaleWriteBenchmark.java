@@ -0,0 +1,150 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a single meter, normalized per data point, so that {@code -prof gc} reports
+ * {@code gc.alloc.rate.norm} as bytes allocated per point.
+ *
+ * @author ning.chai@foxmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NightingaleWriteBenchmark {
+
+    @Param({"0", "8"})
+    public int tags;
+
+    private NightingaleMeterRegistry registry;
+    private N9eJsonWriter writer;
+    private NightingaleNamingConvention namingConvention;
+
+    private Counter counter;
+    private Timer timer;
+    private Timer histogramTimer;
+    private DistributionSummary summary;
+    private Meter custom;
+
+    @Setup
+    public void setup() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        NightingaleConfig config = props::get;
+        registry = NightingaleMeterRegistry.builder(config)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+        writer = new N9eJsonWriter(64 * 1024);
+        namingConvention = new NightingaleNamingConvention();
+
+        Tags tags = tags(this.tags);
+        counter = registry.counter("bench.counter", tags);
+        counter.increment(42);
+        timer = registry.timer("bench.timer", tags);
+        timer.record(12, TimeUnit.MILLISECONDS);
+        histogramTimer = Timer.builder("bench.histogram.timer")
+                .tags(tags)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry);
+        for (int i = 1; i <= 1000; i++) {
+            histogramTimer.record(i, TimeUnit.MILLISECONDS);
+        }
+        summary = registry.summary("bench.summary", tags);
+        summary.record(1024);
+        List<io.micrometer.core.instrument.Measurement> measurements = Arrays.asList(
+                new io.micrometer.core.instrument.Measurement(() -> 1.0, Statistic.VALUE),
+                new io.micrometer.core.instrument.Measurement(() -> 2.0, Statistic.COUNT),
+                new io.micrometer.core.instrument.Measurement(() -> 3.0, Statistic.TOTAL));
+        custom = Meter.builder("bench.custom", Meter.Type.OTHER, measurements).tags(tags).register(registry);
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public int writeCounter() {
+        writer.reset();
+        return registry.writeCounter(writer, counter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int writeTimer() {
+        writer.reset();
+        return registry.writeTimer(writer, timer);
+    }
+
+    /**
+     * A timer with three percentiles and a percentile histogram, about 70 buckets up to the default maximum
+     * expected value of 30 seconds. Normalized per invocation rather than per point.
+     */
+    @Benchmark
+    public int writeTimerWithHistogram() {
+        writer.reset();
+        return registry.writeTimer(writer, histogramTimer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int writeSummary() {
+        writer.reset();
+        return registry.writeSummary(writer, summary);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public int writeCustomMetric() {
+        writer.reset();
+        return registry.writeCustomMetric(writer, custom);
+    }
+
+    /**
+     * Building the cached JSON fragments of a series, which happens once per meter and again after the
+     * endpoint or hostname changes.
+     */
+    @Benchmark
+    public N9eSeriesCache.Series buildSeries() {
+        registry.seriesCache().invalidate();
+        return registry.seriesCache().get(timer);
+    }
+
+    @Benchmark
+    public String formatName() {
+        return namingConvention.name("http.server.requests", Meter.Type.TIMER, null);
+    }
+
+    @Benchmark
+    public String formatTagKey() {
+        return namingConvention.tagKey("client.name");
+    }
+
+    static Tags tags(int count) {
+        List<Tag> tags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(Tag.of("key" + i, "value" + i));
+        }
+        return Tags.of(tags);
+    }
+}
@@ -0,0 +1,30 @@
+package io.micrometer.component;
+
+import io.micrometer.nightingale.NightingaleMeterRegistry;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+
+/**
+ * Serves the values the registry published in its last {@code recentSteps} steps as n9e JSON points, on
+ * {@code /actuator/n9e}, optionally only those of the meters whose name starts with {@code name}. The endpoint
+ * must be exposed like any other, e.g. with {@code management.endpoints.web.exposure.include=n9e}.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+@Endpoint(id = "n9e")
+public class NightingaleEndpoint {
+
+	private final NightingaleMeterRegistry registry;
+
+	public NightingaleEndpoint(NightingaleMeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	@ReadOperation(produces = "application/json")
+	public String recentValues(@Nullable String name) {
+		return registry.recentValues(name);
+	}
+
+}
@@ -0,0 +1,74 @@
+package io.micrometer.component;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.nightingale.NightingaleConfig;
+import io.micrometer.nightingale.NightingaleMeterRegistry;
+import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnEnabledEndpoint;
+import org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.metrics.MetricsAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.metrics.export.simple.SimpleMetricsExportAutoConfiguration;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.AutoConfigureBefore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Exports metrics to n9e, configured by the {@code management.metrics.export.nightingale.*} properties.
+ * <p>
+ * Creating the registry does no network I/O: the endpoint and hostname are resolved, and the hosts of the
+ * transfers looked up, in the background once it starts. Closing it when the context shuts down flushes the
+ * last step, partial step included, within {@code shutdownTimeout}, and spools or dumps what could not be sent.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+@Configuration
+@AutoConfigureBefore({CompositeMeterRegistryAutoConfiguration.class, SimpleMetricsExportAutoConfiguration.class})
+@AutoConfigureAfter(MetricsAutoConfiguration.class)
+@ConditionalOnBean(Clock.class)
+@ConditionalOnClass(NightingaleMeterRegistry.class)
+@ConditionalOnProperty(prefix = NightingaleMetricsExportAutoConfiguration.PREFIX, name = "enabled", havingValue = "true",
+		matchIfMissing = true)
+public class NightingaleMetricsExportAutoConfiguration {
+
+	static final String PREFIX = "management.metrics.export.nightingale";
+
+	/**
+	 * The properties are bound once and validated here, so that an invalid configuration fails the context
+	 * before anything is created; the registry then finds them valid without validating them again.
+	 */
+	@Bean
+	@ConditionalOnMissingBean
+	public NightingaleConfig nightingaleConfig(Environment environment) {
+		Map<String, String> properties = Binder.get(environment)
+				.bind(PREFIX, Bindable.mapOf(String.class, String.class))
+				.orElse(Collections.emptyMap());
+		NightingaleConfig config = new NightingalePropertiesConfigAdapter(properties);
+		config.requireValid();
+		return config;
+	}
+
+	@Bean(destroyMethod = "close")
+	@ConditionalOnMissingBean
+	public NightingaleMeterRegistry nightingaleMeterRegistry(NightingaleConfig nightingaleConfig, Clock clock) {
+		return new NightingaleMeterRegistry(nightingaleConfig, clock);
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnEnabledEndpoint
+	public NightingaleEndpoint nightingaleEndpoint(NightingaleMeterRegistry nightingaleMeterRegistry) {
+		return new NightingaleEndpoint(nightingaleMeterRegistry);
+	}
+
+}
@@ -0,0 +1,51 @@
+package io.micrometer.component;
+
+import io.micrometer.core.instrument.config.validate.Validated;
+import io.micrometer.core.lang.Nullable;
+import io.micrometer.nightingale.NightingaleConfig;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@link NightingaleConfig} of the {@code management.metrics.export.nightingale.*} properties, bound once.
+ * Keys match in any form, so {@code step-overrides}, {@code stepOverrides} and {@code STEP_OVERRIDES} are the
+ * same property. The properties do not change once bound, so the configuration is only validated once.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+class NightingalePropertiesConfigAdapter implements NightingaleConfig {
+
+	private final Map<String, String> properties = new HashMap<>();
+
+	@Nullable
+	private volatile Validated<?> validated;
+
+	NightingalePropertiesConfigAdapter(Map<String, String> properties) {
+		properties.forEach((key, value) -> this.properties.put(normalize(key), value));
+	}
+
+	@Override
+	@Nullable
+	public String get(String key) {
+		String prefix = prefix() + ".";
+		return properties.get(normalize(key.startsWith(prefix) ? key.substring(prefix.length()) : key));
+	}
+
+	@Override
+	public Validated<?> validate() {
+		Validated<?> validated = this.validated;
+		if (validated == null) {
+			validated = NightingaleConfig.super.validate();
+			this.validated = validated;
+		}
+		return validated;
+	}
+
+	private static String normalize(String key) {
+		return key.replace("-", "").replace("_", "").toLowerCase(Locale.ROOT);
+	}
+
+}
@@ -0,0 +1,23 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.ipc.http.HttpSender;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An {@link HttpSender} that can also send without blocking the calling thread. When the sender given to
+ * {@link NightingaleMeterRegistry.Builder#httpClient(HttpSender)} implements this interface, batches are sent
+ * asynchronously and the publisher thread only waits for a free in-flight slot.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public interface AsyncHttpSender extends HttpSender {
+
+    /**
+     * @param request The request to send.
+     * @return A future completed with the response, or exceptionally when the request could not be sent or
+     * timed out.
+     */
+    CompletableFuture<Response> sendAsync(Request request);
+}
@@ -0,0 +1,617 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.lang.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ships encoded batches to n9e. With {@link NightingaleConfig#maxInFlightRequests()} greater than one, batches
+ * are sent from a dedicated pool while the publisher thread goes on encoding the next batch, and at most that
+ * many requests are in flight at once. Otherwise batches are sent one after another on the publisher thread.
+ * The pool is the virtual threads of the registry where there are any, so that sends are tasks of their own.
+ * <p>
+ * An {@link AsyncHttpSender} needs no pool: every batch is sent asynchronously and the in-flight bound is
+ * released when its response arrives.
+ * <p>
+ * When a {@link NightingaleConfig#spoolDirectory() spool} is configured, batches that fail with an I/O error or
+ * a retriable status are appended to it and replayed at the {@link #endCycle() end} of later cycles.
+ * <p>
+ * Such failures are first retried with {@link N9eRetryPolicy backoff}. Asynchronous retries are scheduled rather
+ * than waited for, so that they never hold up the I/O thread of the sender. Once
+ * {@link NightingaleConfig#circuitBreakerThreshold()} consecutive attempts have failed, the remaining batches
+ * of the cycle are not sent at all but go straight to the spool, if any.
+ * <p>
+ * A batch that n9e rejects as too large (413) is {@link N9eBatchSplitter split} in halves, which are sent one
+ * after the other and split again if need be. A single point that is still too large is dropped.
+ * <p>
+ * Every transfer of {@link NightingaleConfig#uris()} has a shipper of its own. A shipper whose cycle ended with
+ * a failure reports itself unhealthy for {@link NightingaleConfig#shardRetryInterval()}.
+ * <p>
+ * When the registry is closed, the shipper {@link #beginFlush flushes} instead: every batch is sent at once and
+ * tried only once, and those that are not sent by the {@link NightingaleConfig#shutdownTimeout() deadline} are
+ * spooled, or dumped to {@link NightingaleConfig#shutdownDumpDirectory()} when there is no spool.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eBatchShipper implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(N9eBatchShipper.class);
+    private static final String REMOTE_WRITE_VERSION = "0.1.0";
+    private static final AtomicInteger dumpSequence = new AtomicInteger();
+
+    private final NightingaleConfig config;
+    private final HttpSender httpClient;
+    private final URL url;
+    private final NightingaleCompression compression;
+    private final Map<NightingaleCompression, Map<String, String>> headers = new EnumMap<>(NightingaleCompression.class);
+
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    @Nullable
+    private final Executor senders;
+
+    // only set when the shipper created the pool of senders itself
+    @Nullable
+    private final ExecutorService ownSenders;
+
+    @Nullable
+    private final N9eSpool spool;
+
+    private final N9eRetryPolicy retryPolicy;
+    private final N9eCircuitBreaker circuitBreaker;
+
+    @Nullable
+    private final ScheduledExecutorService retryScheduler;
+
+    private final AtomicInteger cycleFailures = new AtomicInteger();
+    private final AtomicInteger cycleSkipped = new AtomicInteger();
+    // set when a batch of the cycle was spooled or dropped rather than delivered
+    private volatile boolean cycleUndelivered;
+
+    private final N9ePublishMetrics metrics;
+    private final N9eBatchSizer batchSizer;
+
+    private volatile boolean unhealthy;
+    private volatile long retryAt;
+
+    // set once the registry flushes on close
+    @Nullable
+    private volatile Executor flushSenders;
+
+    // the batches of the flush that are not sent yet, guarded by itself
+    private final Set<byte[]> unflushed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // VisibleForTesting
+    N9eBatchShipper(NightingaleConfig config, HttpSender httpClient) {
+        this(config, httpClient, N9ePublishMetrics.NOOP, config.uri(), config.spoolDirectory(), false, null);
+    }
+
+    /**
+     * @param uri            The transfer to send to.
+     * @param spoolDirectory Where to spool failed batches, or {@code null} to drop them.
+     * @param concurrent     {@code true} to send from a pool even with a single request in flight, so that the
+     *                       shippers of several transfers send at the same time.
+     * @param executor       The executor to send from, or {@code null} to create a pool when one is needed.
+     */
+    N9eBatchShipper(NightingaleConfig config, HttpSender httpClient, N9ePublishMetrics metrics, String uri,
+                    @Nullable String spoolDirectory, boolean concurrent, @Nullable Executor executor) {
+        this.config = config;
+        this.httpClient = httpClient;
+        try {
+            this.url = new URL(uri);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("invalid n9e uri " + uri, e);
+        }
+        this.metrics = metrics;
+        this.batchSizer = new N9eBatchSizer(config);
+        this.compression = config.format() == NightingaleFormat.REMOTE_WRITE
+                ? NightingaleCompression.SNAPPY
+                : config.compression();
+        for (NightingaleCompression c : NightingaleCompression.values()) {
+            headers.put(c, headers(c));
+        }
+        this.spool = openSpool(config, spoolDirectory);
+        this.maxInFlight = Math.max(1, config.maxInFlightRequests());
+        this.inFlight = new Semaphore(maxInFlight);
+        boolean pooled = (maxInFlight > 1 || concurrent) && !(httpClient instanceof AsyncHttpSender);
+        this.ownSenders = pooled && executor == null
+                ? Executors.newFixedThreadPool(maxInFlight, new NamedThreadFactory("n9e-metrics-sender"))
+                : null;
+        this.senders = pooled ? (executor != null ? executor : ownSenders) : null;
+        this.retryPolicy = new N9eRetryPolicy(config);
+        this.circuitBreaker = new N9eCircuitBreaker(config.circuitBreakerThreshold());
+        this.retryScheduler = httpClient instanceof AsyncHttpSender && retryPolicy.canRetry(0)
+                ? Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("n9e-metrics-retry"))
+                : null;
+    }
+
+    N9eBatchSizer batchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * Resolves the host of the transfer, so that the first publish finds it in the DNS cache. Called once in the
+     * background when the registry starts; a host that cannot be resolved yet is resolved again by the sends.
+     */
+    void warmUp() {
+        try {
+            InetAddress.getAllByName(url.getHost());
+        } catch (UnknownHostException e) {
+            logger.debug("unable to resolve n9e host {} yet", url.getHost(), e);
+        }
+    }
+
+    /**
+     * @return {@code false} if the last cycle ended with a failure, until the shard retry interval elapsed.
+     */
+    boolean healthy() {
+        if (unhealthy && System.nanoTime() - retryAt >= 0) {
+            unhealthy = false;
+        }
+        return !unhealthy;
+    }
+
+    /**
+     * Closes the circuit breaker, giving n9e a fresh chance at the start of every publish cycle.
+     */
+    void beginCycle() {
+        circuitBreaker.reset();
+        cycleSkipped.set(0);
+    }
+
+    /**
+     * Sends {@code payload}, waiting for a free slot first if {@code maxInFlightRequests} are already in flight.
+     *
+     * @param payload The encoded batch, which must not be modified afterwards.
+     * @param meters  The number of meters in the batch, for logging.
+     */
+    void ship(byte[] payload, int meters) throws InterruptedException {
+        Executor flushing = flushSenders;
+        if (flushing != null) {
+            flush(flushing, payload, meters);
+            return;
+        }
+        if (!circuitBreaker.allowRequest()) {
+            cycleSkipped.incrementAndGet();
+            cycleFailures.incrementAndGet();
+            cycleUndelivered = true;
+            spool(payload);
+            return;
+        }
+        if (httpClient instanceof AsyncHttpSender) {
+            shipAsync((AsyncHttpSender) httpClient, payload, meters);
+            return;
+        }
+        if (senders == null) {
+            send(payload, meters);
+            return;
+        }
+        inFlight.acquire();
+        try {
+            senders.execute(() -> {
+                try {
+                    send(payload, meters);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            logger.warn("failed to send metrics to n9e, the sender pool is shut down");
+        }
+    }
+
+    private void shipAsync(AsyncHttpSender sender, byte[] payload, int meters) throws InterruptedException {
+        inFlight.acquire();
+        sendAsync(sender, payload, meters, 0, inFlight::release);
+    }
+
+    /**
+     * Sends one attempt of a batch that holds an in-flight slot, which {@code done} releases once the batch
+     * succeeds or runs out of retries, or once both its halves did if it was split.
+     */
+    private void sendAsync(AsyncHttpSender sender, byte[] payload, int meters, int retry, Runnable done) {
+        long start = System.nanoTime();
+        try {
+            sender.sendAsync(request(payload, compression))
+                    .whenComplete((response, t) -> onAsyncAttempt(sender, response, t, payload, meters, retry, start,
+                            done));
+        } catch (Throwable t) {
+            onAsyncAttempt(sender, null, t, payload, meters, retry, start, done);
+        }
+    }
+
+    private void onAsyncAttempt(AsyncHttpSender sender, @Nullable HttpSender.Response response, @Nullable Throwable t,
+                                byte[] payload, int meters, int retry, long start, Runnable done) {
+        if (failed(response, start) && retryScheduler != null && canRetry(retry)) {
+            try {
+                retryScheduler.schedule(() -> sendAsync(sender, payload, meters, retry + 1, done),
+                        retryPolicy.backoffMillis(retry), TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) {
+                // shutting down, give up on this batch
+            }
+        }
+        byte[][] halves = halves(response, payload, meters);
+        if (halves != null) {
+            // the halves share the slot of the batch, so the second one is sent once the first is done
+            sendAsync(sender, halves[0], meters / 2, 0,
+                    () -> sendAsync(sender, halves[1], meters - meters / 2, 0, done));
+            return;
+        }
+        try {
+            handle(response, t, payload, meters);
+        } finally {
+            done.run();
+        }
+    }
+
+    /**
+     * Blocks until every batch shipped so far has been sent.
+     */
+    void awaitCompletion() throws InterruptedException {
+        if (senders != null || httpClient instanceof AsyncHttpSender) {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+    }
+
+    /**
+     * Waits for the batches of the cycle to be sent, then {@link #replaySpooled() replays} spooled batches if
+     * none of them failed.
+     *
+     * @return {@code true} if a batch of the cycle was not delivered, whether it was spooled or dropped.
+     */
+    boolean endCycle() throws InterruptedException {
+        if (flushSenders != null) {
+            // the flush is awaited until its deadline only, and spooled batches wait for the next start
+            return false;
+        }
+        awaitCompletion();
+        if (circuitBreaker.failing()) {
+            retryAt = System.nanoTime() + config.shardRetryInterval().toNanos();
+            unhealthy = true;
+        }
+        int skipped = cycleSkipped.get();
+        if (skipped > 0) {
+            logger.warn("n9e failed {} times in a row, skipped sending the last {} batches of this cycle",
+                    config.circuitBreakerThreshold(), skipped);
+        }
+        replaySpooled();
+        boolean undelivered = cycleUndelivered;
+        cycleUndelivered = false;
+        return undelivered;
+    }
+
+    /**
+     * Sends up to {@link NightingaleConfig#spoolReplayBatchesPerCycle()} spooled batches, oldest first, on the
+     * calling thread. Replay stops at the first batch that fails again, which stays in the spool, and is skipped
+     * altogether when a batch of the current cycle failed.
+     */
+    void replaySpooled() {
+        if (cycleFailures.getAndSet(0) > 0 || spool == null) {
+            return;
+        }
+        for (int i = 0; i < config.spoolReplayBatchesPerCycle(); i++) {
+            N9eSpool.Record record = spool.peek();
+            if (record == null) {
+                return;
+            }
+            try {
+                HttpSender.Response response = httpClient.send(request(record.payload(), record.compression()));
+                if (!response.isSuccessful()) {
+                    metrics.requestFailed(Integer.toString(response.code()));
+                }
+                if (!response.isSuccessful() && N9eRetryPolicy.isRetriable(response.code())) {
+                    logger.debug("n9e is still failing, keeping spooled batches: {}", response.body());
+                    return;
+                }
+                if (!response.isSuccessful()) {
+                    logger.error("dropping spooled batch rejected by n9e: {}", response.body());
+                }
+                spool.commit(record);
+            } catch (Throwable t) {
+                metrics.requestFailed("error");
+                logger.debug("n9e is still unreachable, keeping spooled batches", t);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Switches to the final flush of the registry. From then on, every batch is sent as soon as it is shipped,
+     * asynchronously or on {@code executor}, without retries or any bound on the requests in flight.
+     */
+    void beginFlush(Executor executor) {
+        flushSenders = executor;
+    }
+
+    private void flush(Executor executor, byte[] payload, int meters) {
+        synchronized (unflushed) {
+            unflushed.add(payload);
+        }
+        if (httpClient instanceof AsyncHttpSender) {
+            try {
+                ((AsyncHttpSender) httpClient).sendAsync(request(payload, compression))
+                        .whenComplete((response, t) -> onFlushed(response, t, payload, meters));
+            } catch (Throwable t) {
+                onFlushed(null, t, payload, meters);
+            }
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                HttpSender.Response response = null;
+                Throwable t = null;
+                try {
+                    response = httpClient.send(request(payload, compression));
+                } catch (Throwable e) {
+                    t = e;
+                }
+                onFlushed(response, t, payload, meters);
+            });
+        } catch (RejectedExecutionException e) {
+            // left to endFlush
+        }
+    }
+
+    private void onFlushed(@Nullable HttpSender.Response response, @Nullable Throwable t, byte[] payload, int meters) {
+        synchronized (unflushed) {
+            if (!unflushed.remove(payload)) {
+                // too late, the batch was already spooled or dumped
+                return;
+            }
+            unflushed.notifyAll();
+        }
+        if (response != null) {
+            response.onSuccess(r -> logger.debug("successfully sent {} metrics to n9e.", meters))
+                    .onError(r -> logger.error("failed to send metrics to n9e: {}", r.body()));
+            if (!response.isSuccessful() && N9eRetryPolicy.isRetriable(response.code())) {
+                keep(payload);
+            }
+        } else {
+            logger.warn("failed to send metrics to n9e", t);
+            keep(payload);
+        }
+    }
+
+    /**
+     * Waits for the batches of the flush to be sent until {@code deadline}, then spools or dumps those that are
+     * not. A batch that is sent after all is sent twice, which n9e takes as the same points.
+     *
+     * @param deadline The deadline, as a {@link System#nanoTime()}.
+     * @return The number of batches that were not sent in time.
+     */
+    int endFlush(long deadline) throws InterruptedException {
+        List<byte[]> late;
+        synchronized (unflushed) {
+            long remaining;
+            while (!unflushed.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(unflushed, remaining);
+            }
+            late = new ArrayList<>(unflushed);
+            unflushed.clear();
+        }
+        for (byte[] payload : late) {
+            keep(payload);
+        }
+        return late.size();
+    }
+
+    /**
+     * Keeps a batch of the flush that was not sent: in the spool if there is one, so that it is replayed once
+     * the application starts again, or else in a file of its own in the dump directory.
+     */
+    private void keep(byte[] payload) {
+        if (spool != null) {
+            spool(payload);
+            return;
+        }
+        String directory = config.shutdownDumpDirectory();
+        if (directory == null) {
+            logger.warn("dropped a batch of metrics that was not sent to n9e on close");
+            return;
+        }
+        try {
+            Path dump = Paths.get(directory);
+            Files.createDirectories(dump);
+            Files.write(dump.resolve("n9e-" + System.currentTimeMillis() + "-" + dumpSequence.incrementAndGet()
+                    + extension(compression)), payload, StandardOpenOption.CREATE_NEW);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to dump metrics for n9e to " + directory, e);
+        }
+    }
+
+    private static String extension(NightingaleCompression compression) {
+        switch (compression) {
+            case GZIP:
+                return ".json.gz";
+            case DEFLATE:
+                return ".json.deflate";
+            case SNAPPY:
+                return ".pb.snappy";
+            default:
+                return ".json";
+        }
+    }
+
+    private void send(byte[] payload, int meters) {
+        for (int retry = 0; ; retry++) {
+            HttpSender.Response response = null;
+            Throwable t = null;
+            long start = System.nanoTime();
+            try {
+                response = httpClient.send(request(payload, compression));
+            } catch (Throwable e) {
+                t = e;
+            }
+            if (!failed(response, start) || !canRetry(retry)) {
+                byte[][] halves = halves(response, payload, meters);
+                if (halves != null) {
+                    send(halves[0], meters / 2);
+                    send(halves[1], meters - meters / 2);
+                } else {
+                    handle(response, t, payload, meters);
+                }
+                return;
+            }
+            try {
+                Thread.sleep(retryPolicy.backoffMillis(retry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handle(response, t, payload, meters);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of an attempt with the circuit breaker, the batch sizer and the failure counters.
+     *
+     * @return {@code true} if the attempt failed in a way that sending again might fix.
+     */
+    private boolean failed(@Nullable HttpSender.Response response, long start) {
+        if (response == null) {
+            metrics.requestFailed("error");
+            batchSizer.onError();
+        } else {
+            if (!response.isSuccessful()) {
+                metrics.requestFailed(Integer.toString(response.code()));
+            }
+            batchSizer.onResponse(response.code(), System.nanoTime() - start);
+        }
+        if (response == null || (!response.isSuccessful() && N9eRetryPolicy.isRetriable(response.code()))) {
+            circuitBreaker.onFailure();
+            return true;
+        }
+        circuitBreaker.onSuccess();
+        return false;
+    }
+
+    /**
+     * @return The halves of a batch rejected as too large, or {@code null} if it was not or holds a single point.
+     */
+    @Nullable
+    private byte[][] halves(@Nullable HttpSender.Response response, byte[] payload, int meters) {
+        if (response == null || response.code() != 413) {
+            return null;
+        }
+        try {
+            byte[][] halves = N9eBatchSplitter.split(payload, compression);
+            if (halves != null) {
+                logger.debug("n9e rejected a batch of {} metrics as too large, sending it in halves", meters);
+            }
+            return halves;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to split a batch rejected as too large by n9e", e);
+            return null;
+        }
+    }
+
+    private boolean canRetry(int retry) {
+        return retryPolicy.canRetry(retry) && circuitBreaker.allowRequest();
+    }
+
+    private HttpSender.Request request(byte[] payload, NightingaleCompression compression) {
+        return new HttpSender.Request(url, payload, HttpSender.Method.POST, headers.get(compression));
+    }
+
+    private void handle(@Nullable HttpSender.Response response, @Nullable Throwable t, byte[] payload, int meters) {
+        if (response == null || !response.isSuccessful()) {
+            cycleUndelivered = true;
+        }
+        if (response != null) {
+            response.onSuccess(r -> logger.debug("successfully sent {} metrics to n9e.", meters))
+                    .onError(r -> logger.error("failed to send metrics to n9e: {}", r.body()));
+            if (!response.isSuccessful() && N9eRetryPolicy.isRetriable(response.code())) {
+                cycleFailures.incrementAndGet();
+                spool(payload);
+            }
+        } else {
+            logger.warn("failed to send metrics to n9e", t);
+            cycleFailures.incrementAndGet();
+            spool(payload);
+        }
+    }
+
+    private void spool(byte[] payload) {
+        if (spool != null) {
+            try {
+                spool.append(payload, compression);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("failed to spool metrics for n9e", e);
+            }
+        }
+    }
+
+    @Nullable
+    private static N9eSpool openSpool(NightingaleConfig config, @Nullable String directory) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new N9eSpool(Paths.get(directory), config.spoolSegmentBytes(), config.spoolMaxBytes());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("unable to open the n9e spool in " + directory + ", failed batches will be dropped", e);
+            return null;
+        }
+    }
+
+    private static Map<String, String> headers(NightingaleCompression compression) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        // remote-write is always compressed with snappy and JSON never is, which also holds for spooled batches
+        if (compression == NightingaleCompression.SNAPPY) {
+            headers.put("Content-Type", NightingaleFormat.REMOTE_WRITE.contentType());
+            headers.put("X-Prometheus-Remote-Write-Version", REMOTE_WRITE_VERSION);
+        } else {
+            headers.put("Content-Type", NightingaleFormat.JSON.contentType());
+        }
+        String contentEncoding = compression.contentEncoding();
+        if (contentEncoding != null) {
+            headers.put("Content-Encoding", contentEncoding);
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public void close() {
+        if (ownSenders != null) {
+            ownSenders.shutdown();
+        }
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.micrometer.nightingale;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapts the size of batches to how n9e copes with them, additive increase and multiplicative decrease style.
+ * The target starts at {@link NightingaleConfig#batchTargetBytes()} and is halved, down to
+ * {@link NightingaleConfig#batchMinBytes()}, whenever a request is rejected as too large (413), fails with a
+ * server error or I/O error, or takes longer than {@link NightingaleConfig#batchLatencyTarget()}. Each fast
+ * successful request grows it back by a sixteenth of the configured target. The point limit is scaled along.
+ * <p>
+ * Sizes are measured before compression, so a target below the body limit of the transfer is always safe.
+ * <p>
+ * Over the {@link NightingaleTransport#UDP UDP transport}, batches are always sized in bytes, and never beyond half
+ * of {@link NightingaleConfig#maxDatagramBytes()}.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eBatchSizer {
+    private final int maxBytes;
+    private final int minBytes;
+    private final int maxPoints;
+    private final long latencyTargetNanos;
+    private final AtomicInteger targetBytes;
+
+    N9eBatchSizer(NightingaleConfig config) {
+        this(maxBytes(config), config.batchMinBytes(), config.batchTargetPoints(),
+                config.batchLatencyTarget().toNanos());
+    }
+
+    private static int maxBytes(NightingaleConfig config) {
+        if (config.transport() != NightingaleTransport.UDP) {
+            return config.batchTargetBytes();
+        }
+        // the meter that completes a batch is written before the batch is found full, so leave room for it
+        int datagram = config.maxDatagramBytes() / 2;
+        return config.batchTargetBytes() > 0 ? Math.min(config.batchTargetBytes(), datagram) : datagram;
+    }
+
+    N9eBatchSizer(int maxBytes, int minBytes, int maxPoints, long latencyTargetNanos) {
+        this.maxBytes = maxBytes;
+        this.minBytes = Math.min(minBytes, maxBytes);
+        this.maxPoints = maxPoints;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.targetBytes = new AtomicInteger(maxBytes);
+    }
+
+    /**
+     * @return {@code false} when batches are made of a fixed {@link NightingaleConfig#batchSize() number of
+     * meters} instead.
+     */
+    boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    int targetBytes() {
+        return targetBytes.get();
+    }
+
+    int targetPoints() {
+        return (int) Math.max(1, (long) maxPoints * targetBytes.get() / maxBytes);
+    }
+
+    void onResponse(int code, long latencyNanos) {
+        if (code == 413 || code >= 500 || latencyNanos > latencyTargetNanos) {
+            decrease();
+        } else if (code >= 200 && code < 300) {
+            targetBytes.updateAndGet(t -> Math.min(maxBytes, t + Math.max(1, maxBytes / 16)));
+        }
+    }
+
+    void onError() {
+        decrease();
+    }
+
+    private void decrease() {
+        targetBytes.updateAndGet(t -> Math.max(minBytes, t / 2));
+    }
+}
@@ -0,0 +1,179 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Splits a batch that n9e rejected as too large (413) into two halves of about as many points, encoded and
+ * compressed like the batch, so that each can be sent on its own. The points are found again in the
+ * decompressed batch: the objects of the JSON array, or the {@code TimeSeries} of the remote-write
+ * {@code WriteRequest}. Batches are only split when they are rejected, so none of this is on the path of a
+ * publish.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eBatchSplitter {
+
+    private N9eBatchSplitter() {
+    }
+
+    /**
+     * @param compression The compression of the batch, {@link NightingaleCompression#SNAPPY} for remote-write.
+     * @return The two halves of {@code payload}, or {@code null} if it holds a single point.
+     * @throws IOException If the batch cannot be decompressed or its points cannot be found.
+     */
+    @Nullable
+    static byte[][] split(byte[] payload, NightingaleCompression compression) throws IOException {
+        byte[] body = decompress(payload, compression);
+        boolean remoteWrite = compression == NightingaleCompression.SNAPPY;
+        List<int[]> points = remoteWrite ? timeSeries(body) : jsonObjects(body);
+        if (points.size() < 2) {
+            return null;
+        }
+        int half = points.size() / 2;
+        return new byte[][]{
+                compress(join(body, points.subList(0, half), remoteWrite), compression),
+                compress(join(body, points.subList(half, points.size()), remoteWrite), compression)
+        };
+    }
+
+    /**
+     * @return The start and end of each object of a JSON array, skipping braces within strings.
+     */
+    private static List<int[]> jsonObjects(byte[] body) throws IOException {
+        List<int[]> objects = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        boolean string = false;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (string) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    string = false;
+                }
+            } else if (b == '"') {
+                string = true;
+            } else if (b == '{') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (b == '}') {
+                if (--depth == 0) {
+                    objects.add(new int[]{start, i + 1});
+                } else if (depth < 0) {
+                    throw new IOException("unbalanced JSON batch");
+                }
+            }
+        }
+        if (depth != 0 || string) {
+            throw new IOException("truncated JSON batch");
+        }
+        return objects;
+    }
+
+    /**
+     * @return The start and end of each top-level field of a {@code WriteRequest}, tag and length included.
+     */
+    private static List<int[]> timeSeries(byte[] body) throws IOException {
+        List<int[]> series = new ArrayList<>();
+        int[] position = {0};
+        while (position[0] < body.length) {
+            int start = position[0];
+            long tag = readVarint(body, position);
+            if ((tag & 7) != 2) {
+                throw new IOException("unexpected wire type " + (tag & 7) + " in remote-write batch");
+            }
+            long length = readVarint(body, position);
+            if (length > body.length - position[0]) {
+                throw new IOException("truncated remote-write batch");
+            }
+            position[0] += (int) length;
+            series.add(new int[]{start, position[0]});
+        }
+        return series;
+    }
+
+    private static long readVarint(byte[] body, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] == body.length) {
+                throw new IOException("truncated remote-write batch");
+            }
+            byte b = body[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in remote-write batch");
+    }
+
+    private static byte[] join(byte[] body, List<int[]> points, boolean remoteWrite) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 2);
+        if (!remoteWrite) {
+            out.write('[');
+        }
+        for (int i = 0; i < points.size(); i++) {
+            int[] point = points.get(i);
+            if (i > 0 && !remoteWrite) {
+                out.write(',');
+            }
+            out.write(body, point[0], point[1] - point[0]);
+        }
+        if (!remoteWrite) {
+            out.write(']');
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] payload, NightingaleCompression compression) throws IOException {
+        switch (compression) {
+            case GZIP:
+                return readFully(new GZIPInputStream(new ByteArrayInputStream(payload)));
+            case DEFLATE:
+                return readFully(new InflaterInputStream(new ByteArrayInputStream(payload)));
+            case SNAPPY:
+                return N9eSnappy.uncompress(payload);
+            default:
+                return payload;
+        }
+    }
+
+    private static byte[] compress(byte[] body, NightingaleCompression compression) {
+        switch (compression) {
+            case GZIP:
+            case DEFLATE:
+                N9eCompressor compressor = new N9eCompressor(compression, body.length / 4);
+                compressor.begin();
+                compressor.write(body, 0, body.length);
+                return compressor.finish();
+            case SNAPPY:
+                return new N9eSnappy(body.length).compress(body, body.length);
+            default:
+                return body;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
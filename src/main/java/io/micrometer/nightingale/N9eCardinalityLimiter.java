@@ -0,0 +1,113 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounds the number of distinct tag combinations of every metric name to
+ * {@link NightingaleConfig#maxSeriesPerMetric()}. Once a name has that many, the meters of any new combination
+ * are mapped to a single meter whose tag values are all {@link #OVERFLOW}, and {@code n9e.series.rejected} is
+ * incremented for the name the first time each of them is seen. Meters are looked up through the filter every
+ * time they are used by tags, so the combinations already rejected are remembered, up to
+ * {@link #MAX_REJECTED} per name, beyond which new ones are no longer counted.
+ * <p>
+ * Combinations are remembered as 64 bit hashes, so a name costs at most the limit in hashes however long its
+ * tag values are. The hash of a removed meter is forgotten, which frees its slot. The registry's own
+ * {@code n9e.*} meters are never limited.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eCardinalityLimiter implements MeterFilter {
+    static final String OVERFLOW = "overflow";
+    static final int MAX_REJECTED = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(N9eCardinalityLimiter.class);
+    private static final String SELF_PREFIX = "n9e.";
+
+    private final MeterRegistry registry;
+    private final int maxSeries;
+    private final ConcurrentMap<String, Set<Long>> series = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Long>> rejected = new ConcurrentHashMap<>();
+
+    N9eCardinalityLimiter(MeterRegistry registry, int maxSeries) {
+        this.registry = registry;
+        this.maxSeries = maxSeries;
+    }
+
+    @Override
+    public Meter.Id map(Meter.Id id) {
+        String name = id.getName();
+        if (name.startsWith(SELF_PREFIX) || id.getTags().isEmpty()) {
+            return id;
+        }
+        Set<Long> admitted = series.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet());
+        long hash = hash(id);
+        if (admitted.contains(hash) || isOverflow(id)) {
+            return id;
+        }
+        synchronized (admitted) {
+            if (admitted.size() < maxSeries) {
+                admitted.add(hash);
+                return id;
+            }
+        }
+        Set<Long> seen = rejected.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet());
+        if (seen.size() < MAX_REJECTED && seen.add(hash)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} has more than {} series, collapsing {} into the overflow series", name, maxSeries,
+                        id.getTags());
+            }
+            registry.counter(SELF_PREFIX + "series.rejected", "metric", name).increment();
+        }
+        return overflow(id);
+    }
+
+    /**
+     * Forgets the tag combination of a removed meter.
+     */
+    void remove(Meter meter) {
+        Set<Long> admitted = series.get(meter.getId().getName());
+        if (admitted != null) {
+            admitted.remove(hash(meter.getId()));
+        }
+    }
+
+    private static Meter.Id overflow(Meter.Id id) {
+        List<Tag> tags = new ArrayList<>();
+        for (Tag tag : id.getTagsAsIterable()) {
+            tags.add(Tag.of(tag.getKey(), OVERFLOW));
+        }
+        return id.replaceTags(tags);
+    }
+
+    private static boolean isOverflow(Meter.Id id) {
+        for (Tag tag : id.getTagsAsIterable()) {
+            if (!OVERFLOW.equals(tag.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(Meter.Id id) {
+        long hash = N9eShardRing.hashStart();
+        for (Tag tag : id.getTagsAsIterable()) {
+            hash = N9eShardRing.hash(hash, tag.getKey());
+            hash = N9eShardRing.hash(hash, "=");
+            hash = N9eShardRing.hash(hash, tag.getValue());
+            hash = N9eShardRing.hash(hash, ",");
+        }
+        return hash;
+    }
+}
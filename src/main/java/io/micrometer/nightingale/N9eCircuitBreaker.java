@@ -0,0 +1,46 @@
+package io.micrometer.nightingale;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops sending for the rest of a publish cycle once {@link NightingaleConfig#circuitBreakerThreshold()}
+ * consecutive attempts have failed, so that an unreachable n9e does not cost a full timeout per batch. The
+ * breaker closes again at the start of the next cycle.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eCircuitBreaker {
+    private final int threshold;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * @param threshold The number of consecutive failures that opens the breaker, or zero to never open it.
+     */
+    N9eCircuitBreaker(int threshold) {
+        this.threshold = threshold;
+    }
+
+    boolean allowRequest() {
+        return threshold <= 0 || consecutiveFailures.get() < threshold;
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * @return {@code true} if the last attempt failed.
+     */
+    boolean failing() {
+        return consecutiveFailures.get() > 0;
+    }
+
+    void onFailure() {
+        consecutiveFailures.incrementAndGet();
+    }
+
+    void reset() {
+        consecutiveFailures.set(0);
+    }
+}
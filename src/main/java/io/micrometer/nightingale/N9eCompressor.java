@@ -0,0 +1,89 @@
+package io.micrometer.nightingale;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a batch as it is being encoded. The {@link Deflater} and the output buffer are reused across
+ * batches; for gzip, the header and trailer are written by hand so no {@code GZIPOutputStream} is created.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eCompressor {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] out;
+    private int count;
+
+    N9eCompressor(NightingaleCompression compression, int initialCapacity) {
+        if (compression == NightingaleCompression.NONE) {
+            throw new IllegalArgumentException("no compressor for " + compression);
+        }
+        this.gzip = compression == NightingaleCompression.GZIP;
+        // gzip carries its own header and trailer, so the raw deflate stream is used for it
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        this.out = new byte[Math.max(initialCapacity, 64)];
+    }
+
+    void begin() {
+        deflater.reset();
+        crc.reset();
+        count = 0;
+        if (gzip) {
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            count = GZIP_HEADER.length;
+        }
+    }
+
+    void write(byte[] b, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        if (gzip) {
+            crc.update(b, off, len);
+        }
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            drain();
+        }
+    }
+
+    /**
+     * @return The complete compressed stream.
+     */
+    byte[] finish() {
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain();
+        }
+        if (gzip) {
+            ensureCapacity(8);
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) deflater.getBytesRead());
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private void drain() {
+        ensureCapacity(512);
+        count += deflater.deflate(out, count, out.length - count);
+    }
+
+    private void writeIntLE(int v) {
+        out[count++] = (byte) v;
+        out[count++] = (byte) (v >> 8);
+        out[count++] = (byte) (v >> 16);
+        out[count++] = (byte) (v >> 24);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length << 1, count + extra));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.micrometer.nightingale;
+
+/**
+ * Encodes a batch of points in the {@link NightingaleFormat} of the registry into a reusable buffer. Points are
+ * written from the fragments the {@link N9eSeriesCache} encoded for their series in the same format, so that
+ * only the timestamp and value are encoded on each publish.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+interface N9eEncoder {
+
+    /**
+     * Starts a new batch, discarding anything written before.
+     */
+    void begin();
+
+    /**
+     * @param head      The fragment of the series before the timestamp.
+     * @param timestamp The timestamp in seconds.
+     * @param tail      The fragment of the series after the value.
+     */
+    N9eEncoder writePoint(byte[] head, long timestamp, double value, byte[] tail);
+
+    /**
+     * @return The number of points written since the batch began.
+     */
+    int points();
+
+    /**
+     * @return The number of uncompressed bytes written since the batch began.
+     */
+    int size();
+
+    /**
+     * Ends the batch.
+     *
+     * @return The request body, which the encoder does not hold on to.
+     */
+    byte[] finish();
+}
@@ -0,0 +1,39 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors whose threads are virtual on Java 21 and later. The API is only looked up at runtime, as the
+ * project is built for Java 8.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eExecutors {
+
+    private N9eExecutors() {
+    }
+
+    /**
+     * @return An executor starting a new virtual thread, named after {@code prefix}, for every task, or
+     * {@code null} if virtual threads are not available.
+     */
+    @Nullable
+    static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 21, or a preview of virtual threads that is not enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Clock;
+
+/**
+ * The clock of the meters of a {@link NightingaleMeterRegistry}, which can be moved ahead when the registry is
+ * closed. Step meters only report a step once it is over, so moving their clock to the end of the current step
+ * makes them report the partial step, which would otherwise be lost. The clock is never moved back, and the
+ * monotonic time is never moved at all.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eFlushClock implements Clock {
+    private final Clock clock;
+    private volatile long offsetMillis;
+
+    N9eFlushClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Moves the wall time ahead so that it reads {@code wallTime} now, unless it is already later.
+     */
+    synchronized void advanceTo(long wallTime) {
+        offsetMillis = Math.max(offsetMillis, wallTime - clock.wallTime());
+    }
+
+    @Override
+    public long wallTime() {
+        return clock.wallTime() + offsetMillis;
+    }
+
+    @Override
+    public long monotonicTime() {
+        return clock.monotonicTime();
+    }
+}
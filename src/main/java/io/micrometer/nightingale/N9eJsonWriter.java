@@ -0,0 +1,300 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Growable, reusable byte buffer that n9e points are encoded into as UTF-8 JSON. A writer is
+ * {@link #reset() reset} and refilled for every batch so the backing array is allocated once and
+ * only grows to the size of the largest batch seen. When {@link #compressWith compressing}, the buffer
+ * does not grow at all: it is drained into the compressor whenever it is full.
+ * <p>
+ * As the {@link N9eEncoder} of {@link NightingaleFormat#JSON}, a batch is a JSON array of points.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eJsonWriter implements N9eEncoder {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] VALUE_KEY = ",\"value\":".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private byte[] buf;
+    private int count;
+    private int points;
+    private int drained;
+
+    @Nullable
+    private N9eCompressor compressor;
+
+    N9eJsonWriter(int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    N9eJsonWriter compressWith(@Nullable N9eCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    @Override
+    public void begin() {
+        reset();
+        beginArray();
+    }
+
+    void reset() {
+        count = 0;
+        points = 0;
+        drained = 0;
+        if (compressor != null) {
+            compressor.begin();
+        }
+    }
+
+    /**
+     * @return The number of points written since the last {@link #reset()}.
+     */
+    @Override
+    public int points() {
+        return points;
+    }
+
+    /**
+     * @return The number of uncompressed bytes written since the last {@link #reset()}.
+     */
+    @Override
+    public int size() {
+        return drained + count;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * @return The request body for everything written since the last {@link #reset()}, compressed if a
+     * compressor is set.
+     */
+    byte[] toPayload() {
+        if (compressor == null) {
+            return toByteArray();
+        }
+        drain();
+        return compressor.finish();
+    }
+
+    @Override
+    public byte[] finish() {
+        return endArray().toPayload();
+    }
+
+    N9eJsonWriter beginArray() {
+        return writeByte('[');
+    }
+
+    N9eJsonWriter endArray() {
+        return writeByte(']');
+    }
+
+    /**
+     * Starts a new point object, prefixing it with a separator when it is not the first point of the batch.
+     */
+    N9eJsonWriter beginPoint() {
+        if (points++ > 0) {
+            writeByte(',');
+        }
+        return writeByte('{');
+    }
+
+    /**
+     * Writes a complete point from its pre-encoded fragments, so only the timestamp and value are encoded.
+     *
+     * @param head Everything from the opening brace up to the timestamp value.
+     * @param tail Everything after the value, including the closing brace.
+     */
+    @Override
+    public N9eJsonWriter writePoint(byte[] head, long timestamp, double value, byte[] tail) {
+        if (points++ > 0) {
+            writeByte(',');
+        }
+        return writeBytes(head).writeLong(timestamp).writeBytes(VALUE_KEY).writeDouble(value).writeBytes(tail);
+    }
+
+    N9eJsonWriter endPoint() {
+        return writeByte('}');
+    }
+
+    N9eJsonWriter writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+        return this;
+    }
+
+    N9eJsonWriter writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes a string that is known to only contain ASCII characters, such as a JSON key.
+     */
+    N9eJsonWriter writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Writes {@code s} as UTF-8 without any escaping.
+     */
+    N9eJsonWriter writeUtf8(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeByte(c);
+            } else {
+                i = writeNonAscii(s, i, c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes {@code s} as UTF-8, escaped exactly like
+     * {@link io.micrometer.core.instrument.util.StringEscapeUtils#escapeJson(String)} would escape it.
+     */
+    N9eJsonWriter writeEscaped(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        writeByte('\\').writeByte(c);
+                        break;
+                    case '\t':
+                        writeByte('\\').writeByte('t');
+                        break;
+                    case '\b':
+                        writeByte('\\').writeByte('b');
+                        break;
+                    case '\n':
+                        writeByte('\\').writeByte('n');
+                        break;
+                    case '\r':
+                        writeByte('\\').writeByte('r');
+                        break;
+                    case '\f':
+                        writeByte('\\').writeByte('f');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writeUnicodeEscape(c);
+                        } else {
+                            writeByte(c);
+                        }
+                }
+            } else if (c == '\u2028' || c == '\u2029') {
+                writeUnicodeEscape(c);
+            } else {
+                i = writeNonAscii(s, i, c);
+            }
+        }
+        return this;
+    }
+
+    N9eJsonWriter writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeBytes(MIN_LONG);
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        int pos = count + digits;
+        do {
+            buf[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        count += digits;
+        return this;
+    }
+
+    /**
+     * Writes {@code value} in the same format as {@link StringBuilder#append(double)}. Integral values in the
+     * range that {@link Double#toString(double)} renders without an exponent, which covers counts and most
+     * gauges, are written without allocating.
+     */
+    N9eJsonWriter writeDouble(double value) {
+        if (value == (long) value && Math.abs(value) < 1e7
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return writeLong((long) value).writeByte('.').writeByte('0');
+        }
+        return writeAscii(Double.toString(value));
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buf[count++] = '\\';
+        buf[count++] = 'u';
+        buf[count++] = HEX[(c >> 12) & 0xf];
+        buf[count++] = HEX[(c >> 8) & 0xf];
+        buf[count++] = HEX[(c >> 4) & 0xf];
+        buf[count++] = HEX[c & 0xf];
+    }
+
+    /**
+     * @return The index of the last char consumed, which is {@code i + 1} for a surrogate pair.
+     */
+    private int writeNonAscii(String s, int i, char c) {
+        ensureCapacity(4);
+        if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf[count++] = (byte) (0xf0 | (cp >> 18));
+            buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, String.getBytes(UTF_8) replaces it with '?'
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void drain() {
+        if (compressor != null) {
+            compressor.write(buf, 0, count);
+            drained += count;
+            count = 0;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            drain();
+        }
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+        }
+    }
+}
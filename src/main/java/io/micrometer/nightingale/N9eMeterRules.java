@@ -0,0 +1,183 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.config.MeterFilterReply;
+import io.micrometer.core.instrument.config.validate.InvalidReason;
+import io.micrometer.core.instrument.config.validate.Validated;
+import io.micrometer.core.instrument.config.validate.ValidationException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies the {@link NightingaleConfig#include() include}, {@link NightingaleConfig#exclude() exclude} and tag
+ * rules of the configuration when meters are registered. A meter that is dropped is never registered, so it
+ * costs nothing to publish, and a rewritten one is registered with its final tags, so publishing does not look
+ * at the rules at all.
+ * <p>
+ * The name prefixes are compiled into a trie, where the deepest node with a rule on the path of a name decides,
+ * so matching a name costs one step per character whatever the number of prefixes. Renamed and dropped tag keys
+ * are looked up in a table.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eMeterRules implements MeterFilter {
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final Node names = new Node();
+    private final boolean includesOnly;
+    private final Tags commonTags;
+    private final boolean hasCommonTags;
+    private final Set<String> droppedTags;
+    private final Map<String, String> renamedTags;
+
+    N9eMeterRules(NightingaleConfig config) {
+        this(config.include(), config.exclude(), config.commonTags(), config.dropTags(), config.renameTags());
+    }
+
+    N9eMeterRules(List<String> include, List<String> exclude, Map<String, String> commonTags, List<String> dropTags,
+                  Map<String, String> renameTags) {
+        for (String prefix : include) {
+            names.add(prefix).rule = INCLUDE;
+        }
+        // an exclude wins over an include of the same prefix
+        for (String prefix : exclude) {
+            names.add(prefix).rule = EXCLUDE;
+        }
+        this.includesOnly = !include.isEmpty();
+        List<Tag> tags = new ArrayList<>();
+        for (Map.Entry<String, String> tag : commonTags.entrySet()) {
+            tags.add(Tag.of(tag.getKey(), tag.getValue()));
+        }
+        this.commonTags = Tags.of(tags);
+        this.hasCommonTags = !tags.isEmpty();
+        this.droppedTags = new HashSet<>(dropTags);
+        this.renamedTags = new HashMap<>(renameTags);
+    }
+
+    /**
+     * @return {@code true} if no meter is dropped or rewritten, so the rules need not be installed.
+     */
+    boolean isEmpty() {
+        return names.keys.length == 0 && !hasCommonTags && droppedTags.isEmpty() && renamedTags.isEmpty();
+    }
+
+    @Override
+    public MeterFilterReply accept(Meter.Id id) {
+        byte rule = names.match(id.getName());
+        return rule == EXCLUDE || (rule == NONE && includesOnly) ? MeterFilterReply.DENY : MeterFilterReply.NEUTRAL;
+    }
+
+    @Override
+    public Meter.Id map(Meter.Id id) {
+        if (droppedTags.isEmpty() && renamedTags.isEmpty()) {
+            return hasCommonTags ? id.replaceTags(commonTags.and(id.getTagsAsIterable())) : id;
+        }
+        List<Tag> tags = new ArrayList<>();
+        for (Tag tag : id.getTagsAsIterable()) {
+            if (droppedTags.contains(tag.getKey())) {
+                continue;
+            }
+            String renamed = renamedTags.get(tag.getKey());
+            tags.add(renamed == null ? tag : Tag.of(renamed, tag.getValue()));
+        }
+        // the tags of the meter take precedence over the common ones
+        return id.replaceTags(commonTags.and(tags));
+    }
+
+    /**
+     * @return The non-blank entries of a comma-separated list.
+     */
+    static List<String> list(String value) {
+        List<String> entries = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            if (!entry.trim().isEmpty()) {
+                entries.add(entry.trim());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return The entries of a comma-separated list of {@code key=value}, in order.
+     * @throws ValidationException If an entry is not a {@code key=value}.
+     */
+    static Map<String, String> pairs(String property, String value) {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        for (String entry : list(value)) {
+            int equals = entry.indexOf('=');
+            if (equals <= 0 || equals == entry.length() - 1) {
+                Validated.invalid(property, entry, "must be a key=value", InvalidReason.MALFORMED).get();
+            }
+            pairs.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+        }
+        return pairs;
+    }
+
+    /**
+     * A node of the trie of name prefixes, with its children sorted by character.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private byte rule = NONE;
+
+        Node add(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.childOrNew(prefix.charAt(i));
+            }
+            return node;
+        }
+
+        private Node childOrNew(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+            newKeys[i] = c;
+            newChildren[i] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[i];
+        }
+
+        /**
+         * @return The rule of the longest prefix of {@code name}, or {@link #NONE}.
+         */
+        byte match(String name) {
+            Node node = this;
+            byte rule = NONE;
+            for (int i = 0; i < name.length(); i++) {
+                int child = Arrays.binarySearch(node.keys, name.charAt(i));
+                if (child < 0) {
+                    break;
+                }
+                node = node.children[child];
+                if (node.rule != NONE) {
+                    rule = node.rule;
+                }
+            }
+            return rule;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters describing the publish pipeline itself. They are registered with the {@link NightingaleMeterRegistry}
+ * they describe and shipped to n9e like any other meter when {@link NightingaleConfig#selfMetrics()} is enabled.
+ * <p>
+ * Per point and per batch figures are accumulated by the caller and recorded once per cycle or batch, so the
+ * encoding loop only pays for a counter increment when a non-finite value is skipped.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9ePublishMetrics {
+    /**
+     * Metrics that are never recorded. A composite registry without children hands out no-op meters.
+     */
+    static final N9ePublishMetrics NOOP = new N9ePublishMetrics(new CompositeMeterRegistry());
+
+    private final MeterRegistry registry;
+    private final Timer cycleDuration;
+    private final Timer encodeDuration;
+    private final Timer sendDuration;
+    private final Counter overruns;
+    private final Counter skipped;
+    private final DistributionSummary batchSize;
+    private final Counter pointsWritten;
+    private final Counter nonFiniteSkipped;
+    private final Counter unchangedSkipped;
+    private final ConcurrentMap<String, Counter> failures = new ConcurrentHashMap<>();
+
+    N9ePublishMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.cycleDuration = Timer.builder("n9e.publish.duration")
+                .description("Time taken by a whole publish cycle")
+                .register(registry);
+        this.encodeDuration = Timer.builder("n9e.publish.encode.duration")
+                .description("Time a publish cycle spent encoding batches")
+                .register(registry);
+        this.sendDuration = Timer.builder("n9e.publish.send.duration")
+                .description("Time a publish cycle spent sending batches or waiting for them to be sent")
+                .register(registry);
+        this.overruns = Counter.builder("n9e.publish.overruns")
+                .description("Publish cycles that took longer than the step")
+                .register(registry);
+        this.skipped = Counter.builder("n9e.publish.skipped")
+                .description("Publish cycles that were not run because the previous one was still running")
+                .register(registry);
+        this.batchSize = DistributionSummary.builder("n9e.batch.size")
+                .description("Size of the batches sent to n9e, after compression")
+                .baseUnit("bytes")
+                .register(registry);
+        this.pointsWritten = Counter.builder("n9e.points.written")
+                .description("Data points encoded for n9e")
+                .register(registry);
+        this.nonFiniteSkipped = Counter.builder("n9e.points.skipped")
+                .description("Data points that were not sent because their value was NaN or infinite")
+                .tag("reason", "non_finite")
+                .register(registry);
+        this.unchangedSkipped = Counter.builder("n9e.points.skipped")
+                .description("Data points that were not sent because their value had not changed")
+                .tag("reason", "unchanged")
+                .register(registry);
+    }
+
+    void cycle(long totalNanos, long sendNanos, long stepNanos) {
+        cycleDuration.record(totalNanos, TimeUnit.NANOSECONDS);
+        sendDuration.record(sendNanos, TimeUnit.NANOSECONDS);
+        encodeDuration.record(Math.max(0, totalNanos - sendNanos), TimeUnit.NANOSECONDS);
+        if (totalNanos > stepNanos) {
+            overruns.increment();
+        }
+    }
+
+    void cycleSkipped() {
+        skipped.increment();
+    }
+
+    void batch(int bytes) {
+        batchSize.record(bytes);
+    }
+
+    void pointsWritten(int points) {
+        pointsWritten.increment(points);
+    }
+
+    void nonFiniteSkipped() {
+        nonFiniteSkipped.increment();
+    }
+
+    void unchangedSkipped(int points) {
+        if (points > 0) {
+            unchangedSkipped.increment(points);
+        }
+    }
+
+    /**
+     * @param status The HTTP status of the failed request, or {@code error} when no response was received.
+     */
+    void requestFailed(String status) {
+        failures.computeIfAbsent(status, s -> Counter.builder("n9e.requests.failed")
+                .description("Requests to n9e that failed, by HTTP status")
+                .tag("status", s)
+                .register(registry))
+                .increment();
+    }
+}
@@ -0,0 +1,81 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When to publish in {@link NightingaleConfig#phasedPublish() phased} mode: once per step, at a stable offset
+ * from the start of the step derived from the endpoint and hostname, plus a random jitter. The offset is chosen
+ * so that the offset and the jitter together stay within the step, which keeps the published timestamps on the
+ * step boundary.
+ * <p>
+ * Not thread safe, it is only used by the thread that schedules the publishes. The offset of a schedule created
+ * from a {@link NightingaleIdentity} is only computed when it is first needed, so that the identity is not
+ * resolved by the thread that creates the registry.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9ePublishSchedule {
+    private final long stepMillis;
+    private final long jitterMillis;
+    @Nullable
+    private NightingaleIdentity identity;
+    private long offsetMillis;
+    // the step whose publish was scheduled last, so that a clock jumping back never publishes a step twice
+    private long lastStep = Long.MIN_VALUE;
+
+    N9ePublishSchedule(long stepMillis, long jitterMillis, String endpoint, @Nullable String hostname) {
+        this.stepMillis = stepMillis;
+        this.jitterMillis = Math.max(0, Math.min(jitterMillis, stepMillis - 1));
+        this.offsetMillis = offset(endpoint, hostname);
+    }
+
+    N9ePublishSchedule(long stepMillis, long jitterMillis, NightingaleIdentity identity) {
+        this.stepMillis = stepMillis;
+        this.jitterMillis = Math.max(0, Math.min(jitterMillis, stepMillis - 1));
+        this.identity = identity;
+    }
+
+    private long offset(String endpoint, @Nullable String hostname) {
+        long hash = N9eShardRing.hash(N9eShardRing.hashStart(), endpoint);
+        if (hostname != null) {
+            hash = N9eShardRing.hash(hash, hostname);
+        }
+        return Math.floorMod(N9eShardRing.mix(hash), stepMillis - jitterMillis);
+    }
+
+    long offsetMillis() {
+        if (identity != null) {
+            offsetMillis = offset(identity.endpoint(), identity.hostname());
+            identity = null;
+        }
+        return offsetMillis;
+    }
+
+    /**
+     * @return The delay from {@code wallTime} until the next publish, which is in the first step whose offset has
+     * not passed yet.
+     */
+    long nextDelayMillis(long wallTime) {
+        long offsetMillis = offsetMillis();
+        long step = Math.floorDiv(wallTime, stepMillis);
+        if (step * stepMillis + offsetMillis <= wallTime) {
+            step++;
+        }
+        if (step <= lastStep) {
+            step = lastStep + 1;
+        }
+        lastStep = step;
+        long jitter = jitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+        return step * stepMillis + offsetMillis + jitter - wallTime;
+    }
+
+    /**
+     * @return The start of the step {@code wallTime} is in, in seconds.
+     */
+    long timestamp(long wallTime) {
+        return Math.floorDiv(wallTime, stepMillis) * stepMillis / 1000;
+    }
+}
@@ -0,0 +1,166 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+/**
+ * The values of the last {@link NightingaleConfig#recentSteps()} steps of every published series, kept so that
+ * what a service reported can be read locally when n9e is unreachable or lagging. Each meter has a ring of
+ * primitive arrays, a row of values per step and a value per series, allocated when the meter is first
+ * published and never grown, so the memory is bounded by the number of series.
+ * <p>
+ * A ring is written by the publishing thread under the write lock of a {@link StampedLock}, and read with
+ * optimistic reads only, which are retried if the ring was written meanwhile. A read thus never blocks a
+ * publish cycle, however slow the reader.
+ * <p>
+ * The values are read back as n9e JSON points, encoded from the fragments of a {@link N9eSeriesCache}, so they
+ * look exactly like what was sent, whatever the {@link NightingaleConfig#format()} of the registry.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eRecentValues {
+    private final int steps;
+    // the fragments of the points read back, null to use those of the snapshot, which are JSON already
+    @Nullable
+    private final N9eSeriesCache jsonSeries;
+    private final Predicate<Meter> registered;
+    private final ConcurrentMap<Meter.Id, Ring> rings = new ConcurrentHashMap<>();
+
+    /**
+     * @param registered Whether a meter is still registered, so that the values of one removed during a publish
+     *                   cycle are not kept after it was removed.
+     */
+    N9eRecentValues(int steps, @Nullable N9eSeriesCache jsonSeries, Predicate<Meter> registered) {
+        this.steps = steps;
+        this.jsonSeries = jsonSeries;
+        this.registered = registered;
+    }
+
+    /**
+     * Keeps the values captured for a meter as those of the latest step. Called only from the publishing thread.
+     */
+    void record(N9eSnapshot snapshot, int meter) {
+        Meter m = snapshot.meter(meter);
+        N9eSeriesCache.Series series = jsonSeries == null ? snapshot.series(meter) : jsonSeries.get(m);
+        Ring ring = rings.get(m.getId());
+        if (ring == null) {
+            ring = new Ring(steps, series.series());
+            rings.put(m.getId(), ring);
+            // checked once the ring is in, as the meter may be removed before or after the put
+            if (!registered.test(m)) {
+                rings.remove(m.getId(), ring);
+                return;
+            }
+        }
+        ring.record(snapshot, meter, series);
+    }
+
+    void add(Meter meter) {
+        if (jsonSeries != null) {
+            jsonSeries.add(meter);
+        }
+    }
+
+    void remove(Meter meter) {
+        rings.remove(meter.getId());
+        if (jsonSeries != null) {
+            jsonSeries.remove(meter);
+        }
+    }
+
+    /**
+     * Rebuilds the fragments of the points read back lazily, after the endpoint or hostname changed. The rings
+     * keep the fragments their values were published with until they are published again.
+     */
+    void invalidate() {
+        if (jsonSeries != null) {
+            jsonSeries.invalidate();
+        }
+    }
+
+    /**
+     * Writes the kept values of the meters whose name starts with {@code name} as a JSON array of points,
+     * oldest first for each meter.
+     */
+    void write(N9eJsonWriter writer, @Nullable String name) {
+        writer.begin();
+        for (Map.Entry<Meter.Id, Ring> ring : rings.entrySet()) {
+            if (name == null || ring.getKey().getName().startsWith(name)) {
+                ring.getValue().write(writer);
+            }
+        }
+        writer.endArray();
+    }
+
+    private static final class Ring {
+        private final StampedLock lock = new StampedLock();
+        private final long[] timestamps;
+        // a row of width values per step, NaN for a series without a value in that step
+        private final double[] values;
+        private final int width;
+        // written under the write lock
+        private long recorded;
+        private N9eSeriesCache.Series series;
+
+        Ring(int steps, int width) {
+            this.timestamps = new long[steps];
+            this.values = new double[steps * width];
+            this.width = width;
+        }
+
+        void record(N9eSnapshot snapshot, int meter, N9eSeriesCache.Series series) {
+            long stamp = lock.writeLock();
+            try {
+                this.series = series;
+                int row = (int) (recorded % timestamps.length) * width;
+                Arrays.fill(values, row, row + width, Double.NaN);
+                for (int slot = snapshot.offset(meter), end = slot + snapshot.slots(meter); slot < end; slot++) {
+                    int index = snapshot.index(slot);
+                    if (index >= 0 && index < width) {
+                        values[row + index] = snapshot.value(slot);
+                    }
+                }
+                timestamps[(int) (recorded % timestamps.length)] = snapshot.timestamp();
+                recorded++;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void write(N9eJsonWriter writer) {
+            long[] timestamps = new long[this.timestamps.length];
+            double[] values = new double[this.values.length];
+            long recorded;
+            N9eSeriesCache.Series series;
+            while (true) {
+                long stamp = lock.tryOptimisticRead();
+                recorded = this.recorded;
+                series = this.series;
+                System.arraycopy(this.timestamps, 0, timestamps, 0, timestamps.length);
+                System.arraycopy(this.values, 0, values, 0, values.length);
+                if (stamp != 0 && lock.validate(stamp)) {
+                    break;
+                }
+                Thread.yield();
+            }
+            int steps = (int) Math.min(recorded, timestamps.length);
+            for (int i = 0; i < steps; i++) {
+                int step = (int) ((recorded - steps + i) % timestamps.length);
+                for (int index = 0; index < width; index++) {
+                    double value = values[step * width + index];
+                    if (Double.isFinite(value)) {
+                        writer.writePoint(series.head(index), timestamps[step], value, series.tail(index));
+                    }
+                }
+            }
+        }
+    }
+}
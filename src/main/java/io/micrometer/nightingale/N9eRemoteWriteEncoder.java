@@ -0,0 +1,185 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link N9eEncoder} of {@link NightingaleFormat#REMOTE_WRITE}: a batch is a Prometheus {@code WriteRequest}
+ * with one {@code TimeSeries} of one sample per point, compressed with {@link N9eSnappy snappy}. The protobuf is
+ * written by hand into a reusable buffer. The labels of a series are encoded once by {@link #labels}, so the
+ * head of every point is its complete, pre-encoded list of labels, and only the sample is encoded on each
+ * publish.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eRemoteWriteEncoder implements N9eEncoder {
+    static final String NAME_LABEL = "__name__";
+    static final String IDENT_LABEL = "ident";
+
+    // field number << 3 | wire type
+    private static final int LENGTH_DELIMITED_1 = 1 << 3 | 2;
+    private static final int LENGTH_DELIMITED_2 = 2 << 3 | 2;
+    private static final int FIXED64_1 = 1 << 3 | 1;
+    private static final int VARINT_2 = 2 << 3;
+
+    // created on the first batch, the encoders that only encode labels never need it
+    @Nullable
+    private N9eSnappy snappy;
+    private byte[] buf;
+    private int count;
+    private int points;
+
+    N9eRemoteWriteEncoder(int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 64)];
+    }
+
+    @Override
+    public void begin() {
+        count = 0;
+        points = 0;
+    }
+
+    /**
+     * @param head The labels of the series, as encoded by {@link #labels}.
+     * @param tail Unused, the labels are all in the head.
+     */
+    @Override
+    public N9eRemoteWriteEncoder writePoint(byte[] head, long timestamp, double value, byte[] tail) {
+        long millis = timestamp * 1000;
+        int sample = 1 + 8 + 1 + varintSize(millis);
+        int series = head.length + 1 + varintSize(sample) + sample;
+        ensureCapacity(1 + varintSize(series) + series);
+
+        buf[count++] = LENGTH_DELIMITED_1;
+        writeVarint(series);
+        System.arraycopy(head, 0, buf, count, head.length);
+        count += head.length;
+        buf[count++] = LENGTH_DELIMITED_2;
+        writeVarint(sample);
+        buf[count++] = FIXED64_1;
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            buf[count++] = (byte) (bits >>> (i << 3));
+        }
+        buf[count++] = VARINT_2;
+        writeVarint(millis);
+        points++;
+        return this;
+    }
+
+    @Override
+    public int points() {
+        return points;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public byte[] finish() {
+        if (snappy == null) {
+            snappy = new N9eSnappy(buf.length);
+        }
+        return snappy.compress(buf, count);
+    }
+
+    // VisibleForTesting
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Encodes the labels of a series: its name, the {@code ident} of the endpoint unless a tag already has that
+     * key, the tags and an extra tag such as a percentile or a bucket, sorted by name as remote-write requires.
+     * Names are made valid Prometheus names by replacing any other character with an underscore.
+     *
+     * @param acquired Receives the strings {@link N9eSymbolTable#acquire acquired} from {@code symbols}, to be
+     *                 released once the series is dropped.
+     * @param tags     Tag keys and values, alternating.
+     */
+    static byte[] labels(N9eSymbolTable symbols, List<String> acquired, String name, String endpoint,
+                         List<String> tags, @Nullable String extraKey, @Nullable String extraValue) {
+        List<String[]> labels = new ArrayList<>(tags.size() / 2 + 3);
+        labels.add(new String[]{NAME_LABEL, sanitize(name, true)});
+        boolean hasIdent = false;
+        for (int i = 0; i < tags.size(); i += 2) {
+            String key = sanitize(tags.get(i), false);
+            hasIdent |= key.equals(IDENT_LABEL);
+            labels.add(new String[]{key, tags.get(i + 1)});
+        }
+        if (extraKey != null) {
+            labels.add(new String[]{extraKey, extraValue});
+        }
+        if (!hasIdent) {
+            labels.add(new String[]{IDENT_LABEL, endpoint});
+        }
+        labels.sort((a, b) -> a[0].compareTo(b[0]));
+
+        N9eRemoteWriteEncoder encoder = new N9eRemoteWriteEncoder(128);
+        for (String[] label : labels) {
+            byte[] key = symbols.acquire(label[0]);
+            byte[] value = symbols.acquire(label[1]);
+            acquired.add(label[0]);
+            acquired.add(label[1]);
+            int length = 1 + varintSize(key.length) + key.length + 1 + varintSize(value.length) + value.length;
+            encoder.ensureCapacity(1 + varintSize(length) + length);
+            encoder.buf[encoder.count++] = LENGTH_DELIMITED_1;
+            encoder.writeVarint(length);
+            encoder.writeBytes(LENGTH_DELIMITED_1, key);
+            encoder.writeBytes(LENGTH_DELIMITED_2, value);
+        }
+        return encoder.toByteArray();
+    }
+
+    private static String sanitize(String name, boolean metricName) {
+        StringBuilder sanitized = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (c == ':' && metricName) || (c >= '0' && c <= '9' && i > 0);
+            if (!valid && sanitized == null) {
+                sanitized = new StringBuilder(name.length()).append(name, 0, i);
+            }
+            if (sanitized != null) {
+                sanitized.append(valid ? c : '_');
+            }
+        }
+        return sanitized == null ? name : sanitized.toString();
+    }
+
+    private void writeBytes(int tag, byte[] bytes) {
+        buf[count++] = (byte) tag;
+        writeVarint(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf[count++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.micrometer.nightingale;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounded exponential backoff with jitter between attempts to send a batch. The n-th retry waits a random
+ * duration between half and all of {@code min(retryMaxBackoff, retryInitialBackoff * 2^n)}, so that many
+ * instances retrying at once do not hit n9e in lock step.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eRetryPolicy {
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    N9eRetryPolicy(NightingaleConfig config) {
+        this(config.maxRetries(), config.retryInitialBackoff().toMillis(), config.retryMaxBackoff().toMillis());
+    }
+
+    N9eRetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialBackoffMillis = Math.max(0, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * @param retry The number of retries already made for the batch.
+     * @return {@code true} if the batch may be retried once more.
+     */
+    boolean canRetry(int retry) {
+        return retry < maxRetries;
+    }
+
+    /**
+     * @param retry The number of retries already made for the batch.
+     * @return How long to wait before the next attempt.
+     */
+    long backoffMillis(int retry) {
+        long ceiling = initialBackoffMillis << Math.min(retry, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /**
+     * @return {@code true} for statuses that may succeed when sent again: server errors, 408 and 429.
+     */
+    static boolean isRetriable(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+}
@@ -0,0 +1,643 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.config.NamingConvention;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.HistogramSupport;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.util.DoubleFormat;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pre-encoded fragments for every series a meter produces. The metric name, step, endpoint, counterType
+ * and tags of a series never change for a given {@link Meter.Id}, so they are escaped and encoded once when
+ * the meter is added and only the timestamp and value are encoded on each publish. The endpoint, hostname and
+ * nid come from the {@link NightingaleIdentity}, which invalidates the cache whenever they change. A configured
+ * nid is written after the endpoint in JSON, and as the {@code nid} label in remote-write.
+ * <p>
+ * With {@link NightingaleConfig#suppressUnchanged()}, each entry also remembers the last value shipped for each
+ * of its series, so it is evicted together with the meter, and forgotten when a batch is not delivered.
+ * <p>
+ * Timers and distribution summaries publishing percentiles or a histogram also get a {@link Distribution}: the
+ * {@code <name>.percentile} series tagged with {@code phi} and the {@code <name>.histogram} series tagged with
+ * {@code le}, one per percentile and bucket. Their fragments are encoded once too, so only the values of the
+ * snapshot are encoded on each publish, however many buckets there are.
+ * <p>
+ * The fragments are encoded in the {@link NightingaleConfig#format()} of the registry. For
+ * {@link NightingaleFormat#REMOTE_WRITE}, the head of a series is the complete list of its labels, encoded by
+ * {@link N9eRemoteWriteEncoder#labels}, and there is no tail.
+ * <p>
+ * Each entry also records the {@link N9eStepGroups step group} of its meter, whose step is the one encoded in
+ * its fragments.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eSeriesCache {
+    static final String[] TIMER_SUFFIXES = {"count", "max", "avg", "sum"};
+    static final String[] SUMMARY_SUFFIXES = {"count", "avg", "sum", "max"};
+    static final String[] FUNCTION_TIMER_SUFFIXES = {"count", "avg", "sum"};
+    static final String[] LONG_TASK_TIMER_SUFFIXES = {"activeTasks", "duration"};
+    private static final String[] NO_SUFFIX = {null};
+    private static final byte[] NO_TAIL = new byte[0];
+    private static final String[] NO_SYMBOLS = new String[0];
+
+    /**
+     * Custom meters are named after the statistic of each measurement, so their heads are shared.
+     */
+    private static final byte[][] STATISTIC_HEADS;
+
+    static {
+        Statistic[] statistics = Statistic.values();
+        STATISTIC_HEADS = new byte[statistics.length][];
+        N9eJsonWriter writer = new N9eJsonWriter(64);
+        for (Statistic statistic : statistics) {
+            STATISTIC_HEADS[statistic.ordinal()] = head(writer, statistic.getTagValueRepresentation());
+        }
+    }
+
+    /**
+     * The entry of a meter whose fragments are created by its first {@link #get}.
+     */
+    private static final Series PENDING = new Series(new byte[0][], NO_TAIL, 0, false, false, 0, 0, null, NO_SYMBOLS);
+
+    private final ConcurrentMap<Meter.Id, Series> series = new ConcurrentHashMap<>();
+    private final NightingaleConfig config;
+    private final Supplier<NamingConvention> namingConvention;
+    private final NightingaleIdentity identity;
+    private final TimeUnit baseTimeUnit;
+    private final NightingaleFormat format;
+    private final N9eStepGroups stepGroups;
+    private final N9eSymbolTable symbols = new N9eSymbolTable();
+
+    N9eSeriesCache(NightingaleConfig config, Supplier<NamingConvention> namingConvention, NightingaleIdentity identity,
+                   TimeUnit baseTimeUnit) {
+        this(config, namingConvention, identity, baseTimeUnit, new N9eStepGroups(config));
+    }
+
+    N9eSeriesCache(NightingaleConfig config, Supplier<NamingConvention> namingConvention, NightingaleIdentity identity,
+                   TimeUnit baseTimeUnit, N9eStepGroups stepGroups) {
+        this(config, namingConvention, identity, baseTimeUnit, stepGroups, config.format());
+    }
+
+    /**
+     * @param format The format of the fragments, which may differ from that of the registry.
+     */
+    N9eSeriesCache(NightingaleConfig config, Supplier<NamingConvention> namingConvention, NightingaleIdentity identity,
+                   TimeUnit baseTimeUnit, N9eStepGroups stepGroups, NightingaleFormat format) {
+        this.config = config;
+        this.stepGroups = stepGroups;
+        this.namingConvention = namingConvention;
+        this.identity = identity;
+        this.baseTimeUnit = baseTimeUnit;
+        this.format = format;
+    }
+
+    /**
+     * @return The fragments of {@code meter}, creating them if they are still pending. Those of a meter that was
+     * removed meanwhile, e.g. during a publish cycle, are created for this call only and not kept, so the entry
+     * of a removed meter is never added back.
+     */
+    Series get(Meter meter) {
+        Series s = series.get(meter.getId());
+        if (s != null && s != PENDING) {
+            return s;
+        }
+        Series created = create(meter);
+        if (s == null) {
+            // the fragments are copies, which stay valid once their strings are released
+            release(created);
+            return created;
+        }
+        if (series.replace(meter.getId(), PENDING, created)) {
+            return created;
+        }
+        release(created);
+        s = series.get(meter.getId());
+        return s != null && s != PENDING ? s : created;
+    }
+
+    /**
+     * Creates the fragments of a meter as it is added, unless the identity is still being resolved, in which case
+     * they are created by its first publish rather than holding the registering thread back. Only added meters
+     * have an entry, so this cache must listen to the registry from its construction.
+     */
+    void add(Meter meter) {
+        release(series.put(meter.getId(), identity.isResolved() ? create(meter) : PENDING));
+    }
+
+    void remove(Meter meter) {
+        release(series.remove(meter.getId()));
+    }
+
+    /**
+     * @return {@code true} if {@code meter} was added and not removed since.
+     */
+    boolean contains(Meter meter) {
+        return series.containsKey(meter.getId());
+    }
+
+    /**
+     * Marks every entry as pending so they are rebuilt lazily, e.g. after the endpoint or hostname changed.
+     */
+    void invalidate() {
+        // replaceAll does not add back the entry of a meter removed meanwhile
+        series.replaceAll((id, s) -> {
+            release(s);
+            return PENDING;
+        });
+    }
+
+    int size() {
+        return series.size();
+    }
+
+    /**
+     * Forgets the values last shipped for every series, so that the next value of each is shipped even if it has
+     * not changed. Called from the publishing thread when a batch could not be delivered, as the values it held
+     * were never received. Dropping the whole state is cheaper than tracking the series of every batch.
+     */
+    void forgetShipped() {
+        for (Series s : series.values()) {
+            s.forgetShipped();
+        }
+    }
+
+    /**
+     * Releases the label strings of a series that is dropped.
+     */
+    private void release(@Nullable Series s) {
+        if (s != null) {
+            for (String symbol : s.symbols) {
+                symbols.release(symbol);
+            }
+        }
+    }
+
+    // VisibleForTesting
+    N9eSymbolTable symbols() {
+        return symbols;
+    }
+
+    private Series create(Meter meter) {
+        if (format == NightingaleFormat.REMOTE_WRITE) {
+            return createRemoteWrite(meter);
+        }
+        N9eJsonWriter writer = new N9eJsonWriter(256);
+        Meter.Id id = meter.getId();
+        NamingConvention convention = namingConvention.get();
+        int group = stepGroups.group(id);
+        long step = stepGroups.step(group).getSeconds();
+
+        writer.writeAscii(",\"step\":").writeLong(step)
+                .writeAscii(",\"endpoint\":").writeUtf8(identity.endpoint());
+        writeNid(writer);
+        if (isCustom(meter)) {
+            writeTags(writer, id.getConventionTags(convention), identity.hostname());
+            return new Series(STATISTIC_HEADS, writer.endPoint().toByteArray(), heartbeatSteps(), false, true,
+                    routingHash(id, convention), group, null, NO_SYMBOLS);
+        }
+        writer.writeAscii(",\"counterType\":").writeUtf8(config.counterType());
+        writeTags(writer, id.getConventionTags(convention), identity.hostname());
+        byte[] tail = writer.endPoint().toByteArray();
+
+        String[] suffixes = suffixes(meter);
+        byte[][] heads = new byte[suffixes.length][];
+        for (int i = 0; i < suffixes.length; i++) {
+            Meter.Id seriesId = suffixes[i] == null ? id : id.withName(id.getName() + "." + suffixes[i]);
+            heads[i] = head(writer, seriesId.getConventionName(convention));
+        }
+        return new Series(heads, tail, heartbeatSteps(), isStepBased(meter), false, routingHash(id, convention),
+                group, distribution(meter, convention, writer, step, tags(id.getConventionTags(convention)), null),
+                NO_SYMBOLS);
+    }
+
+    /**
+     * The same series as {@link #create}, with the labels of each of them as its head.
+     */
+    private Series createRemoteWrite(Meter meter) {
+        Meter.Id id = meter.getId();
+        NamingConvention convention = namingConvention.get();
+        String endpoint = identity.endpoint();
+        List<String> tags = tags(id.getConventionTags(convention));
+        int group = stepGroups.group(id);
+        List<String> acquired = new ArrayList<>();
+
+        if (isCustom(meter)) {
+            if (tags.isEmpty() && identity.hostname() != null) {
+                tags = Arrays.asList("hostname", identity.hostname());
+            }
+            tags = withNid(tags);
+            Statistic[] statistics = Statistic.values();
+            byte[][] heads = new byte[statistics.length][];
+            for (Statistic statistic : statistics) {
+                heads[statistic.ordinal()] = N9eRemoteWriteEncoder.labels(symbols, acquired,
+                        statistic.getTagValueRepresentation(), endpoint, tags, null, null);
+            }
+            return new Series(heads, NO_TAIL, heartbeatSteps(), false, true, routingHash(id, convention), group,
+                    null, acquired.toArray(NO_SYMBOLS));
+        }
+
+        tags = withNid(tags);
+        String[] suffixes = suffixes(meter);
+        byte[][] heads = new byte[suffixes.length][];
+        for (int i = 0; i < suffixes.length; i++) {
+            Meter.Id seriesId = suffixes[i] == null ? id : id.withName(id.getName() + "." + suffixes[i]);
+            heads[i] = N9eRemoteWriteEncoder.labels(symbols, acquired, seriesId.getConventionName(convention),
+                    endpoint, tags, null, null);
+        }
+        Distribution distribution = distribution(meter, convention, null, 0, tags, acquired);
+        return new Series(heads, NO_TAIL, heartbeatSteps(), isStepBased(meter), false, routingHash(id, convention),
+                group, distribution, acquired.toArray(NO_SYMBOLS));
+    }
+
+    /**
+     * @return The fragments of the percentiles and histogram buckets of {@code meter}, or {@code null} if it
+     * publishes neither. Percentiles and buckets are fixed for the lifetime of a meter, so a snapshot of the
+     * meter when it is added tells which ones there are.
+     *
+     * @param writer   The writer to encode JSON fragments with, or {@code null} to encode remote-write labels.
+     * @param step     The step of the meter in seconds for JSON fragments.
+     * @param tags     The tags of the meter as keys and values, which the {@code phi} or {@code le} tag is added to.
+     * @param acquired Receives the label strings of remote-write labels, {@code null} for JSON fragments.
+     */
+    @Nullable
+    private Distribution distribution(Meter meter, NamingConvention convention, @Nullable N9eJsonWriter writer,
+                                      long step, List<String> tags, @Nullable List<String> acquired) {
+        if (!(meter instanceof Timer || meter instanceof DistributionSummary)) {
+            return null;
+        }
+        HistogramSnapshot snapshot = ((HistogramSupport) meter).takeSnapshot();
+        ValueAtPercentile[] percentiles = snapshot.percentileValues();
+        CountAtBucket[] buckets = snapshot.histogramCounts();
+        if (percentiles.length == 0 && buckets.length == 0) {
+            return null;
+        }
+
+        Meter.Id id = meter.getId();
+        String percentileName = id.withName(id.getName() + ".percentile").getConventionName(convention);
+        String histogramName = id.withName(id.getName() + ".histogram").getConventionName(convention);
+        byte[] percentileHead = writer == null ? null : head(writer, percentileName);
+        byte[] histogramHead = writer == null ? null : head(writer, histogramName);
+
+        byte[][] percentileHeads = new byte[percentiles.length][];
+        byte[][] percentileTails = new byte[percentiles.length][];
+        for (int i = 0; i < percentiles.length; i++) {
+            String phi = DoubleFormat.decimalOrNan(percentiles[i].percentile());
+            if (writer == null) {
+                percentileHeads[i] = N9eRemoteWriteEncoder.labels(symbols, acquired, percentileName,
+                        identity.endpoint(), tags, "phi", phi);
+                percentileTails[i] = NO_TAIL;
+            } else {
+                percentileHeads[i] = percentileHead;
+                percentileTails[i] = taggedTail(writer, step, tags, "phi", phi);
+            }
+        }
+        byte[][] bucketHeads = new byte[buckets.length][];
+        byte[][] bucketTails = new byte[buckets.length][];
+        for (int i = 0; i < buckets.length; i++) {
+            double bucket = meter instanceof Timer ? buckets[i].bucket(baseTimeUnit) : buckets[i].bucket();
+            String le = DoubleFormat.wholeOrDecimal(bucket);
+            if (writer == null) {
+                bucketHeads[i] = N9eRemoteWriteEncoder.labels(symbols, acquired, histogramName,
+                        identity.endpoint(), tags, "le", le);
+                bucketTails[i] = NO_TAIL;
+            } else {
+                bucketHeads[i] = histogramHead;
+                bucketTails[i] = taggedTail(writer, step, tags, "le", le);
+            }
+        }
+        return new Distribution(percentileHeads, percentileTails, bucketHeads, bucketTails);
+    }
+
+    private void writeNid(N9eJsonWriter writer) {
+        String nid = identity.nid();
+        if (!nid.isEmpty()) {
+            writer.writeAscii(",\"nid\":").writeUtf8(nid);
+        }
+    }
+
+    /**
+     * @return The tags of a remote-write series with the {@code nid} tag, if one is configured and the meter does
+     * not have that tag already.
+     */
+    private List<String> withNid(List<String> tags) {
+        String nid = identity.nid();
+        if (nid.isEmpty()) {
+            return tags;
+        }
+        for (int i = 0; i < tags.size(); i += 2) {
+            if (tags.get(i).equals("nid")) {
+                return tags;
+            }
+        }
+        List<String> withNid = new ArrayList<>(tags.size() + 2);
+        withNid.addAll(tags);
+        withNid.add("nid");
+        withNid.add(nid);
+        return withNid;
+    }
+
+    private static List<String> tags(List<Tag> tags) {
+        List<String> keysAndValues = new ArrayList<>(tags.size() * 2);
+        for (Tag tag : tags) {
+            keysAndValues.add(tag.getKey());
+            keysAndValues.add(tag.getValue());
+        }
+        return keysAndValues;
+    }
+
+    /**
+     * @return The tail of a percentile or bucket series, tagged like its meter so that the series of meters of the
+     * same name do not collide, and with the {@code phi} or {@code le} tag.
+     */
+    private byte[] taggedTail(N9eJsonWriter writer, long step, List<String> tags, String key, String value) {
+        writer.reset();
+        writer.writeAscii(",\"step\":").writeLong(step)
+                .writeAscii(",\"endpoint\":").writeUtf8(identity.endpoint());
+        writeNid(writer);
+        writer.writeAscii(",\"counterType\":").writeUtf8(config.counterType())
+                .writeAscii(",\"tags\":{");
+        for (int i = 0; i < tags.size(); i += 2) {
+            writer.writeByte('"').writeEscaped(tags.get(i))
+                    .writeAscii("\":\"").writeEscaped(tags.get(i + 1)).writeAscii("\",");
+        }
+        return writer.writeByte('"').writeEscaped(key).writeAscii("\":\"").writeEscaped(value).writeAscii("\"}")
+                .endPoint().toByteArray();
+    }
+
+    /**
+     * @return The hash that places the series of a meter on the {@link N9eShardRing}, from its name and tags.
+     */
+    private static long routingHash(Meter.Id id, NamingConvention convention) {
+        long hash = N9eShardRing.hash(N9eShardRing.hashStart(), id.getConventionName(convention));
+        for (Tag tag : id.getConventionTags(convention)) {
+            hash = N9eShardRing.hash(hash, "," + tag.getKey() + "=" + tag.getValue());
+        }
+        return N9eShardRing.mix(hash);
+    }
+
+    private int heartbeatSteps() {
+        return config.suppressUnchanged() ? config.heartbeatSteps() : 0;
+    }
+
+    private static byte[] head(N9eJsonWriter writer, String name) {
+        writer.reset();
+        return writer.writeByte('{').writeAscii("\"metric\":\"").writeEscaped(name.replace("_", "."))
+                .writeAscii("\",\"timestamp\":").toByteArray();
+    }
+
+    private static void writeTags(N9eJsonWriter writer, List<Tag> tags, @Nullable String hostname) {
+        writer.writeAscii(",\"tags\":{");
+        if (tags.isEmpty()) {
+            // tags field is required for n9e, use hostname as a default tag
+            if (hostname != null) {
+                writer.writeAscii("\"hostname\":\"").writeEscaped(hostname).writeByte('"');
+            }
+        } else {
+            for (int i = 0; i < tags.size(); i++) {
+                Tag tag = tags.get(i);
+                if (i > 0) {
+                    writer.writeByte(',');
+                }
+                writer.writeByte('"').writeEscaped(tag.getKey())
+                        .writeAscii("\":\"").writeEscaped(tag.getValue()).writeByte('"');
+            }
+        }
+        writer.writeByte('}');
+    }
+
+    private static String[] suffixes(Meter meter) {
+        if (meter instanceof Timer) {
+            return TIMER_SUFFIXES;
+        } else if (meter instanceof DistributionSummary) {
+            return SUMMARY_SUFFIXES;
+        } else if (meter instanceof LongTaskTimer) {
+            return LONG_TASK_TIMER_SUFFIXES;
+        } else if (meter instanceof FunctionTimer) {
+            return FUNCTION_TIMER_SUFFIXES;
+        }
+        return NO_SUFFIX;
+    }
+
+    /**
+     * @return {@code true} for the meters whose values are accumulated over a step rather than sampled.
+     */
+    static boolean isStepBased(Meter meter) {
+        return meter instanceof Counter || meter instanceof Timer || meter instanceof DistributionSummary
+                || meter instanceof FunctionCounter || meter instanceof FunctionTimer;
+    }
+
+    static boolean isCustom(Meter meter) {
+        return !(meter instanceof Gauge || meter instanceof Counter || meter instanceof Timer
+                || meter instanceof DistributionSummary || meter instanceof LongTaskTimer
+                || meter instanceof FunctionCounter || meter instanceof FunctionTimer);
+    }
+
+    /**
+     * The encoded fragments of one meter: a head per series, ending right before the timestamp, and the
+     * tail shared by all of its series, starting right after the value. Series of custom meters are indexed by
+     * the ordinal of their {@link Statistic}, those of the {@link Distribution} come after the others.
+     */
+    static final class Series {
+        private final byte[][] heads;
+        private final byte[] tail;
+        private final int heartbeatSteps;
+        private final boolean stepBased;
+        private final boolean custom;
+        private final long routingHash;
+        private final int group;
+
+        @Nullable
+        private final Distribution distribution;
+
+        // the label strings acquired from the symbol table, released when the series is dropped
+        private final String[] symbols;
+
+        // one per series, or per measurement for a custom meter, whose measurements may share a statistic and so
+        // the head and index of their series; grown on demand, as a custom meter may measure more than that
+        @Nullable
+        private long[] lastShipped;
+
+        @Nullable
+        private int[] unchangedSteps;
+
+        /**
+         * @param heartbeatSteps Resend an unchanged value after this many steps, or zero to never suppress it.
+         * @param stepBased      {@code true} for a meter accumulated over a step, whose values are only unchanged
+         *                       while they are zero.
+         * @param custom         {@code true} for a custom meter, whose values are told apart by their slot.
+         * @param symbols        The label strings of the heads, acquired from the symbol table of the cache.
+         */
+        Series(byte[][] heads, byte[] tail, int heartbeatSteps, boolean stepBased, boolean custom, long routingHash,
+               int group, @Nullable Distribution distribution, String[] symbols) {
+            this.heads = heads;
+            this.tail = tail;
+            this.heartbeatSteps = heartbeatSteps;
+            this.stepBased = stepBased;
+            this.custom = custom;
+            this.routingHash = routingHash;
+            this.group = group;
+            this.distribution = distribution;
+            this.symbols = symbols;
+            if (heartbeatSteps > 0) {
+                this.lastShipped = new long[series()];
+                this.unchangedSteps = new int[series()];
+                // the first value of a series is always shipped
+                forgetShipped();
+            } else {
+                this.lastShipped = null;
+                this.unchangedSteps = null;
+            }
+        }
+
+        /**
+         * @return The head of the series of the given index, among the series of the meter followed by those of
+         * its {@link Distribution}.
+         */
+        byte[] head(int index) {
+            if (index < heads.length) {
+                return heads[index];
+            }
+            int series = index - heads.length;
+            return series < distribution.percentiles() ? distribution.percentileHead(series)
+                    : distribution.bucketHead(series - distribution.percentiles());
+        }
+
+        byte[] tail(int index) {
+            if (index < heads.length) {
+                return tail;
+            }
+            int series = index - heads.length;
+            return series < distribution.percentiles() ? distribution.percentileTail(series)
+                    : distribution.bucketTail(series - distribution.percentiles());
+        }
+
+        /**
+         * @return The number of series of the meter, including those of its {@link Distribution}. Custom meters
+         * have as many as they have measurements instead.
+         */
+        int series() {
+            return heads.length + (distribution == null ? 0 : distribution.series());
+        }
+
+        long routingHash() {
+            return routingHash;
+        }
+
+        int group() {
+            return group;
+        }
+
+        @Nullable
+        Distribution distribution() {
+            return distribution;
+        }
+
+        int percentileIndex(int percentile) {
+            return heads.length + percentile;
+        }
+
+        int bucketIndex(int bucket) {
+            return heads.length + distribution.percentileTails.length + bucket;
+        }
+
+        /**
+         * Compares {@code value} to the last value shipped for the series, and remembers it if it is to be
+         * shipped. Called only from the publishing thread. A step-based meter that repeats a non-zero value had
+         * activity in each of those steps, so only its idle steps are unchanged.
+         *
+         * @param slot The slot of the value among those of the meter in the snapshot, which tells the values of a
+         *             custom meter apart.
+         * @return {@code true} if the value has not changed since it was last shipped and the heartbeat is not
+         * due yet.
+         */
+        boolean suppress(int index, int slot, double value) {
+            if (lastShipped == null) {
+                return false;
+            }
+            if (custom) {
+                index = slot;
+                if (index >= lastShipped.length) {
+                    int length = lastShipped.length;
+                    lastShipped = Arrays.copyOf(lastShipped, index + 1);
+                    unchangedSteps = Arrays.copyOf(unchangedSteps, index + 1);
+                    // as after forgetShipped, so that the first value of the slot is shipped
+                    Arrays.fill(unchangedSteps, length, index + 1, heartbeatSteps - 1);
+                }
+            }
+            long bits = Double.doubleToLongBits(value);
+            if (bits == lastShipped[index] && (!stepBased || value == 0) && ++unchangedSteps[index] < heartbeatSteps) {
+                return true;
+            }
+            lastShipped[index] = bits;
+            unchangedSteps[index] = 0;
+            return false;
+        }
+
+        /**
+         * Makes the next value of every series due, whether it changed or not.
+         */
+        void forgetShipped() {
+            if (unchangedSteps != null) {
+                Arrays.fill(unchangedSteps, heartbeatSteps - 1);
+            }
+        }
+
+    }
+
+    /**
+     * The fragments of the percentile and histogram series of a meter. In JSON, both kinds share a head per
+     * meter, the percentile or bucket is a tag and so is part of the tail.
+     */
+    static final class Distribution {
+        private final byte[][] percentileHeads;
+        private final byte[][] percentileTails;
+        private final byte[][] bucketHeads;
+        private final byte[][] bucketTails;
+
+        Distribution(byte[][] percentileHeads, byte[][] percentileTails, byte[][] bucketHeads, byte[][] bucketTails) {
+            this.percentileHeads = percentileHeads;
+            this.percentileTails = percentileTails;
+            this.bucketHeads = bucketHeads;
+            this.bucketTails = bucketTails;
+        }
+
+        int series() {
+            return percentileTails.length + bucketTails.length;
+        }
+
+        int percentiles() {
+            return percentileTails.length;
+        }
+
+        byte[] percentileHead(int percentile) {
+            return percentileHeads[percentile];
+        }
+
+        byte[] percentileTail(int percentile) {
+            return percentileTails[percentile];
+        }
+
+        int buckets() {
+            return bucketTails.length;
+        }
+
+        byte[] bucketHead(int bucket) {
+            return bucketHeads[bucket];
+        }
+
+        byte[] bucketTail(int bucket) {
+            return bucketTails[bucket];
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.micrometer.nightingale;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Consistent hash ring over the n9e transfers of {@link NightingaleConfig#uris()}. Every transfer owns
+ * {@link #VIRTUAL_NODES} points of the ring, and a series belongs to the owner of the first point at or after
+ * its hash, so that it always reaches the same transfer and adding or removing a transfer only moves the series
+ * of that transfer.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eShardRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] points;
+    private final int[] owners;
+    private final int shards;
+
+    N9eShardRing(List<String> uris) {
+        this.shards = uris.size();
+        long[][] nodes = new long[shards * VIRTUAL_NODES][];
+        int n = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                nodes[n++] = new long[]{mix(hash(hash(FNV_OFFSET_BASIS, uris.get(shard)), "#" + i)), shard};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[nodes.length];
+        this.owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    int shards() {
+        return shards;
+    }
+
+    /**
+     * @return The shard owning {@code hash}, or the next one on the ring that is {@code healthy} when it is not.
+     * If no shard is healthy, the owner is returned anyway.
+     */
+    int route(long hash, IntPredicate healthy) {
+        int start = Arrays.binarySearch(points, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int owner = owners[start % points.length];
+        if (healthy.test(owner)) {
+            return owner;
+        }
+        for (int i = 1; i < points.length; i++) {
+            int candidate = owners[(start + i) % points.length];
+            if (candidate != owner && healthy.test(candidate)) {
+                return candidate;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes of {@code s}, continuing from {@code hash}.
+     */
+    static long hash(long hash, String s) {
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static long hashStart() {
+        return FNV_OFFSET_BASIS;
+    }
+
+    /**
+     * Spreads the bits of a FNV hash over the whole ring, as the finalizer of MurmurHash3 does.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
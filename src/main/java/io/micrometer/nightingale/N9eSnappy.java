@@ -0,0 +1,234 @@
+package io.micrometer.nightingale;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses a batch into the snappy block format required by Prometheus remote-write, following the greedy
+ * algorithm of the reference implementation. The hash table and the output buffer are reused across batches,
+ * so compressing allocates nothing but the returned copy. A batch is only decompressed to be split again.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eSnappy {
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int HASH_BITS = 14;
+    // the reference implementation never looks for a match in the last 15 bytes of a block
+    private static final int INPUT_MARGIN = 15;
+
+    private final short[] table = new short[1 << HASH_BITS];
+    private byte[] out;
+    private int count;
+
+    N9eSnappy(int initialCapacity) {
+        this.out = new byte[Math.max(initialCapacity, 64)];
+    }
+
+    /**
+     * @return The first {@code length} bytes of {@code in}, compressed.
+     */
+    byte[] compress(byte[] in, int length) {
+        count = 0;
+        ensureCapacity(32 + length + length / 6);
+        writeVarint(length);
+        for (int start = 0; start < length; start += BLOCK_SIZE) {
+            compressBlock(in, start, Math.min(BLOCK_SIZE, length - start));
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Decompresses a complete snappy block, such as a batch to split again.
+     *
+     * @throws IOException If {@code in} is not a valid snappy block.
+     */
+    static byte[] uncompress(byte[] in) throws IOException {
+        int ip = 0;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (ip == in.length || shift > 28) {
+                throw new IOException("malformed snappy length");
+            }
+            byte b = in[ip++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        byte[] out = new byte[length];
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int tag = in[ip++] & 0xff;
+                int offset;
+                int n;
+                switch (tag & 3) {
+                    case 0:
+                        n = tag >>> 2;
+                        if (n >= 60) {
+                            int bytes = n - 59;
+                            n = 0;
+                            for (int i = 0; i < bytes; i++) {
+                                n |= (in[ip++] & 0xff) << (i << 3);
+                            }
+                        }
+                        n++;
+                        System.arraycopy(in, ip, out, op, n);
+                        ip += n;
+                        op += n;
+                        continue;
+                    case 1:
+                        n = 4 + ((tag >>> 2) & 7);
+                        offset = (tag >>> 5) << 8 | in[ip++] & 0xff;
+                        break;
+                    case 2:
+                        n = 1 + (tag >>> 2);
+                        offset = in[ip] & 0xff | (in[ip + 1] & 0xff) << 8;
+                        ip += 2;
+                        break;
+                    default:
+                        n = 1 + (tag >>> 2);
+                        offset = load32(in, ip);
+                        ip += 4;
+                        break;
+                }
+                if (offset <= 0 || offset > op || op + n > length) {
+                    throw new IOException("malformed snappy copy");
+                }
+                // the copy may overlap what it produces, so it goes byte by byte
+                for (int i = 0; i < n; i++, op++) {
+                    out[op] = out[op - offset];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated snappy block", e);
+        }
+        if (op != length) {
+            throw new IOException("snappy block holds " + op + " bytes instead of " + length);
+        }
+        return out;
+    }
+
+    private void compressBlock(byte[] in, int base, int length) {
+        int end = base + length;
+        if (length < INPUT_MARGIN + 2) {
+            emitLiteral(in, base, length);
+            return;
+        }
+        Arrays.fill(table, (short) 0);
+        int limit = end - INPUT_MARGIN;
+        int nextEmit = base;
+        int ip = base + 1;
+
+        while (true) {
+            // look for a match, skipping ahead faster the longer none is found
+            int skip = 32;
+            int candidate;
+            do {
+                int next = ip + (skip++ >> 5);
+                if (next > limit) {
+                    emitLiteral(in, nextEmit, end - nextEmit);
+                    return;
+                }
+                int h = hash(load32(in, ip));
+                candidate = base + (table[h] & 0xffff);
+                table[h] = (short) (ip - base);
+                if (load32(in, ip) == load32(in, candidate) && candidate < ip) {
+                    break;
+                }
+                ip = next;
+            } while (true);
+
+            emitLiteral(in, nextEmit, ip - nextEmit);
+            do {
+                int matched = 4 + matchLength(in, candidate + 4, ip + 4, end);
+                emitCopy(ip - candidate, matched);
+                ip += matched;
+                nextEmit = ip;
+                if (ip >= limit) {
+                    emitLiteral(in, nextEmit, end - nextEmit);
+                    return;
+                }
+                table[hash(load32(in, ip - 1))] = (short) (ip - 1 - base);
+                int h = hash(load32(in, ip));
+                candidate = base + (table[h] & 0xffff);
+                table[h] = (short) (ip - base);
+            } while (load32(in, ip) == load32(in, candidate) && candidate < ip);
+            ip++;
+        }
+    }
+
+    private static int matchLength(byte[] in, int candidate, int ip, int end) {
+        int matched = 0;
+        while (ip + matched < end && in[candidate + matched] == in[ip + matched]) {
+            matched++;
+        }
+        return matched;
+    }
+
+    private void emitLiteral(byte[] in, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        int n = length - 1;
+        if (n < 60) {
+            out[count++] = (byte) (n << 2);
+        } else if (n < 1 << 8) {
+            out[count++] = (byte) (60 << 2);
+            out[count++] = (byte) n;
+        } else {
+            // a block is at most 64 KiB, so two bytes always fit the length
+            out[count++] = (byte) (61 << 2);
+            out[count++] = (byte) n;
+            out[count++] = (byte) (n >> 8);
+        }
+        System.arraycopy(in, offset, out, count, length);
+        count += length;
+    }
+
+    private void emitCopy(int offset, int length) {
+        while (length >= 68) {
+            emitShortCopy(offset, 64);
+            length -= 64;
+        }
+        if (length > 64) {
+            emitShortCopy(offset, 60);
+            length -= 60;
+        }
+        emitShortCopy(offset, length);
+    }
+
+    private void emitShortCopy(int offset, int length) {
+        if (length < 12 && offset < 2048) {
+            out[count++] = (byte) (1 | ((length - 4) << 2) | ((offset >> 8) << 5));
+            out[count++] = (byte) offset;
+        } else {
+            out[count++] = (byte) (2 | ((length - 1) << 2));
+            out[count++] = (byte) offset;
+            out[count++] = (byte) (offset >> 8);
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            out[count++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[count++] = (byte) value;
+    }
+
+    private static int load32(byte[] in, int i) {
+        return (in[i] & 0xff) | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff) << 16 | (in[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int bytes) {
+        return (bytes * 0x1e35a7bd) >>> (32 - HASH_BITS);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > out.length) {
+            out = new byte[Math.max(out.length << 1, capacity)];
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The values of every series of a publish cycle, captured before any of them is encoded, so that encoding and
+ * sending read a frozen snapshot instead of meters that keep changing over a long cycle. The values are stored
+ * in columns: the series of meter {@code i} occupy the slots from {@link #offset(int) offset(i)}, each with its
+ * value and its index among the series of the {@link N9eSeriesCache.Series}, or {@code -1} if it was not
+ * captured, e.g. a non-finite percentile. Large snapshots are captured in parallel, by the calling thread and
+ * the threads of a pool of the registry, each claiming ranges of meters until there are none left. A gauge that
+ * blocks thus only ever holds up the threads of that pool, never those of the application.
+ * <p>
+ * The columns only grow, and are reused by every cycle. A snapshot is not thread-safe, except that the slots
+ * of different meters may be captured concurrently.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eSnapshot {
+    /**
+     * The number of meters below which a snapshot is captured on the calling thread, and the size of the ranges
+     * captured in parallel above it.
+     */
+    static final int PARALLEL_THRESHOLD = 2048;
+
+    private Meter[] meters = new Meter[16];
+    private N9eSeriesCache.Series[] series = new N9eSeriesCache.Series[16];
+    private int[] offsets = new int[17];
+    private double[] values = new double[64];
+    private int[] indexes = new int[64];
+    private int size;
+    private long timestamp;
+    // the pool of the threads that help the calling one capture, null to capture on the calling thread only
+    @Nullable
+    private final Executor executor;
+    private final int threads;
+
+    N9eSnapshot() {
+        this(null, 1);
+    }
+
+    /**
+     * @param threads The number of threads capturing a large snapshot, the calling one included, so that at
+     *                most {@code threads - 1} tasks are submitted to {@code executor}.
+     */
+    N9eSnapshot(@Nullable Executor executor, int threads) {
+        this.executor = threads > 1 ? executor : null;
+        this.threads = threads;
+    }
+
+    /**
+     * Reads the values of the series of a meter into the snapshot, with {@link #set}.
+     */
+    @FunctionalInterface
+    interface Capture {
+        void capture(N9eSnapshot snapshot, int meter);
+    }
+
+    /**
+     * @param timestamp The timestamp of every point of the snapshot, in seconds.
+     */
+    void begin(long timestamp) {
+        this.size = 0;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Reserves {@code slots} slots for the series of {@code meter}, none of which is captured yet.
+     */
+    void add(Meter meter, N9eSeriesCache.Series s, int slots) {
+        if (size == meters.length) {
+            int capacity = meters.length << 1;
+            meters = Arrays.copyOf(meters, capacity);
+            series = Arrays.copyOf(series, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        int start = offsets[size];
+        int end = start + slots;
+        if (end > values.length) {
+            int capacity = Math.max(values.length << 1, end);
+            values = Arrays.copyOf(values, capacity);
+            indexes = Arrays.copyOf(indexes, capacity);
+        }
+        Arrays.fill(indexes, start, end, -1);
+        meters[size] = meter;
+        series[size] = s;
+        offsets[++size] = end;
+    }
+
+    /**
+     * Captures the values of every meter, in parallel once there are more than {@link #PARALLEL_THRESHOLD}. Returns
+     * once every meter is captured, whether the pool ran its share or rejected it.
+     */
+    void capture(Capture capture) {
+        int ranges = (size + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD;
+        if (executor == null || ranges <= 1) {
+            for (int i = 0; i < size; i++) {
+                capture.capture(this, i);
+            }
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        int helpers = Math.min(threads - 1, ranges - 1);
+        CountDownLatch done = new CountDownLatch(helpers);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        captureRanges(capture, next);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // e.g. the registry is closing, the calling thread captures the ranges that task would have
+                done.countDown();
+            }
+        }
+        captureRanges(capture, next);
+        // the helpers still write to the columns until they are done, so the wait is not cut short by an interrupt
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void captureRanges(Capture capture, AtomicInteger next) {
+        for (int from; (from = next.getAndAdd(PARALLEL_THRESHOLD)) < size; ) {
+            for (int i = from, to = Math.min(from + PARALLEL_THRESHOLD, size); i < to; i++) {
+                capture.capture(this, i);
+            }
+        }
+    }
+
+    /**
+     * Drops the meters, which are not to be held on to until the next cycle.
+     */
+    void end() {
+        Arrays.fill(meters, 0, size, null);
+        Arrays.fill(series, 0, size, null);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    Meter meter(int meter) {
+        return meters[meter];
+    }
+
+    N9eSeriesCache.Series series(int meter) {
+        return series[meter];
+    }
+
+    int offset(int meter) {
+        return offsets[meter];
+    }
+
+    int slots(int meter) {
+        return offsets[meter + 1] - offsets[meter];
+    }
+
+    /**
+     * @param slot  The slot among those of the meter.
+     * @param index The index of the series among those of the meter, see {@link N9eSeriesCache.Series#head}.
+     */
+    void set(int meter, int slot, int index, double value) {
+        int i = offsets[meter] + slot;
+        values[i] = value;
+        indexes[i] = index;
+    }
+
+    /**
+     * Captures the series of the given index into the slot of the same number.
+     */
+    void set(int meter, int index, double value) {
+        set(meter, index, index, value);
+    }
+
+    /**
+     * @return The index of the series captured in the slot, or {@code -1} if none was.
+     */
+    int index(int slot) {
+        return indexes[slot];
+    }
+
+    double value(int slot) {
+        return values[slot];
+    }
+}
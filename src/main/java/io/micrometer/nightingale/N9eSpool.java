@@ -0,0 +1,345 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead spool for batches that could not be sent to n9e. Batches are appended to memory-mapped
+ * segment files of {@link NightingaleConfig#spoolSegmentBytes()} each; when the spool would exceed
+ * {@link NightingaleConfig#spoolMaxBytes()}, the oldest segment is dropped. Batches are replayed oldest first and
+ * the replay position is stored in the segment itself, so the spool survives a restart of the JVM.
+ * <p>
+ * Segment layout: a 16 byte header (magic, version, replay offset) followed by records of
+ * {@code [int length][int crc32][byte compression][payload]}. A zero length marks the end of the written data.
+ * The compression is stored as a code of its own, see {@link #code(NightingaleCompression)}, so reordering or
+ * adding constants of {@link NightingaleCompression} never changes how spooled batches are read back.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eSpool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(N9eSpool.class);
+
+    private static final String PREFIX = "n9e-spool-";
+    private static final String SUFFIX = ".seg";
+    private static final int MAGIC = 0x4e394553;
+    private static final int VERSION = 1;
+    private static final int READ_OFFSET_POSITION = 8;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_HEADER_BYTES = 9;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSequence;
+
+    N9eSpool(Path directory, int segmentBytes, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * @return {@code false} if the batch is larger than a segment and was dropped.
+     */
+    synchronized boolean append(byte[] payload, NightingaleCompression compression) throws IOException {
+        int recordBytes = RECORD_HEADER_BYTES + payload.length;
+        if (HEADER_BYTES + recordBytes > segmentBytes) {
+            logger.warn("dropping a batch of {} bytes which is larger than a spool segment", payload.length);
+            return false;
+        }
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.sealed || segment.writePosition + recordBytes > segmentBytes) {
+            segment = rotate();
+        }
+
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + 8, code(compression));
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + RECORD_HEADER_BYTES);
+        body.put(payload);
+        // the length is written last so a torn record is never read back
+        buffer.putInt(position, payload.length);
+        segment.writePosition += recordBytes;
+        return true;
+    }
+
+    /**
+     * @return The oldest batch that has not been replayed yet, or {@code null} if the spool is empty.
+     */
+    @Nullable
+    synchronized Record peek() {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            if (segment.readPosition < segment.writePosition) {
+                MappedByteBuffer buffer = segment.buffer;
+                int position = segment.readPosition;
+                int length = buffer.getInt(position);
+                NightingaleCompression compression = compression(buffer.get(position + 8));
+                if (compression == null) {
+                    // only if the file was changed since it was scanned, as appending never writes such a code
+                    logger.warn("spool segment {} is corrupt after offset {}, discarding the rest of it", segment.path, position);
+                    segment.readPosition = segment.writePosition;
+                    buffer.putInt(READ_OFFSET_POSITION, segment.readPosition);
+                    continue;
+                }
+                byte[] payload = new byte[length];
+                ByteBuffer body = buffer.duplicate();
+                body.position(position + RECORD_HEADER_BYTES);
+                body.get(payload);
+                return new Record(segment, position + RECORD_HEADER_BYTES + length, payload, compression);
+            }
+            if (segment == segments.peekLast()) {
+                return null;
+            }
+            delete(segments.pollFirst());
+        }
+        return null;
+    }
+
+    /**
+     * Marks {@code record}, which must be the last one returned by {@link #peek()}, as replayed.
+     */
+    synchronized void commit(Record record) {
+        Segment segment = record.segment;
+        if (segments.peekFirst() != segment || record.nextPosition <= segment.readPosition) {
+            // the segment was dropped or the record was already committed
+            return;
+        }
+        segment.readPosition = record.nextPosition;
+        segment.buffer.putInt(READ_OFFSET_POSITION, segment.readPosition);
+        if (segment.readPosition >= segment.writePosition && segment != segments.peekLast()) {
+            delete(segments.pollFirst());
+        }
+    }
+
+    /**
+     * @return The number of bytes of batches that have not been replayed yet.
+     */
+    synchronized long pendingBytes() {
+        long pending = 0;
+        for (Segment segment : segments) {
+            pending += segment.writePosition - segment.readPosition;
+        }
+        return pending;
+    }
+
+    private Segment rotate() throws IOException {
+        Segment current = segments.peekLast();
+        if (current != null) {
+            current.buffer.force();
+        }
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.pollFirst();
+            if (oldest.readPosition < oldest.writePosition) {
+                logger.warn("n9e spool is full, dropping {} bytes of unsent batches", oldest.writePosition - oldest.readPosition);
+            }
+            delete(oldest);
+        }
+        Segment segment = open(directory.resolve(String.format("%s%020d%s", PREFIX, nextSequence++, SUFFIX)), true);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // zero padded sequence numbers sort in creation order
+        Collections.sort(files);
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (Files.size(file) != segmentBytes) {
+                    logger.warn("discarding spool segment {} written with a different segment size", file);
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                Segment segment = open(file, false);
+                // appending always starts a new segment, so a torn tail is never overwritten
+                segment.sealed = true;
+                if (segment.readPosition >= segment.writePosition) {
+                    delete(segment);
+                } else {
+                    segments.addLast(segment);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("discarding unreadable spool segment " + file, e);
+                Files.deleteIfExists(file);
+            }
+        }
+        while (segments.size() > maxSegments) {
+            delete(segments.pollFirst());
+        }
+    }
+
+    private Segment open(Path file, boolean create) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            Segment segment = new Segment(file, buffer);
+            if (create) {
+                buffer.putInt(4, VERSION);
+                buffer.putInt(READ_OFFSET_POSITION, HEADER_BYTES);
+                buffer.putInt(0, MAGIC);
+                segment.readPosition = HEADER_BYTES;
+                segment.writePosition = HEADER_BYTES;
+                return segment;
+            }
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("not a spool segment");
+            }
+            segment.readPosition = buffer.getInt(READ_OFFSET_POSITION);
+            segment.writePosition = scan(buffer, segment.readPosition);
+            return segment;
+        }
+    }
+
+    /**
+     * @return The position right after the last intact record, which is where appending continues.
+     */
+    private int scan(MappedByteBuffer buffer, int from) {
+        int position = HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= segmentBytes) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > segmentBytes) {
+                break;
+            }
+            if (position >= from) {
+                crc.reset();
+                for (int i = 0; i < length; i++) {
+                    crc.update(buffer.get(position + RECORD_HEADER_BYTES + i));
+                }
+                if ((int) crc.getValue() != buffer.getInt(position + 4) || compression(buffer.get(position + 8)) == null) {
+                    logger.warn("spool segment is corrupt after offset {}, discarding the rest of it", position);
+                    break;
+                }
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return The code a compression is stored with, which must never change for a given constant. The codes are
+     * the ordinals the constants had when the codes were introduced, so older segments read back the same.
+     */
+    static byte code(NightingaleCompression compression) {
+        switch (compression) {
+            case NONE:
+                return 0;
+            case GZIP:
+                return 1;
+            case DEFLATE:
+                return 2;
+            case SNAPPY:
+                return 3;
+            default:
+                throw new IllegalArgumentException("no spool code for " + compression);
+        }
+    }
+
+    /**
+     * @return The compression stored with {@code code}, or {@code null} if there is none, i.e. the record is corrupt.
+     */
+    @Nullable
+    static NightingaleCompression compression(byte code) {
+        switch (code) {
+            case 0:
+                return NightingaleCompression.NONE;
+            case 1:
+                return NightingaleCompression.GZIP;
+            case 2:
+                return NightingaleCompression.DEFLATE;
+            case 3:
+                return NightingaleCompression.SNAPPY;
+            default:
+                return null;
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("failed to delete spool segment " + segment.path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        private boolean sealed;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A spooled batch, together with the compression its payload was encoded with.
+     */
+    static final class Record {
+        private final Segment segment;
+        private final int nextPosition;
+        private final byte[] payload;
+        private final NightingaleCompression compression;
+
+        Record(Segment segment, int nextPosition, byte[] payload, NightingaleCompression compression) {
+            this.segment = segment;
+            this.nextPosition = nextPosition;
+            this.payload = payload;
+            this.compression = compression;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+
+        NightingaleCompression compression() {
+            return compression;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns every meter to a step group after {@link NightingaleConfig#stepOverrides()}. There is one group per
+ * distinct step, the first being that of {@link NightingaleConfig#step()}, so the overrides that share a step
+ * also share a publish schedule. A tag override is looked for first, in the order they are given, then the
+ * longest prefix of the meter name; meters that match neither are in the first group.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eStepGroups {
+    static final int DEFAULT_GROUP = 0;
+
+    private final List<Duration> steps = new ArrayList<>();
+    private final List<String[]> tags = new ArrayList<>();
+    private final List<Integer> tagGroups = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<Integer> prefixGroups = new ArrayList<>();
+
+    N9eStepGroups(NightingaleConfig config) {
+        this(config.step(), config.stepOverrides());
+    }
+
+    /**
+     * @param overrides Steps by meter name prefix, or by tag as {@code key:value}.
+     */
+    N9eStepGroups(Duration defaultStep, Map<String, Duration> overrides) {
+        steps.add(defaultStep);
+        for (Map.Entry<String, Duration> override : overrides.entrySet()) {
+            int group = steps.indexOf(override.getValue());
+            if (group < 0) {
+                group = steps.size();
+                steps.add(override.getValue());
+            }
+            String selector = override.getKey();
+            int colon = selector.indexOf(':');
+            if (colon >= 0) {
+                tags.add(new String[]{selector.substring(0, colon), selector.substring(colon + 1)});
+                tagGroups.add(group);
+            } else {
+                prefixes.add(selector);
+                prefixGroups.add(group);
+            }
+        }
+    }
+
+    int group(Meter.Id id) {
+        for (int i = 0; i < tags.size(); i++) {
+            String[] tag = tags.get(i);
+            if (tag[1].equals(id.getTag(tag[0]))) {
+                return tagGroups.get(i);
+            }
+        }
+        String name = id.getName();
+        int group = DEFAULT_GROUP;
+        int longest = -1;
+        for (int i = 0; i < prefixes.size(); i++) {
+            String prefix = prefixes.get(i);
+            if (prefix.length() > longest && name.startsWith(prefix)) {
+                group = prefixGroups.get(i);
+                longest = prefix.length();
+            }
+        }
+        return group;
+    }
+
+    Duration step(int group) {
+        return steps.get(group);
+    }
+
+    int size() {
+        return steps.size();
+    }
+}
@@ -0,0 +1,61 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the UTF-8 encoding of the label names and values of remote-write series. Most labels are shared by
+ * many series, such as the endpoint, tag keys and bucket bounds, so each distinct string is encoded once for as
+ * long as a series uses it, whichever cycle the series are created in. A series {@link #release releases} the
+ * strings it {@link #acquire acquired} once it is dropped, and a string no series uses any more is forgotten, so
+ * that the strings of meters which are gone do not pile up.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class N9eSymbolTable {
+    private final ConcurrentMap<String, Symbol> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * @return The UTF-8 encoding of {@code s}, which must not be modified, counting one more use of it.
+     */
+    byte[] acquire(String s) {
+        return symbols.compute(s, (k, symbol) -> symbol == null ? new Symbol(k) : symbol.use()).utf8;
+    }
+
+    /**
+     * Counts one use of {@code s} less, forgetting it after the last one.
+     */
+    void release(String s) {
+        symbols.computeIfPresent(s, (k, symbol) -> --symbol.uses == 0 ? null : symbol);
+    }
+
+    // VisibleForTesting
+    @Nullable
+    byte[] interned(String s) {
+        Symbol symbol = symbols.get(s);
+        return symbol == null ? null : symbol.utf8;
+    }
+
+    int size() {
+        return symbols.size();
+    }
+
+    private static final class Symbol {
+        private final byte[] utf8;
+        // updated within the compute functions of the map only
+        private int uses = 1;
+
+        Symbol(String s) {
+            this.utf8 = s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        Symbol use() {
+            uses++;
+            return this;
+        }
+    }
+}
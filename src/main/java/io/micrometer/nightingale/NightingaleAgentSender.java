@@ -0,0 +1,199 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.lang.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes batches to an n9e agent, or a stand-in listener, on the local host without waiting for any response.
+ * Whatever the URL of a request, its body is sent to the {@link NightingaleConfig#agentAddress() agent address}
+ * as one datagram over {@link NightingaleTransport#UDP UDP}, or as a frame prefixed with its length as a 4 byte
+ * big-endian integer over {@link NightingaleTransport#TCP TCP} or a {@link NightingaleTransport#UNIX Unix domain
+ * socket}. Every batch holds many points, so sending one costs a single write from a reused direct buffer.
+ * <p>
+ * Requests are answered with {@code 202 Accepted} as soon as they are written. A failed write throws, so the
+ * batch is retried or spooled like any other, and the connection is opened again for the next one. A batch too
+ * large for a datagram is answered with {@code 413} instead, which makes the batches smaller.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public class NightingaleAgentSender implements HttpSender, AutoCloseable {
+    static final int FRAME_HEADER_BYTES = 4;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final NightingaleTransport transport;
+    private final String address;
+    private final int maxDatagramBytes;
+
+    // guarded by this
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    @Nullable
+    private WritableByteChannel channel;
+    private boolean closed;
+
+    public NightingaleAgentSender(NightingaleConfig config) {
+        this(config.transport(), config.agentAddress(), config.maxDatagramBytes());
+    }
+
+    /**
+     * @param address The {@code host:port} of the agent, or the path of its socket for
+     *                {@link NightingaleTransport#UNIX}.
+     */
+    public NightingaleAgentSender(NightingaleTransport transport, String address, int maxDatagramBytes) {
+        if (transport == NightingaleTransport.HTTP) {
+            throw new IllegalArgumentException("the agent sender does not send over HTTP");
+        }
+        if (transport == NightingaleTransport.UNIX && !unixDomainSocketsSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+        }
+        if (transport != NightingaleTransport.UNIX && !isHostAndPort(address)) {
+            throw new IllegalArgumentException("invalid agent address " + address + ", must be host:port");
+        }
+        this.transport = transport;
+        this.address = address;
+        this.maxDatagramBytes = maxDatagramBytes;
+    }
+
+    @Override
+    public synchronized Response send(Request request) throws IOException {
+        if (closed) {
+            throw new IOException("sender is closed");
+        }
+        byte[] entity = request.getEntity();
+        boolean datagram = transport == NightingaleTransport.UDP;
+        if (datagram && entity.length > maxDatagramBytes) {
+            return new Response(413, "a batch of " + entity.length + " bytes does not fit in a datagram");
+        }
+
+        int frameBytes = datagram ? entity.length : FRAME_HEADER_BYTES + entity.length;
+        if (frameBytes > buffer.capacity()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(buffer.capacity() << 1, frameBytes));
+        }
+        buffer.clear();
+        if (!datagram) {
+            buffer.putInt(entity.length);
+        }
+        buffer.put(entity).flip();
+
+        try {
+            WritableByteChannel channel = channel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException | RuntimeException e) {
+            // a frame may have been written in part, so the stream cannot be used any more
+            closeChannel();
+            throw e;
+        }
+        return new Response(202, "");
+    }
+
+    private WritableByteChannel channel() throws IOException {
+        if (channel == null) {
+            switch (transport) {
+                case UDP:
+                    DatagramChannel datagramChannel = DatagramChannel.open();
+                    channel = datagramChannel;
+                    datagramChannel.connect(resolve(address));
+                    break;
+                case TCP:
+                    SocketChannel socketChannel = SocketChannel.open();
+                    channel = socketChannel;
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    socketChannel.connect(resolve(address));
+                    break;
+                default:
+                    channel = openUnixDomainSocket(address);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Opens a Unix domain socket through reflection, as the API only exists from Java 16 on.
+     */
+    private static SocketChannel openUnixDomainSocket(String path) throws IOException {
+        SocketChannel channel;
+        SocketAddress socketAddress;
+        try {
+            socketAddress = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+            channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later", e);
+        }
+        try {
+            channel.connect(socketAddress);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static boolean unixDomainSocketsSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code address} is a host, or a bracketed IPv6 address, and a port.
+     */
+    static boolean isHostAndPort(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(address.substring(colon + 1));
+            return port > 0 && port < 65536;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static InetSocketAddress resolve(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                /* ignore */
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeChannel();
+    }
+}
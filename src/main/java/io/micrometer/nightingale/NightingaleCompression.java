@@ -0,0 +1,47 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.lang.Nullable;
+
+/**
+ * Compression applied to the request bodies pushed to n9e.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public enum NightingaleCompression {
+    /**
+     * Send the JSON payload as is.
+     */
+    NONE(null),
+
+    /**
+     * Send a gzip stream with {@code Content-Encoding: gzip}.
+     */
+    GZIP("gzip"),
+
+    /**
+     * Send a zlib stream with {@code Content-Encoding: deflate}.
+     */
+    DEFLATE("deflate"),
+
+    /**
+     * Send a snappy block with {@code Content-Encoding: snappy}. Only for {@link NightingaleFormat#REMOTE_WRITE},
+     * which always uses it.
+     */
+    SNAPPY("snappy");
+
+    @Nullable
+    private final String contentEncoding;
+
+    NightingaleCompression(@Nullable String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return The value of the {@code Content-Encoding} header, or {@code null} when the body is not compressed.
+     */
+    @Nullable
+    public String contentEncoding() {
+        return contentEncoding;
+    }
+}
@@ -1,5 +1,7 @@
 package io.micrometer.nightingale;
 
+import io.micrometer.core.instrument.config.validate.DurationValidator;
+import io.micrometer.core.instrument.config.validate.InvalidReason;
 import io.micrometer.core.instrument.config.validate.PropertyValidator;
 import io.micrometer.core.instrument.config.validate.Validated;
 import io.micrometer.core.instrument.step.StepRegistryConfig;
@@ -7,8 +9,16 @@ import io.micrometer.core.lang.Nullable;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import static io.micrometer.core.instrument.config.MeterRegistryConfigValidator.check;
 import static io.micrometer.core.instrument.config.MeterRegistryConfigValidator.checkAll;
 import static io.micrometer.core.instrument.config.MeterRegistryConfigValidator.checkRequired;
 import static io.micrometer.core.instrument.config.validate.PropertyValidator.*;
@@ -31,18 +41,86 @@ public interface NightingaleConfig extends StepRegistryConfig {
     }
 
     /**
-     * @return Global tag
+     * @return Global tags, added to every meter as a comma-separated list of {@code key=value}, such as
+     * {@code device=sda}. A tag of the meter itself takes precedence. The default is none.
      */
     default String tags(){
-        return getString(this,"tags").orElse("tag");
+        return getString(this,"tags").orElse("");
+    }
+
+    /**
+     * @return The {@link #tags() global tags} by key.
+     */
+    default Map<String, String> commonTags() {
+        return N9eMeterRules.pairs(prefix() + ".tags", tags());
+    }
+
+    /**
+     * @return Prefixes of the names of the meters to publish, as a comma-separated list, such as
+     * {@code http,jvm.memory}. Meters that match none are dropped when they are registered. The default is
+     * none, which publishes every meter not {@link #exclude() excluded}.
+     */
+    default List<String> include() {
+        return N9eMeterRules.list(getString(this, "include").orElse(""));
+    }
+
+    /**
+     * @return Prefixes of the names of the meters to drop when they are registered, as a comma-separated list.
+     * A meter matching both an include and an exclude prefix follows the longer one, so {@code jvm} can be
+     * excluded while {@code jvm.memory} is included. The default is none.
+     */
+    default List<String> exclude() {
+        return N9eMeterRules.list(getString(this, "exclude").orElse(""));
+    }
+
+    /**
+     * @return The keys of the tags removed from every meter, as a comma-separated list. The default is none.
+     */
+    default List<String> dropTags() {
+        return N9eMeterRules.list(getString(this, "dropTags").orElse(""));
+    }
+
+    /**
+     * @return Tag keys to rename on every meter, as a comma-separated list of {@code key=newKey}, such as
+     * {@code uri=path}. The default is none.
+     */
+    default Map<String, String> renameTags() {
+        return N9eMeterRules.pairs(prefix() + ".renameTags", getString(this, "renameTags").orElse(""));
     }
 
     /**
      * @return The URI for the n9e of agent or transfer. The default is {@code http://localhost:5810/v1/push}.
+     * Several transfers can be given separated by commas, see {@link #uris()}.
      */
     @Nullable
     default String uri() {
-        return getUrlString(this, "url").orElse("http://localhost:5810/v1/push");
+        return getString(this, "url").orElse("http://localhost:5810/v1/push");
+    }
+
+    /**
+     * @return The URIs of {@link #uri()}. With more than one, series are sharded across them by consistent
+     * hashing of their name and tags, and the batches of every shard are sent concurrently.
+     */
+    default List<String> uris() {
+        String uri = uri();
+        if (uri == null) {
+            return Collections.emptyList();
+        }
+        List<String> uris = new ArrayList<>();
+        for (String u : uri.split(",")) {
+            if (!u.trim().isEmpty()) {
+                uris.add(u.trim());
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * @return How long the series of a transfer that ended a publish cycle failing are sent to the next transfer
+     * on the ring instead, when {@link #uris()} has more than one. The default is 1 minute.
+     */
+    default Duration shardRetryInterval() {
+        return getDuration(this, "shardRetryInterval").orElse(Duration.ofMinutes(1));
     }
 
 
@@ -51,32 +129,382 @@ public interface NightingaleConfig extends StepRegistryConfig {
         return (Duration) PropertyValidator.getDuration(this, "step").orElse(Duration.ofSeconds(10));
     }
 
+    /**
+     * @return Steps that differ from {@link #step()}, as a comma-separated list of {@code selector=step}. The
+     * selector is a prefix of the meter name, such as {@code http.server.requests=1s}, or a tag as
+     * {@code key:value}, such as {@code resolution:low=60s}. The meters of each step are accumulated over it and
+     * published on a schedule of their own. The default is none.
+     */
+    default Map<String, Duration> stepOverrides() {
+        String overrides = getString(this, "stepOverrides").orElse("");
+        Map<String, Duration> steps = new LinkedHashMap<>();
+        for (String override : overrides.split(",")) {
+            if (override.trim().isEmpty()) {
+                continue;
+            }
+            int equals = override.lastIndexOf('=');
+            if (equals <= 0) {
+                Validated.invalid(prefix() + ".stepOverrides", override.trim(), "must be a selector=step",
+                        InvalidReason.MALFORMED).get();
+            }
+            Duration step = DurationValidator.validate(prefix() + ".stepOverrides", override.substring(equals + 1).trim())
+                    .get();
+            steps.put(override.substring(0, equals).trim(), step);
+        }
+        return steps;
+    }
+
     default String counterType(){
         return getString(this,"counterType").orElse("GAUGE");
     }
 
 
+    /**
+     * @return The endpoint points are reported for. Defaults to the local host address, which is only looked
+     * up when no endpoint is configured, in the background once the registry starts, and is not validated.
+     */
     default String endpoint(){
-        InetAddress addr = null;
-        try {
-            addr = InetAddress.getLocalHost();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        }
-        return getString(this,"endpoint").orElse(addr.toString());
+        return getString(this,"endpoint").orElseGet(() -> {
+            try {
+                return InetAddress.getLocalHost().toString();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        });
     }
 
+    /**
+     * @return The id of the node of the n9e service tree the points belong to, written with every point in addition
+     * to the {@link #endpoint()}. The default is empty, which writes none.
+     */
     default String nid() {
         return getString(this, "nid").orElse("");
     }
 
+    /**
+     * @return The size, before compression, that batches are filled up to. Batches then hold a varying number of
+     * meters instead of {@link #batchSize()}, and their size is {@link #batchLatencyTarget() adapted} to the
+     * responses of n9e. Zero, the default, keeps batches of {@link #batchSize()} meters.
+     */
+    default int batchTargetBytes() {
+        return getInteger(this, "batchTargetBytes").orElse(0);
+    }
+
+    /**
+     * @return The maximum number of points in a batch when {@link #batchTargetBytes()} is set. The default is
+     * 10000.
+     */
+    default int batchTargetPoints() {
+        return getInteger(this, "batchTargetPoints").orElse(10000);
+    }
+
+    /**
+     * @return The size batches never shrink below when {@link #batchTargetBytes()} is set. The default is 16 KiB.
+     */
+    default int batchMinBytes() {
+        return getInteger(this, "batchMinBytes").orElse(16 * 1024);
+    }
+
+    /**
+     * @return When {@link #batchTargetBytes()} is set, batches shrink after a request takes longer than this, is
+     * rejected as too large or fails with a server error, and grow back after fast successful requests. The
+     * default is 1 second.
+     */
+    default Duration batchLatencyTarget() {
+        return getDuration(this, "batchLatencyTarget").orElse(Duration.ofSeconds(1));
+    }
+
+    /**
+     * @return The maximum number of batches being sent to n9e at the same time. With more than one, the next
+     * batch is encoded while earlier ones are still in flight. The default is 1, which sends batches one after
+     * another on the publisher thread.
+     */
+    default int maxInFlightRequests() {
+        return getInteger(this, "maxInFlightRequests").orElse(1);
+    }
+
+    /**
+     * @return The compression of request bodies. The default is {@link NightingaleCompression#NONE}; the
+     * receiving agent or transfer has to accept the corresponding {@code Content-Encoding}.
+     */
+    default NightingaleCompression compression() {
+        return getEnum(this, NightingaleCompression.class, "compression").orElse(NightingaleCompression.NONE);
+    }
+
+    /**
+     * @return The wire format of the batches. The default is {@link NightingaleFormat#JSON}, which {@link #uri()}
+     * has to point to the push API for; {@link NightingaleFormat#REMOTE_WRITE} needs the remote-write API.
+     */
+    default NightingaleFormat format() {
+        return getEnum(this, NightingaleFormat.class, "format").orElse(NightingaleFormat.JSON);
+    }
+
+    /**
+     * @return How batches reach n9e. The default is {@link NightingaleTransport#HTTP}. The other transports write
+     * batches to a local agent or listener at {@link #agentAddress()} without waiting for any response, and ignore
+     * {@link #uri()} as well as the HTTP sender of the registry.
+     */
+    default NightingaleTransport transport() {
+        return getEnum(this, NightingaleTransport.class, "transport").orElse(NightingaleTransport.HTTP);
+    }
+
+    /**
+     * @return The {@code host:port} of the local agent for the UDP and TCP {@link #transport() transports}, or the
+     * path of its socket for the Unix domain socket transport. The default is {@code 127.0.0.1:5810}.
+     */
+    default String agentAddress() {
+        return getString(this, "agentAddress").orElse("127.0.0.1:5810");
+    }
+
+    /**
+     * @return The largest datagram sent with the UDP {@link #transport()}. Batches are closed once they reach
+     * half of it, so that the meter completing a batch still fits, and a batch that does not fit anyway is
+     * dropped. The default is 65507 bytes, the most an IPv4 datagram can carry.
+     */
+    default int maxDatagramBytes() {
+        return getInteger(this, "maxDatagramBytes").orElse(65507);
+    }
+
+    /**
+     * @return The directory of the on-disk spool that batches which failed to send are written to and replayed
+     * from on later cycles. The default is {@code null}, which disables spooling and drops failed batches.
+     */
+    @Nullable
+    default String spoolDirectory() {
+        return getString(this, "spoolDirectory").orElse(null);
+    }
+
+    /**
+     * @return The maximum size of the spool in bytes. When it is full, the oldest spooled batches are dropped.
+     * The default is 64 MiB.
+     */
+    default int spoolMaxBytes() {
+        return getInteger(this, "spoolMaxBytes").orElse(64 * 1024 * 1024);
+    }
+
+    /**
+     * @return The size of each memory-mapped spool segment file in bytes. The default is 8 MiB.
+     */
+    default int spoolSegmentBytes() {
+        return getInteger(this, "spoolSegmentBytes").orElse(8 * 1024 * 1024);
+    }
+
+    /**
+     * @return The maximum number of spooled batches replayed per publish cycle. The default is 10.
+     */
+    default int spoolReplayBatchesPerCycle() {
+        return getInteger(this, "spoolReplayBatchesPerCycle").orElse(10);
+    }
+
+    /**
+     * @return The maximum number of distinct tag combinations of a metric name. Past it, meters with new
+     * combinations are collapsed into one whose tag values are all {@code overflow}, and
+     * {@code n9e.series.rejected} counts the distinct combinations collapsed, however often they are used. Zero or
+     * a negative value, the default, does not limit them.
+     */
+    default int maxSeriesPerMetric() {
+        return getInteger(this, "maxSeriesPerMetric").orElse(0);
+    }
+
+    /**
+     * @return {@code true} to skip points whose value has not changed since it was last shipped: gauges with the
+     * same value, and counters, timers and the other meters accumulated over a step that stay at zero, without
+     * activity in the step. Unchanged points are still shipped every {@link #heartbeatSteps()} steps so n9e does
+     * not consider the series dead, and after a cycle that failed to deliver a batch. The default is
+     * {@code false}.
+     */
+    default boolean suppressUnchanged() {
+        return getBoolean(this, "suppressUnchanged").orElse(false);
+    }
+
+    /**
+     * @return The number of steps after which an unchanged point is shipped again when
+     * {@link #suppressUnchanged()} is enabled. The default is 10.
+     */
+    default int heartbeatSteps() {
+        return getInteger(this, "heartbeatSteps").orElse(10);
+    }
+
+    /**
+     * @return {@code true} to register {@code n9e.*} meters describing the publish pipeline itself: cycle, encode
+     * and send durations, overruns of the step, batch sizes, points written and skipped, and failed requests by
+     * status. The default is {@code false}.
+     */
+    default boolean selfMetrics() {
+        return getBoolean(this, "selfMetrics").orElse(false);
+    }
+
+    /**
+     * @return How often the endpoint, hostname and nid are resolved again in the background. Zero or a negative
+     * duration resolves them only once, when the registry is created. The default is 5 minutes.
+     */
+    default Duration identityRefreshInterval() {
+        return getDuration(this, "identityRefreshInterval").orElse(Duration.ofMinutes(5));
+    }
+
+    /**
+     * @return How many times a batch that failed with an I/O error or a retriable status is sent again before it
+     * is given up on (or spooled). Zero disables retries. The default is 2.
+     */
+    default int maxRetries() {
+        return getInteger(this, "maxRetries").orElse(2);
+    }
+
+    /**
+     * @return The backoff before the first retry, doubled for every further retry. The actual wait is randomly
+     * chosen between half and all of it. The default is 100 milliseconds.
+     */
+    default Duration retryInitialBackoff() {
+        return getDuration(this, "retryInitialBackoff").orElse(Duration.ofMillis(100));
+    }
+
+    /**
+     * @return The upper bound of the backoff between retries. The default is 2 seconds.
+     */
+    default Duration retryMaxBackoff() {
+        return getDuration(this, "retryMaxBackoff").orElse(Duration.ofSeconds(2));
+    }
+
+    /**
+     * @return The number of consecutive failed attempts after which no more batches are sent until the next
+     * publish cycle. Zero or a negative value never stops sending. The default is 5.
+     */
+    default int circuitBreakerThreshold() {
+        return getInteger(this, "circuitBreakerThreshold").orElse(5);
+    }
+
+    /**
+     * @return {@code true} to publish at a stable offset inside each step rather than every step after the
+     * registry was started, so that a fleet of instances started together does not push to n9e all at once. The
+     * offset is derived from the hash of the endpoint and hostname, and timestamps are aligned to the start of
+     * the step. The default is {@code false}.
+     */
+    default boolean phasedPublish() {
+        return getBoolean(this, "phasedPublish").orElse(false);
+    }
+
+    /**
+     * @return The upper bound of a random delay added to every publish when {@link #phasedPublish()} is enabled.
+     * The stable offset is chosen so that the delayed publish still happens within the step; a jitter longer
+     * than the step is capped to it. The default is zero.
+     */
+    default Duration publishJitter() {
+        return getDuration(this, "publishJitter").orElse(Duration.ZERO);
+    }
+
+    /**
+     * @return How long closing the registry may take to publish the last step, including the partial one, after
+     * which the batches that are not sent yet are spooled or dumped. The default is 10 seconds.
+     */
+    default Duration shutdownTimeout() {
+        return getDuration(this, "shutdownTimeout").orElse(Duration.ofSeconds(10));
+    }
+
+    /**
+     * @return The directory the batches that are not sent on close are written to, one file each, when there is
+     * no {@link #spoolDirectory() spool} to keep them in. The default is {@code null}, which drops them.
+     */
+    @Nullable
+    default String shutdownDumpDirectory() {
+        return getString(this, "shutdownDumpDirectory").orElse(null);
+    }
+
+    /**
+     * @return The number of steps whose values are kept in memory for every published series, to be read
+     * locally, e.g. while n9e is unreachable, through {@link NightingaleMeterRegistry#recentValues(String)}. Each
+     * meter takes this many values per series, allocated when it is first published. The default is 0, which
+     * keeps none.
+     */
+    default int recentSteps() {
+        return getInteger(this, "recentSteps").orElse(0);
+    }
+
+    /**
+     * @return What happens when a publish cycle is due while the previous one is still running. The default is
+     * {@link NightingaleOverlapPolicy#MERGE}.
+     */
+    default NightingaleOverlapPolicy overlapPolicy() {
+        return getEnum(this, NightingaleOverlapPolicy.class, "overlapPolicy").orElse(NightingaleOverlapPolicy.MERGE);
+    }
+
+    /**
+     * @return The number of due publish cycles that may wait for the running one with
+     * {@link NightingaleOverlapPolicy#QUEUE}. The default is 2.
+     */
+    default int maxQueuedCycles() {
+        return getInteger(this, "maxQueuedCycles").orElse(2);
+    }
+
+    /**
+     * @return The number of threads that capture the values of a cycle with more than
+     * 2048 meters, the publishing one included. The others belong to a pool
+     * of the registry, so that gauges that block do not hold up the threads of the application. 1 captures on
+     * the publishing thread only. The default is the number of processors, at most 4.
+     */
+    default int captureThreads() {
+        return getInteger(this, "captureThreads").orElse(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
 
     @Override
     default Validated<?> validate() {
         return checkAll(this,
                 c -> StepRegistryConfig.validate(c),
-                checkRequired("endpoint", NightingaleConfig::endpoint),
-                checkRequired("uri", NightingaleConfig::uri)
+                checkRequired("uri", NightingaleConfig::uri),
+                check("uris", NightingaleConfig::uris)
+                        .andThen(v -> v.invalidateWhen(uris -> uris.stream().anyMatch(u -> {
+                            try {
+                                new URL(u);
+                                return false;
+                            } catch (MalformedURLException e) {
+                                return true;
+                            }
+                        }), "must be a valid URL", InvalidReason.MALFORMED)),
+                check("compression", NightingaleConfig::compression)
+                        .andThen(v -> v.invalidateWhen(c -> c == NightingaleCompression.SNAPPY && format() != NightingaleFormat.REMOTE_WRITE,
+                                "is only supported by the remote-write format", InvalidReason.MALFORMED)),
+                check("format", NightingaleConfig::format),
+                check("transport", NightingaleConfig::transport),
+                check("agentAddress", NightingaleConfig::agentAddress)
+                        .andThen(v -> v.invalidateWhen(address -> transport() != NightingaleTransport.HTTP
+                                        && transport() != NightingaleTransport.UNIX && !NightingaleAgentSender.isHostAndPort(address),
+                                "must be host:port", InvalidReason.MALFORMED)),
+                check("maxDatagramBytes", NightingaleConfig::maxDatagramBytes)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1024, "must be at least 1024", InvalidReason.MALFORMED)),
+                check("maxInFlightRequests", NightingaleConfig::maxInFlightRequests)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("spoolSegmentBytes", NightingaleConfig::spoolSegmentBytes)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1024, "must be at least 1024", InvalidReason.MALFORMED)),
+                check("batchTargetBytes", NightingaleConfig::batchTargetBytes)
+                        .andThen(v -> v.invalidateWhen(n -> n < 0, "must not be negative", InvalidReason.MALFORMED)),
+                check("batchTargetPoints", NightingaleConfig::batchTargetPoints)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("batchMinBytes", NightingaleConfig::batchMinBytes)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("heartbeatSteps", NightingaleConfig::heartbeatSteps)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("maxRetries", NightingaleConfig::maxRetries)
+                        .andThen(v -> v.invalidateWhen(n -> n < 0, "must not be negative", InvalidReason.MALFORMED)),
+                check("retryInitialBackoff", NightingaleConfig::retryInitialBackoff)
+                        .andThen(v -> v.invalidateWhen(Duration::isNegative, "must not be negative", InvalidReason.MALFORMED)),
+                check("retryMaxBackoff", NightingaleConfig::retryMaxBackoff)
+                        .andThen(v -> v.invalidateWhen(Duration::isNegative, "must not be negative", InvalidReason.MALFORMED)),
+                check("publishJitter", NightingaleConfig::publishJitter)
+                        .andThen(v -> v.invalidateWhen(Duration::isNegative, "must not be negative", InvalidReason.MALFORMED)),
+                check("stepOverrides", NightingaleConfig::stepOverrides)
+                        .andThen(v -> v.invalidateWhen(steps -> steps.values().stream().anyMatch(step -> step.getSeconds() < 1),
+                                "steps must be at least 1 second", InvalidReason.MALFORMED)),
+                check("shutdownTimeout", NightingaleConfig::shutdownTimeout)
+                        .andThen(v -> v.invalidateWhen(Duration::isNegative, "must not be negative", InvalidReason.MALFORMED)),
+                check("overlapPolicy", NightingaleConfig::overlapPolicy),
+                check("maxQueuedCycles", NightingaleConfig::maxQueuedCycles)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("captureThreads", NightingaleConfig::captureThreads)
+                        .andThen(v -> v.invalidateWhen(n -> n < 1, "must be at least 1", InvalidReason.MALFORMED)),
+                check("recentSteps", NightingaleConfig::recentSteps)
+                        .andThen(v -> v.invalidateWhen(n -> n < 0, "must not be negative", InvalidReason.MALFORMED)),
+                check("commonTags", NightingaleConfig::commonTags),
+                check("renameTags", NightingaleConfig::renameTags)
         );
     }
 }
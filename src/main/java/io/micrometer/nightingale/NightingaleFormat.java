@@ -0,0 +1,34 @@
+package io.micrometer.nightingale;
+
+/**
+ * The wire format of the batches pushed to n9e.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public enum NightingaleFormat {
+    /**
+     * The JSON array of points accepted by the {@code /v1/push} API of the n9e agent and transfer.
+     */
+    JSON("application/json"),
+
+    /**
+     * A Prometheus remote-write {@code WriteRequest}, encoded as protobuf and compressed with snappy, as accepted
+     * by the {@code /prometheus/v1/write} API of newer n9e versions. Batches are always compressed with
+     * {@link NightingaleCompression#SNAPPY}, whatever {@link NightingaleConfig#compression()} says.
+     */
+    REMOTE_WRITE("application/x-protobuf");
+
+    private final String contentType;
+
+    NightingaleFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return The value of the {@code Content-Type} header.
+     */
+    public String contentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,200 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.lang.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The endpoint, hostname and nid this process reports as. They are first resolved in the background once the
+ * registry {@link #start() starts}, so that creating a registry never waits for DNS, and then refreshed every
+ * {@link NightingaleConfig#identityRefreshInterval()}, so that a slow DNS lookup never blocks the publisher
+ * thread. Reading them before the first resolution is over waits for it.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+final class NightingaleIdentity implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NightingaleIdentity.class);
+
+    private final NightingaleConfig config;
+
+    @Nullable
+    private final Runnable onChange;
+
+    @Nullable
+    private ScheduledExecutorService refresher;
+
+    // null until the first resolution is over, guarded by this for the wait
+    @Nullable
+    private volatile Resolved resolved;
+    // guarded by this
+    private boolean resolving;
+
+    NightingaleIdentity(NightingaleConfig config, @Nullable Runnable onChange) {
+        this.config = config;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Resolves the identity in the background, then refreshes it unless the refresh interval is zero or negative.
+     */
+    synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("n9e-identity-refresher"));
+        resolving = true;
+        refresher.execute(() -> {
+            Resolved first = null;
+            try {
+                first = resolve(null);
+            } catch (Throwable t) {
+                logger.warn("failed to resolve n9e identity", t);
+            } finally {
+                synchronized (this) {
+                    if (resolved == null) {
+                        resolved = first;
+                    }
+                    resolving = false;
+                    notifyAll();
+                }
+            }
+        });
+        Duration interval = config.identityRefreshInterval();
+        if (!interval.isZero() && !interval.isNegative()) {
+            refresher.scheduleWithFixedDelay(this::refresh, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return {@code true} once the identity can be read without waiting.
+     */
+    boolean isResolved() {
+        return resolved != null;
+    }
+
+    String endpoint() {
+        return resolved().endpoint;
+    }
+
+    /**
+     * @return The local hostname, or {@code null} if it could not be resolved.
+     */
+    @Nullable
+    String hostname() {
+        return resolved().hostname;
+    }
+
+    String nid() {
+        return resolved().nid;
+    }
+
+    /**
+     * @return The identity, waiting for its first resolution if it is still running, or resolving it on the
+     * calling thread if it was never started.
+     */
+    private Resolved resolved() {
+        Resolved r = resolved;
+        if (r != null) {
+            return r;
+        }
+        synchronized (this) {
+            boolean interrupted = false;
+            while (resolved == null && resolving) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (resolved == null) {
+                resolved = resolve(null);
+            }
+            return resolved;
+        }
+    }
+
+    // VisibleForTesting
+    void refresh() {
+        try {
+            Resolved previous = resolved();
+            Resolved next = resolve(previous);
+            if (!next.equals(previous)) {
+                resolved = next;
+                logger.info("n9e identity changed to endpoint={} hostname={}", next.endpoint, next.hostname);
+                if (onChange != null) {
+                    onChange.run();
+                }
+            }
+        } catch (Throwable t) {
+            logger.warn("failed to refresh n9e identity", t);
+        }
+    }
+
+    private Resolved resolve(@Nullable Resolved previous) {
+        String hostname = previous == null ? null : previous.hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            logger.warn("unable to resolve the local hostname", e);
+        }
+        String endpoint = config.endpoint();
+        if (endpoint == null) {
+            // the local address could not be resolved, it is no longer validated when the registry is created
+            endpoint = previous == null ? "localhost" : previous.endpoint;
+            logger.warn("unable to resolve the local address, reporting as endpoint {}", endpoint);
+        }
+        return new Resolved(endpoint, hostname, config.nid());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+            // readers waiting for a resolution that will not happen resolve on their own
+            resolving = false;
+            notifyAll();
+        }
+    }
+
+    private static final class Resolved {
+        private final String endpoint;
+
+        @Nullable
+        private final String hostname;
+
+        private final String nid;
+
+        Resolved(String endpoint, @Nullable String hostname, String nid) {
+            this.endpoint = endpoint;
+            this.hostname = hostname;
+            this.nid = nid;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Resolved that = (Resolved) o;
+            return endpoint.equals(that.endpoint) && Objects.equals(hostname, that.hostname) && nid.equals(that.nid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, hostname, nid);
+        }
+    }
+}
@@ -1,24 +1,48 @@
 package io.micrometer.nightingale;
 
 import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.distribution.pause.PauseDetector;
+import io.micrometer.core.instrument.step.StepCounter;
+import io.micrometer.core.instrument.step.StepDistributionSummary;
+import io.micrometer.core.instrument.step.StepFunctionCounter;
+import io.micrometer.core.instrument.step.StepFunctionTimer;
 import io.micrometer.core.instrument.step.StepMeterRegistry;
-import io.micrometer.core.instrument.util.MeterPartition;
+import io.micrometer.core.instrument.step.StepTimer;
 import io.micrometer.core.instrument.util.NamedThreadFactory;
 import io.micrometer.core.ipc.http.HttpSender;
 import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import io.micrometer.core.lang.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 
-import static io.micrometer.core.instrument.util.StringEscapeUtils.escapeJson;
 /**
  * {@link MeterRegistry} for Nightingale.
  *
@@ -27,233 +51,880 @@ import static io.micrometer.core.instrument.util.StringEscapeUtils.escapeJson;
  */
 public class NightingaleMeterRegistry extends StepMeterRegistry {
     private static final ThreadFactory DEFAULT_THREAD_FACTORY = new NamedThreadFactory("n9e-metrics-publisher");
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
     private final Logger logger = LoggerFactory.getLogger(NightingaleMeterRegistry.class);
     private final NightingaleConfig config;
-    private final HttpSender httpClient;
+    // one per transfer of config.uris(), which are sharded along the ring when there are several
+    private final N9eBatchShipper[] shippers;
+    @Nullable
+    private final N9eShardRing ring;
+    private final boolean[] shardHealthy;
+    private final IntPredicate isShardHealthy;
+    private final AtomicReference<N9eEncoder[]> pooledWriters = new AtomicReference<>();
+    private final NightingaleIdentity identity;
+    private final N9eSeriesCache seriesCache;
+    @Nullable
+    private final N9eRecentValues recentValues;
+    private final N9ePublishMetrics metrics;
+    // the sender of the local agent transport, which the registry owns unlike the HTTP sender
+    @Nullable
+    private final NightingaleAgentSender agentSender;
+    // the clock of the meters, moved to the end of the step on close so that they report the partial step
+    private final N9eFlushClock flushClock;
+    private final N9eStepGroups stepGroups;
+    // the meters of each step are published by cycles of their own
+    private final StepGroup[] groups;
+    // runs the publish cycles, which the ticker only triggers
+    private final Executor cycleExecutor;
+    // the executor created by the registry, null when it was given one
+    @Nullable
+    private final ExecutorService ownCycleExecutor;
+    // the virtual threads the shippers send from, null where there are none
+    @Nullable
+    private final ExecutorService sendExecutor;
+    // serializes the cycles, a lock rather than a monitor so that a waiting virtual thread does not pin its carrier
+    private final ReentrantLock cycleLock = new ReentrantLock();
+    // helps the publishing thread capture large cycles, null when it captures them alone
+    @Nullable
+    private final ThreadPoolExecutor captureExecutor;
+    @Nullable
+    private ScheduledExecutorService ticker;
+    private volatile boolean closing;
+    // reused by every cycle, and by writing a single meter, guarded by cycleLock and the publishing thread
+    private final N9eSnapshot cycleSnapshot;
+    private final N9eSnapshot meterSnapshot = new N9eSnapshot();
+    private final N9eSnapshot.Capture capture = this::capture;
+    // only touched by the publishing thread
+    private int suppressedPoints;
+    private StepGroup publishingGroup;
 
     @SuppressWarnings("deprecation")
     public NightingaleMeterRegistry(NightingaleConfig config, Clock clock) {
 
-        this(config, clock, DEFAULT_THREAD_FACTORY, new HttpUrlConnectionSender(config.connectTimeout(), config.readTimeout()));
+        this(config, clock, DEFAULT_THREAD_FACTORY, new HttpUrlConnectionSender(config.connectTimeout(), config.readTimeout()), null);
     }
 
-    private NightingaleMeterRegistry(NightingaleConfig config, Clock clock, ThreadFactory threadFactory, HttpSender httpClient) {
+    private NightingaleMeterRegistry(NightingaleConfig config, Clock clock, ThreadFactory threadFactory, HttpSender httpClient,
+                                     @Nullable Executor executor) {
         super(config, clock);
 
         config().namingConvention(new NightingaleNamingConvention());
 
         this.config = config;
-        this.httpClient = httpClient;
+        this.flushClock = new N9eFlushClock(clock);
+        this.stepGroups = new N9eStepGroups(config);
+        this.identity = new NightingaleIdentity(config, this::onIdentityChanged);
+        this.seriesCache = new N9eSeriesCache(config, () -> config().namingConvention(), identity, getBaseTimeUnit(),
+                stepGroups);
+        config().onMeterAdded(seriesCache::add)
+                .onMeterRemoved(seriesCache::remove);
+        if (config.recentSteps() > 0) {
+            // the values are read back as JSON points, which need fragments of their own in any other format
+            this.recentValues = new N9eRecentValues(config.recentSteps(), config.format() == NightingaleFormat.JSON ? null
+                    : new N9eSeriesCache(config, () -> config().namingConvention(), identity, getBaseTimeUnit(),
+                    stepGroups, NightingaleFormat.JSON), seriesCache::contains);
+            config().onMeterAdded(recentValues::add)
+                    .onMeterRemoved(recentValues::remove);
+        } else {
+            this.recentValues = null;
+        }
+        // the rules come first, so that the series they drop or merge are not counted against the limit
+        N9eMeterRules rules = new N9eMeterRules(config);
+        if (!rules.isEmpty()) {
+            config().meterFilter(rules);
+        }
+        if (config.maxSeriesPerMetric() > 0) {
+            N9eCardinalityLimiter limiter = new N9eCardinalityLimiter(this, config.maxSeriesPerMetric());
+            config().meterFilter(limiter)
+                    .onMeterRemoved(limiter::remove);
+        }
+        this.metrics = config.selfMetrics() ? new N9ePublishMetrics(this) : N9ePublishMetrics.NOOP;
+
+        List<String> uris;
+        if (config.transport() == NightingaleTransport.HTTP) {
+            this.agentSender = null;
+            uris = config.uris();
+        } else {
+            // there is only one local agent to send to, and it ignores the uri
+            this.agentSender = new NightingaleAgentSender(config);
+            httpClient = agentSender;
+            uris = Collections.singletonList(config.uri());
+        }
+        // a given executor runs the cycles only, as a cycle waits for its sends, which would never run if the
+        // cycles held every thread of a bounded executor; virtual threads run the sends where there are any, and
+        // the cycles too unless an executor is given, otherwise a dedicated thread runs the cycles and the
+        // shippers keep their own pools
+        ExecutorService virtualThreads = N9eExecutors.newVirtualThreadPerTaskExecutor("n9e-metrics-");
+        this.sendExecutor = virtualThreads;
+        if (executor != null) {
+            this.ownCycleExecutor = null;
+            this.cycleExecutor = executor;
+        } else {
+            this.ownCycleExecutor = virtualThreads != null ? virtualThreads : Executors.newSingleThreadExecutor(threadFactory);
+            this.cycleExecutor = ownCycleExecutor;
+        }
+
+        if (config.captureThreads() > 1) {
+            this.captureExecutor = new ThreadPoolExecutor(config.captureThreads() - 1, config.captureThreads() - 1,
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new NamedThreadFactory("n9e-metrics-capture"));
+            // the pool is idle between cycles, usually for most of the step
+            captureExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            this.captureExecutor = null;
+        }
+        this.cycleSnapshot = new N9eSnapshot(captureExecutor, config.captureThreads());
+
+        boolean sharded = uris.size() > 1;
+        this.shippers = new N9eBatchShipper[uris.size()];
+        for (int i = 0; i < shippers.length; i++) {
+            shippers[i] = new N9eBatchShipper(config, httpClient, metrics, uris.get(i),
+                    spoolDirectory(config, i, sharded), sharded, sendExecutor);
+        }
+        this.ring = sharded ? new N9eShardRing(uris) : null;
+        this.shardHealthy = new boolean[shippers.length];
+        this.isShardHealthy = shard -> shardHealthy[shard];
+        this.groups = new StepGroup[stepGroups.size()];
+        for (int i = 0; i < groups.length; i++) {
+            Duration step = stepGroups.step(i);
+            groups[i] = new StepGroup(i, step, config.phasedPublish()
+                    ? new N9ePublishSchedule(step.toMillis(), config.publishJitter().toMillis(), identity)
+                    : null, clock.wallTime() / step.toMillis());
+        }
+        this.publishingGroup = groups[N9eStepGroups.DEFAULT_GROUP];
 
         start(threadFactory);
+        identity.start();
     }
 
     public static Builder builder(NightingaleConfig config) {
         return new Builder(config);
     }
 
+    /**
+     * Triggers a publish cycle every step, or once per step at the offset of this instance in
+     * {@link NightingaleConfig#phasedPublish() phased} mode, for each {@link NightingaleConfig#stepOverrides() step}.
+     * The cycles run on the executor of the registry, so a slow one does not hold the ticker back; the
+     * {@link NightingaleConfig#overlapPolicy() overlap policy} decides what becomes of the cycles of a step that
+     * are due meanwhile. The ticker also resolves the hosts of the transfers as it starts, so that neither
+     * creating the registry nor its first cycle waits for DNS.
+     */
     @Override
-    protected void publish() {
-        for (List<Meter> batch : MeterPartition.partition(this, config.batchSize())) {
-            try {
-                httpClient.post(config.uri())
-                        .withJsonContent(
-                                batch.stream().flatMap(m -> m.match(
-                                        this::writeGauge,
-                                        this::writeCounter,
-                                        this::writeTimer,
-                                        this::writeSummary,
-                                        this::writeLongTaskTimer,
-                                        this::writeTimeGauge,
-                                        this::writeFunctionCounter,
-                                        this::writeFunctionTimer,
-                                        this::writeCustomMetric)
-                                ).collect(Collectors.joining(",", "[", "]"))
-                        )
-                        .send()
-                        .onSuccess(response -> logger.debug("successfully sent {} metrics to n9e.", batch.size()))
-                        .onError(response -> logger.error("failed to send metrics to n9e: {}", response.body()));
-            } catch (Throwable t) {
-                logger.warn("failed to send metrics to n9e", t);
+    public synchronized void start(ThreadFactory threadFactory) {
+        stop();
+        if (config.enabled()) {
+            ScheduledThreadPoolExecutor ticker = new ScheduledThreadPoolExecutor(1, threadFactory);
+            // the next tick is always pending, it must not run once the registry is stopped
+            ticker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.ticker = ticker;
+            if (agentSender == null) {
+                // the first tick is a step away, the hosts of the transfers are in the DNS cache by then
+                ticker.execute(() -> {
+                    for (N9eBatchShipper shipper : shippers) {
+                        shipper.warmUp();
+                    }
+                });
+            }
+            for (StepGroup group : groups) {
+                if (group.schedule == null) {
+                    logger.info("publishing metrics for n9e every {}", group.step);
+                    long step = group.step.toMillis();
+                    ticker.scheduleAtFixedRate(() -> triggerCycle(group), step, step, TimeUnit.MILLISECONDS);
+                } else {
+                    // the offset is derived from the identity, which is resolved in the background
+                    ticker.execute(() -> {
+                        logger.info("publishing metrics for n9e every {} at an offset of {}ms", group.step,
+                                group.schedule.offsetMillis());
+                        scheduleCycle(ticker, group);
+                    });
+                }
             }
         }
     }
 
-    Stream<String> writeSummary(DistributionSummary summary) {
-        long wallTime = config().clock().wallTime();
-        return Stream.of(
-                writeMetric(idWithSuffix(summary.getId(), "count"), wallTime, summary.count()),
-                writeMetric(idWithSuffix(summary.getId(), "avg"), wallTime, summary.mean()),
-                writeMetric(idWithSuffix(summary.getId(), "sum"), wallTime, summary.totalAmount()),
-                writeMetric(idWithSuffix(summary.getId(), "max"), wallTime, summary.max())
-        );
+    private void scheduleCycle(ScheduledExecutorService ticker, StepGroup group) {
+        long delay = group.schedule.nextDelayMillis(config().clock().wallTime());
+        try {
+            ticker.schedule(() -> {
+                try {
+                    triggerCycle(group);
+                } finally {
+                    scheduleCycle(ticker, group);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
     }
 
-    Stream<String> writeFunctionTimer(FunctionTimer timer) {
-        long wallTime = config().clock().wallTime();
-        return Stream.of(
-                writeMetric(idWithSuffix(timer.getId(), "count"), wallTime, timer.count()),
-                writeMetric(idWithSuffix(timer.getId(), "avg"), wallTime, timer.mean(getBaseTimeUnit())),
-                writeMetric(idWithSuffix(timer.getId(), "sum"), wallTime, timer.totalTime(getBaseTimeUnit()))
-        );
+    // VisibleForTesting
+    void triggerCycle(int group) {
+        triggerCycle(groups[group]);
     }
 
-    Stream<String> writeTimer(Timer timer) {
-        long wallTime = config().clock().wallTime();
-        return Stream.of(
-                writeMetric(idWithSuffix(timer.getId(), "count"), wallTime, timer.count()),
-                writeMetric(idWithSuffix(timer.getId(), "max"), wallTime, timer.max(getBaseTimeUnit())),
-                writeMetric(idWithSuffix(timer.getId(), "avg"), wallTime, timer.mean(getBaseTimeUnit())),
-                writeMetric(idWithSuffix(timer.getId(), "sum"), wallTime, timer.totalTime(getBaseTimeUnit()))
-        );
+    /**
+     * Hands a due cycle to the executor, unless the {@link NightingaleConfig#overlapPolicy() overlap policy}
+     * leaves no room for it next to the running one of the same step.
+     */
+    private void triggerCycle(StepGroup group) {
+        int limit;
+        switch (config.overlapPolicy()) {
+            case SKIP:
+                limit = 1;
+                break;
+            case QUEUE:
+                limit = 1 + config.maxQueuedCycles();
+                break;
+            default:
+                limit = 2;
+        }
+        if (group.dueCycles.incrementAndGet() > limit) {
+            group.dueCycles.decrementAndGet();
+            metrics.cycleSkipped();
+            logger.warn("skipped a publish cycle for n9e, the previous one is still running");
+            return;
+        }
+        try {
+            cycleExecutor.execute(() -> {
+                try {
+                    if (!closing) {
+                        publish(group);
+                    }
+                } catch (Throwable t) {
+                    logger.warn("Unexpected exception thrown while publishing metrics for " + getClass().getSimpleName(), t);
+                } finally {
+                    group.dueCycles.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            group.dueCycles.decrementAndGet();
+        }
     }
 
-    // VisibleForTesting
-    Stream<String> writeFunctionCounter(FunctionCounter counter) {
-        double count = counter.count();
-        if (Double.isFinite(count)) {
-            return Stream.of(writeMetric(counter.getId(), config().clock().wallTime(), count));
+    @Override
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdown();
+            ticker = null;
         }
-        return Stream.empty();
+        super.stop();
     }
 
-    Stream<String> writeCounter(Counter counter) {
-        return Stream.of(writeMetric(counter.getId(), config().clock().wallTime(), counter.count()));
+    /**
+     * Publishes the meters of every step, after the running cycle if there is one. When the registry is closed,
+     * {@link #flush() flushes} them instead.
+     */
+    @Override
+    protected void publish() {
+        if (closing) {
+            flush();
+            return;
+        }
+        for (StepGroup group : groups) {
+            publish(group);
+        }
     }
 
-    // VisibleForTesting
-    Stream<String> writeGauge(Gauge gauge) {
-        double value = gauge.value();
-        if (Double.isFinite(value)) {
-            return Stream.of(writeMetric(gauge.getId(), config().clock().wallTime(), value));
+    /**
+     * The last publish, when the registry is closed, which is done within {@link NightingaleConfig#shutdownTimeout()}.
+     * The cycle of each step publishes the last complete step unless it was published already, then the partial
+     * step, and the batches of all of them are sent at once. The batches that are not sent in time are spooled, or
+     * dumped to {@link NightingaleConfig#shutdownDumpDirectory()}.
+     */
+    private void flush() {
+        stop();
+        long timeout = config.shutdownTimeout().toNanos();
+        long deadline = System.nanoTime() + timeout;
+        try {
+            if (!cycleLock.tryLock(timeout, TimeUnit.NANOSECONDS)) {
+                logger.warn("the running publish cycle did not end within {}, the last step is not sent to n9e",
+                        config.shutdownTimeout());
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ExecutorService flushSenders = N9eExecutors.newVirtualThreadPerTaskExecutor("n9e-metrics-flush-");
+        if (flushSenders == null) {
+            flushSenders = Executors.newCachedThreadPool(new NamedThreadFactory("n9e-metrics-flush"));
+        }
+        try {
+            for (N9eBatchShipper shipper : shippers) {
+                shipper.beginFlush(flushSenders);
+            }
+            long wallTime = clock.wallTime();
+            // the clock only moves ahead, so the steps ending first are flushed first
+            StepGroup[] byEnd = groups.clone();
+            Arrays.sort(byEnd, Comparator.comparingLong(group -> stepEnd(group, wallTime)));
+            for (StepGroup group : byEnd) {
+                if (wallTime / group.step.toMillis() > group.lastPublishedStep) {
+                    publishLocked(group);
+                }
+                flushClock.advanceTo(stepEnd(group, wallTime));
+                publishLocked(group);
+            }
+            int unsent = 0;
+            for (N9eBatchShipper shipper : shippers) {
+                unsent += shipper.endFlush(deadline);
+            }
+            if (unsent > 0) {
+                logger.warn("{} batches were not sent to n9e within {} of closing", unsent, config.shutdownTimeout());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flushSenders.shutdownNow();
+            cycleLock.unlock();
         }
-        return Stream.empty();
     }
 
-    // VisibleForTesting
-    Stream<String> writeTimeGauge(TimeGauge timeGauge) {
-        double value = timeGauge.value(getBaseTimeUnit());
-        if (Double.isFinite(value)) {
-            return Stream.of(writeMetric(timeGauge.getId(), config().clock().wallTime(), value));
-        }
-        return Stream.empty();
+    private static long stepEnd(StepGroup group, long wallTime) {
+        long step = group.step.toMillis();
+        return (wallTime / step + 1) * step;
     }
 
-    Stream<String> writeLongTaskTimer(LongTaskTimer timer) {
-        long wallTime = config().clock().wallTime();
-        return Stream.of(
-                writeMetric(idWithSuffix(timer.getId(), "activeTasks"), wallTime, timer.activeTasks()),
-                writeMetric(idWithSuffix(timer.getId(), "duration"), wallTime, timer.duration(getBaseTimeUnit()))
-        );
+    /**
+     * Runs the publish cycle of a step, after the running one if there is one. The cycles of all steps share the
+     * writers and shippers, so they run one at a time.
+     */
+    private void publish(StepGroup group) {
+        cycleLock.lock();
+        try {
+            publishLocked(group);
+        } finally {
+            cycleLock.unlock();
+        }
     }
 
-    protected Long generateTimestamp() {
-        return config().clock().wallTime() / 1000;
+    private void publishLocked(StepGroup group) {
+        try {
+            publishingGroup = group;
+            publishCycle(group);
+        } finally {
+            publishingGroup = groups[N9eStepGroups.DEFAULT_GROUP];
+        }
     }
 
-    // VisibleForTesting
-    Stream<String> writeCustomMetric(Meter meter) {
-        List<Tag> tags = getConventionTags(meter.getId());
-        List<String> metrics = new ArrayList<>();
-        for (Measurement measurement : meter.measure()) {
-            double value = measurement.getValue();
-            if (!Double.isFinite(value)) {
-                continue;
+    private void publishCycle(StepGroup group) {
+        group.lastPublishedStep = clock.wallTime() / group.step.toMillis();
+        Clock clock = config().clock();
+        long start = clock.monotonicTime();
+        long sendNanos = 0;
+        int points = 0;
+        N9eEncoder[] writers = acquireWriters();
+        int[] batchMeters = new int[shippers.length];
+        int[] batchPoints = new int[shippers.length];
+        for (int i = 0; i < shippers.length; i++) {
+            // health is sampled once so that a series does not move between shards within a cycle
+            shardHealthy[i] = shippers[i].healthy();
+            shippers[i].beginCycle();
+            writers[i].begin();
+        }
+        N9eSnapshot snapshot = cycleSnapshot;
+        try {
+            snapshot(group);
+            for (int i = 0; i < snapshot.size(); i++) {
+                int shard = shard(snapshot.series(i));
+                N9eEncoder writer = writers[shard];
+                try {
+                    int written = encode(writer, snapshot, i);
+                    if (recentValues != null) {
+                        recentValues.record(snapshot, i);
+                    }
+                    batchPoints[shard] += written;
+                    points += written;
+                    batchMeters[shard]++;
+                } catch (Throwable t) {
+                    logger.warn("failed to write meter " + snapshot.meter(i).getId().getName() + " for n9e", t);
+                }
+                if (isFull(shippers[shard], writer, batchMeters[shard], batchPoints[shard])) {
+                    if (batchPoints[shard] > 0) {
+                        sendNanos += ship(shippers[shard], writer, batchMeters[shard]);
+                    }
+                    batchMeters[shard] = 0;
+                    batchPoints[shard] = 0;
+                    writer.begin();
+                }
+            }
+            for (int i = 0; i < shippers.length; i++) {
+                if (batchPoints[i] > 0) {
+                    sendNanos += ship(shippers[i], writers[i], batchMeters[i]);
+                }
             }
-            metrics.add(new N9eMetricBuilder()
-                    .field("metric", measurement.getStatistic().getTagValueRepresentation().replace("_","."))
-                    .timestamp(generateTimestamp())
-                    .value(value)
-                    .step(config)
-                    .endpoint(config.endpoint())
-                    .tags(tags)
-                    .build());
+
+            long endStart = clock.monotonicTime();
+            try {
+                boolean undelivered = false;
+                for (N9eBatchShipper shipper : shippers) {
+                    undelivered |= shipper.endCycle();
+                }
+                if (undelivered && config.suppressUnchanged()) {
+                    // the values of the lost batches were never received, so the next ones are shipped anyway
+                    seriesCache.forgetShipped();
+                }
+            } finally {
+                sendNanos += clock.monotonicTime() - endStart;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            snapshot.end();
+            releaseWriters(writers);
+            metrics.pointsWritten(points);
+            metrics.unchangedSkipped(suppressedPoints);
+            suppressedPoints = 0;
+            metrics.cycle(clock.monotonicTime() - start, sendNanos, group.step.toNanos());
         }
-        return metrics.stream();
     }
 
-    String writeMetric(Meter.Id id, long wallTime, double value) {
-        return new N9eMetricBuilder()
-                .field("metric", getConventionName(id).replace("_","."))
-                .timestamp(wallTime/1000)
-                .value(value)
-                .step(config)
-                .endpoint(config.endpoint())
-                .counterType(config.counterType())
-                .build();
+    private int shard(N9eSeriesCache.Series s) {
+        return ring == null ? 0 : ring.route(s.routingHash(), isShardHealthy);
     }
 
-    private Meter.Id idWithSuffix(Meter.Id id, String suffix) {
-        return id.withName(id.getName() + "." + suffix);
+    /**
+     * @return {@code true} once the batch in {@code writer} reaches the size chosen by the
+     * {@link N9eBatchSizer batch sizer} of its shard, or {@link NightingaleConfig#batchSize()} meters when
+     * batches are not sized in bytes.
+     */
+    private boolean isFull(N9eBatchShipper shipper, N9eEncoder writer, int meters, int points) {
+        N9eBatchSizer sizer = shipper.batchSizer();
+        if (sizer.enabled()) {
+            return writer.size() >= sizer.targetBytes() || points >= sizer.targetPoints();
+        }
+        return meters >= config.batchSize();
     }
 
+    /**
+     * Closes the batch in {@code writer} and ships it.
+     *
+     * @return The time spent shipping, which includes waiting for a free in-flight slot.
+     */
+    private long ship(N9eBatchShipper shipper, N9eEncoder writer, int meters) throws InterruptedException {
+        // the payload is a copy, so the writer is free to encode the next batch while this one is in flight
+        byte[] payload = writer.finish();
+        metrics.batch(payload.length);
+        Clock clock = config().clock();
+        long start = clock.monotonicTime();
+        try {
+            shipper.ship(payload, meters);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Throwable t) {
+            logger.warn("failed to send metrics to n9e", t);
+        }
+        return clock.monotonicTime() - start;
+    }
+
+    /**
+     * Percentiles and histogram buckets are written along with the timer, tagged with {@code phi} and
+     * {@code le}, rather than as the untagged gauges {@link StepMeterRegistry} would register for them. The
+     * histogram buckets are aggregable, so {@code percentileHistogram} is honoured.
+     */
     @Override
-    protected TimeUnit getBaseTimeUnit() {
-        return TimeUnit.MILLISECONDS;
+    protected Timer newTimer(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig, PauseDetector pauseDetector) {
+        Duration step = step(id);
+        return new StepTimer(id, flushClock, expireWith(step, distributionStatisticConfig), pauseDetector, getBaseTimeUnit(),
+                step.toMillis(), true);
     }
 
-    private static class N9eMetricBuilder {
-        private final StringBuilder sb = new StringBuilder("{");
+    @Override
+    protected DistributionSummary newDistributionSummary(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig, double scale) {
+        Duration step = step(id);
+        return new StepDistributionSummary(id, flushClock, expireWith(step, distributionStatisticConfig), scale,
+                step.toMillis(), true);
+    }
 
-        N9eMetricBuilder field(String key, String value) {
-            if (sb.length() > 1) {
-                sb.append(',');
-            }
-            sb.append('\"').append(escapeJson(key)).append("\":\"").append(escapeJson(value)).append('\"');
-            return this;
+    /**
+     * Counters and the other meters accumulated over a step are accumulated over the
+     * {@link NightingaleConfig#stepOverrides() step} of their meter.
+     */
+    @Override
+    protected Counter newCounter(Meter.Id id) {
+        return new StepCounter(id, flushClock, step(id).toMillis());
+    }
+
+    @Override
+    protected <T> FunctionCounter newFunctionCounter(Meter.Id id, T obj, ToDoubleFunction<T> countFunction) {
+        return new StepFunctionCounter<>(id, flushClock, step(id).toMillis(), obj, countFunction);
+    }
+
+    @Override
+    protected <T> FunctionTimer newFunctionTimer(Meter.Id id, T obj, ToLongFunction<T> countFunction,
+                                                 ToDoubleFunction<T> totalTimeFunction, TimeUnit totalTimeFunctionUnit) {
+        return new StepFunctionTimer<>(id, flushClock, step(id).toMillis(), obj, countFunction, totalTimeFunction,
+                totalTimeFunctionUnit, getBaseTimeUnit());
+    }
+
+    private Duration step(Meter.Id id) {
+        return stepGroups.step(stepGroups.group(id));
+    }
+
+    /**
+     * Histograms expire with the step by default; that of an overridden step replaces it.
+     */
+    private DistributionStatisticConfig expireWith(Duration step, DistributionStatisticConfig distributionStatisticConfig) {
+        if (step.equals(config.step())) {
+            return distributionStatisticConfig;
         }
+        return DistributionStatisticConfig.builder().expiry(step).build().merge(distributionStatisticConfig);
+    }
 
-        N9eMetricBuilder timestamp(long wallTime) {
-            sb.append(",\"timestamp\":").append(wallTime);
-            return this;
+    private N9eEncoder[] acquireWriters() {
+        N9eEncoder[] writers = pooledWriters.getAndSet(null);
+        if (writers == null) {
+            writers = new N9eEncoder[shippers.length];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = newWriter();
+            }
         }
+        return writers;
+    }
 
-        N9eMetricBuilder value(double value) {
-            sb.append(",\"value\":").append(value);
-            return this;
+    private N9eEncoder newWriter() {
+        if (config.format() == NightingaleFormat.REMOTE_WRITE) {
+            return new N9eRemoteWriteEncoder(INITIAL_BUFFER_SIZE);
+        }
+        N9eJsonWriter writer = new N9eJsonWriter(INITIAL_BUFFER_SIZE);
+        if (config.compression() != NightingaleCompression.NONE) {
+            writer.compressWith(new N9eCompressor(config.compression(), INITIAL_BUFFER_SIZE));
         }
+        return writer;
+    }
 
-        N9eMetricBuilder endpoint(String endpoint) {
-            sb.append(",\"endpoint\":").append(endpoint);
-            return this;
+    private void releaseWriters(N9eEncoder[] writers) {
+        pooledWriters.set(writers);
+    }
+
+    @Nullable
+    private static String spoolDirectory(NightingaleConfig config, int shard, boolean sharded) {
+        String directory = config.spoolDirectory();
+        if (directory == null || !sharded) {
+            return directory;
         }
+        return Paths.get(directory, "shard-" + shard).toString();
+    }
 
-        N9eMetricBuilder nid(String nid) {
-            sb.append(",\"nid\":").append(nid);
-            return this;
+    /**
+     * Captures and writes a single meter, the way a publish cycle does for every meter.
+     */
+    int write(N9eEncoder writer, Meter meter) {
+        N9eSnapshot snapshot = meterSnapshot;
+        snapshot.begin(timestamp());
+        try {
+            N9eSeriesCache.Series s = seriesCache.get(meter);
+            snapshot.add(meter, s, slots(meter, s));
+            capture(snapshot, 0);
+            return encode(writer, snapshot, 0);
+        } finally {
+            snapshot.end();
         }
+    }
 
-        N9eMetricBuilder counterType(String nid) {
-            sb.append(",\"counterType\":").append(nid);
-            return this;
+    int writeSummary(N9eEncoder writer, DistributionSummary summary) {
+        return write(writer, summary);
+    }
+
+    int writeFunctionTimer(N9eEncoder writer, FunctionTimer timer) {
+        return write(writer, timer);
+    }
+
+    int writeTimer(N9eEncoder writer, Timer timer) {
+        return write(writer, timer);
+    }
+
+    // VisibleForTesting
+    int writeFunctionCounter(N9eEncoder writer, FunctionCounter counter) {
+        return write(writer, counter);
+    }
+
+    int writeCounter(N9eEncoder writer, Counter counter) {
+        return write(writer, counter);
+    }
+
+    // VisibleForTesting
+    int writeGauge(N9eEncoder writer, Gauge gauge) {
+        return write(writer, gauge);
+    }
+
+    // VisibleForTesting
+    int writeTimeGauge(N9eEncoder writer, TimeGauge timeGauge) {
+        return write(writer, timeGauge);
+    }
+
+    int writeLongTaskTimer(N9eEncoder writer, LongTaskTimer timer) {
+        return write(writer, timer);
+    }
+
+    // VisibleForTesting
+    int writeCustomMetric(N9eEncoder writer, Meter meter) {
+        return write(writer, meter);
+    }
+
+    /**
+     * Reserves the slots of the meters of a step in the snapshot of the cycle, then captures their values before
+     * any of them is encoded.
+     */
+    private void snapshot(StepGroup group) {
+        N9eSnapshot snapshot = cycleSnapshot;
+        snapshot.begin(timestamp());
+        for (Meter meter : getMeters()) {
+            try {
+                N9eSeriesCache.Series s = seriesCache.get(meter);
+                if (groups.length == 1 || s.group() == group.index) {
+                    snapshot.add(meter, s, slots(meter, s));
+                }
+            } catch (Throwable t) {
+                logger.warn("failed to write meter " + meter.getId().getName() + " for n9e", t);
+            }
         }
+        snapshot.capture(capture);
+    }
 
-        N9eMetricBuilder step(NightingaleConfig step) {
-            sb.append(",\"step\":").append(step.step().getSeconds());
-            return this;
+    private static int slots(Meter meter, N9eSeriesCache.Series s) {
+        if (!N9eSeriesCache.isCustom(meter)) {
+            return s.series();
+        }
+        int slots = 0;
+        for (Measurement ignored : meter.measure()) {
+            slots++;
         }
+        return slots;
+    }
 
-        N9eMetricBuilder tags(List<Tag> tags) {
-            N9eMetricBuilder tagBuilder = new N9eMetricBuilder();
-            if (tags.isEmpty()) {
-                // tags field is required for n9e, use hostname as a default tag
-                try {
-                    tagBuilder.field("hostname", InetAddress.getLocalHost().getHostName());
-                } catch (UnknownHostException ignore) {
-                    /* ignore */
-                }
+    /**
+     * Reads the values of a meter into the snapshot, dispatching on the meter type in the same order as
+     * {@link Meter#match}, without allocating a function per meter. Runs on the fork-join pool for large
+     * snapshots.
+     */
+    private void capture(N9eSnapshot snapshot, int i) {
+        Meter meter = snapshot.meter(i);
+        try {
+            if (meter instanceof TimeGauge) {
+                snapshot.set(i, 0, ((TimeGauge) meter).value(getBaseTimeUnit()));
+            } else if (meter instanceof Gauge) {
+                snapshot.set(i, 0, ((Gauge) meter).value());
+            } else if (meter instanceof Counter) {
+                snapshot.set(i, 0, ((Counter) meter).count());
+            } else if (meter instanceof Timer) {
+                captureTimer(snapshot, i, (Timer) meter);
+            } else if (meter instanceof DistributionSummary) {
+                captureSummary(snapshot, i, (DistributionSummary) meter);
+            } else if (meter instanceof LongTaskTimer) {
+                LongTaskTimer timer = (LongTaskTimer) meter;
+                snapshot.set(i, 0, timer.activeTasks());
+                snapshot.set(i, 1, timer.duration(getBaseTimeUnit()));
+            } else if (meter instanceof FunctionCounter) {
+                snapshot.set(i, 0, ((FunctionCounter) meter).count());
+            } else if (meter instanceof FunctionTimer) {
+                FunctionTimer timer = (FunctionTimer) meter;
+                snapshot.set(i, 0, timer.count());
+                snapshot.set(i, 1, timer.mean(getBaseTimeUnit()));
+                snapshot.set(i, 2, timer.totalTime(getBaseTimeUnit()));
             } else {
-                for (Tag tag : tags) {
-                    tagBuilder.field(tag.getKey(), tag.getValue());
+                // custom meters are named after the statistic of each measurement
+                int slot = 0;
+                int slots = snapshot.slots(i);
+                for (Measurement measurement : meter.measure()) {
+                    if (slot == slots) {
+                        break;
+                    }
+                    snapshot.set(i, slot++, measurement.getStatistic().ordinal(), measurement.getValue());
                 }
             }
+        } catch (Throwable t) {
+            logger.warn("failed to write meter " + meter.getId().getName() + " for n9e", t);
+        }
+    }
 
-            sb.append(",\"tags\":").append(tagBuilder.build());
-            return this;
+    /**
+     * A timer publishing percentiles or a histogram is read from a single {@link HistogramSnapshot}, taken by the
+     * meter itself without any locking on the recording path, so that its statistics and its distribution agree.
+     */
+    private void captureTimer(N9eSnapshot snapshot, int i, Timer timer) {
+        TimeUnit unit = getBaseTimeUnit();
+        if (snapshot.series(i).distribution() == null) {
+            snapshot.set(i, 0, timer.count());
+            snapshot.set(i, 1, timer.max(unit));
+            snapshot.set(i, 2, timer.mean(unit));
+            snapshot.set(i, 3, timer.totalTime(unit));
+            return;
+        }
+        HistogramSnapshot histogram = timer.takeSnapshot();
+        snapshot.set(i, 0, histogram.count());
+        snapshot.set(i, 1, histogram.max(unit));
+        snapshot.set(i, 2, histogram.mean(unit));
+        snapshot.set(i, 3, histogram.total(unit));
+        captureDistribution(snapshot, i, histogram, unit);
+    }
+
+    private void captureSummary(N9eSnapshot snapshot, int i, DistributionSummary summary) {
+        if (snapshot.series(i).distribution() == null) {
+            snapshot.set(i, 0, summary.count());
+            snapshot.set(i, 1, summary.mean());
+            snapshot.set(i, 2, summary.totalAmount());
+            snapshot.set(i, 3, summary.max());
+            return;
+        }
+        HistogramSnapshot histogram = summary.takeSnapshot();
+        snapshot.set(i, 0, histogram.count());
+        snapshot.set(i, 1, histogram.mean());
+        snapshot.set(i, 2, histogram.total());
+        snapshot.set(i, 3, histogram.max());
+        captureDistribution(snapshot, i, histogram, null);
+    }
+
+    /**
+     * @param timeUnit The unit of the values of a timer, or {@code null} for a distribution summary.
+     */
+    private static void captureDistribution(N9eSnapshot snapshot, int i, HistogramSnapshot histogram,
+                                            @Nullable TimeUnit timeUnit) {
+        N9eSeriesCache.Series s = snapshot.series(i);
+        N9eSeriesCache.Distribution distribution = s.distribution();
+        ValueAtPercentile[] percentiles = histogram.percentileValues();
+        for (int p = 0; p < Math.min(percentiles.length, distribution.percentiles()); p++) {
+            snapshot.set(i, s.percentileIndex(p),
+                    timeUnit == null ? percentiles[p].value() : percentiles[p].value(timeUnit));
+        }
+        CountAtBucket[] buckets = histogram.histogramCounts();
+        for (int b = 0; b < Math.min(buckets.length, distribution.buckets()); b++) {
+            snapshot.set(i, s.bucketIndex(b), buckets[b].count());
+        }
+    }
+
+
+    protected Long generateTimestamp() {
+        return timestamp();
+    }
+
+    /**
+     * @return The timestamp of the points being written in seconds, which is the start of the current step in
+     * {@link NightingaleConfig#phasedPublish() phased} mode.
+     */
+    private long timestamp() {
+        N9ePublishSchedule schedule = publishingGroup.schedule;
+        // the flush clock is moved to the end of the partial step flushed on close, which is thus stamped with
+        // that end rather than with the timestamp of the last complete step flushed right before it
+        long wallTime = flushClock.wallTime();
+        return schedule == null ? wallTime / 1000 : schedule.timestamp(wallTime);
+    }
+
+
+    /**
+     * Writes the captured series of a meter, all with the timestamp of the snapshot.
+     *
+     * @return The number of points written, which leaves out the values that are not finite and those
+     * {@link NightingaleConfig#suppressUnchanged() suppressed}.
+     */
+    private int encode(N9eEncoder writer, N9eSnapshot snapshot, int i) {
+        N9eSeriesCache.Series s = snapshot.series(i);
+        long timestamp = snapshot.timestamp();
+        int written = 0;
+        for (int slot = snapshot.offset(i), end = slot + snapshot.slots(i); slot < end; slot++) {
+            int index = snapshot.index(slot);
+            if (index < 0) {
+                continue;
+            }
+            double value = snapshot.value(slot);
+            if (!Double.isFinite(value)) {
+                metrics.nonFiniteSkipped();
+                continue;
+            }
+            if (s.suppress(index, slot - snapshot.offset(i), value)) {
+                suppressedPoints++;
+                continue;
+            }
+            writer.writePoint(s.head(index), timestamp, value, s.tail(index));
+            written++;
+        }
+        return written;
+    }
+
+
+    private void onIdentityChanged() {
+        seriesCache.invalidate();
+        if (recentValues != null) {
+            recentValues.invalidate();
+        }
+    }
+
+    /**
+     * @param name A prefix of the names of the meters to read, or {@code null} for all of them.
+     * @return The values of the last {@link NightingaleConfig#recentSteps()} published steps of every series, as
+     * a JSON array of n9e points. The array is empty when no steps are kept. Reading never holds a publish cycle
+     * back.
+     */
+    public String recentValues(@Nullable String name) {
+        if (recentValues == null) {
+            return "[]";
+        }
+        N9eJsonWriter writer = new N9eJsonWriter(4096);
+        recentValues.write(writer, name);
+        return new String(writer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        // the publish of super.close() is the flush
+        closing = true;
+        super.close();
+        for (N9eBatchShipper shipper : shippers) {
+            shipper.close();
+        }
+        if (agentSender != null) {
+            agentSender.close();
+        }
+        if (ownCycleExecutor != null) {
+            ownCycleExecutor.shutdown();
         }
+        if (sendExecutor != null) {
+            sendExecutor.shutdown();
+        }
+        if (captureExecutor != null) {
+            captureExecutor.shutdown();
+        }
+        identity.close();
+    }
+
+    // VisibleForTesting
+    NightingaleIdentity identity() {
+        return identity;
+    }
+
+    // VisibleForTesting
+    N9eSeriesCache seriesCache() {
+        return seriesCache;
+    }
 
-        String build() {
-            return sb.append('}').toString();
+    // VisibleForTesting
+    @Nullable
+    N9ePublishSchedule schedule() {
+        return groups[N9eStepGroups.DEFAULT_GROUP].schedule;
+    }
+
+    @Override
+    protected TimeUnit getBaseTimeUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+
+    /**
+     * The meters of one step, and the schedule and due cycles of their publishing.
+     */
+    private static final class StepGroup {
+        private final int index;
+        private final Duration step;
+        // null unless config.phasedPublish()
+        @Nullable
+        private final N9ePublishSchedule schedule;
+        // the running cycle and the ones waiting for it
+        private final AtomicInteger dueCycles = new AtomicInteger();
+        // the step the last cycle was published in, which reported the one before, guarded by cycleLock
+        private long lastPublishedStep;
+
+        StepGroup(int index, Duration step, @Nullable N9ePublishSchedule schedule, long lastPublishedStep) {
+            this.index = index;
+            this.step = step;
+            this.schedule = schedule;
+            this.lastPublishedStep = lastPublishedStep;
         }
     }
 
@@ -263,6 +934,8 @@ public class NightingaleMeterRegistry extends StepMeterRegistry {
         private Clock clock = Clock.SYSTEM;
         private ThreadFactory threadFactory = DEFAULT_THREAD_FACTORY;
         private HttpSender httpClient;
+        @Nullable
+        private Executor executor;
 
         @SuppressWarnings("deprecation")
         Builder(NightingaleConfig config) {
@@ -285,8 +958,18 @@ public class NightingaleMeterRegistry extends StepMeterRegistry {
             return this;
         }
 
+        /**
+         * @param executor Runs the publish cycles instead of the threads of the registry. The sends are never run
+         *                 on it, so that a bounded executor whose threads all run cycles cannot hold up the sends
+         *                 those cycles wait for. It is not shut down when the registry is closed.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
         public NightingaleMeterRegistry build() {
-            return new NightingaleMeterRegistry(config, clock, threadFactory, httpClient);
+            return new NightingaleMeterRegistry(config, clock, threadFactory, httpClient, executor);
         }
     }
 }
@@ -0,0 +1,664 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import io.micrometer.core.lang.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A non-blocking HTTP/1.1 {@link AsyncHttpSender} built on NIO channels. All connections are driven by a single
+ * selector thread and kept alive between requests, so pushing to n9e neither pins the publisher thread nor
+ * pays for a new TCP connection per batch.
+ * <p>
+ * Only plain {@code http} is handled natively; {@code https} requests fall back to a blocking
+ * {@link HttpUrlConnectionSender} on a small pool. Futures are completed on a callback thread of their own, so
+ * that callbacks attached to them, such as spooling a failed batch, never hold up the selector thread.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public class NightingaleNioHttpSender implements AsyncHttpSender, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NightingaleNioHttpSender.class);
+    private static final long SELECT_TIMEOUT_MILLIS = 50;
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int FALLBACK_THREADS = 4;
+
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+    private final HttpSender fallback;
+    private final ThreadPoolExecutor fallbackExecutor;
+    private final ThreadPoolExecutor callbackExecutor;
+    private volatile boolean closed;
+
+    // only touched by the selector thread
+    private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();
+    private final Set<Connection> active = new HashSet<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    public NightingaleNioHttpSender() {
+        this(Duration.ofSeconds(1), Duration.ofSeconds(10));
+    }
+
+    @SuppressWarnings("deprecation")
+    public NightingaleNioHttpSender(Duration connectTimeout, Duration readTimeout) {
+        this.connectTimeoutMillis = connectTimeout.toMillis();
+        this.readTimeoutMillis = readTimeout.toMillis();
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.fallback = new HttpUrlConnectionSender(connectTimeout, readTimeout);
+        this.fallbackExecutor = new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("n9e-http-fallback"));
+        this.fallbackExecutor.allowCoreThreadTimeOut(true);
+        this.callbackExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("n9e-http-callback"));
+        this.callbackExecutor.allowCoreThreadTimeOut(true);
+        this.ioThread = new NamedThreadFactory("n9e-http-io").newThread(this::run);
+        this.ioThread.start();
+    }
+
+    /**
+     * Waits for the response at most the connect and read timeouts, as a blocking sender would.
+     */
+    @Override
+    public Response send(Request request) throws Throwable {
+        CompletableFuture<Response> future = sendAsync(request);
+        try {
+            return future.get(connectTimeoutMillis + readTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            // the exchange itself fails once its own deadline passes
+            SocketTimeoutException timeout = new SocketTimeoutException("no response from " + request.getUrl()
+                    + " within " + (connectTimeoutMillis + readTimeoutMillis) + "ms");
+            future.completeExceptionally(timeout);
+            throw timeout;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> sendAsync(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("sender is closed"));
+            return future;
+        }
+
+        URL url = request.getUrl();
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            try {
+                fallbackExecutor.execute(() -> {
+                    try {
+                        future.complete(fallback.send(request));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        Exchange exchange = new Exchange(request, future);
+        pending.add(exchange);
+        // the selector thread may have drained the queue for the last time before the exchange was added
+        if (closed && pending.remove(exchange)) {
+            future.completeExceptionally(new IllegalStateException("sender is closed"));
+            return future;
+        }
+        selector.wakeup();
+        return future;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                long now = System.currentTimeMillis();
+
+                Exchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    dispatch(exchange, now);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        handle(connection, key, now);
+                    } catch (IOException | RuntimeException e) {
+                        fail(connection, e);
+                    }
+                }
+
+                expire(now);
+            } catch (Throwable t) {
+                logger.warn("unexpected error in the n9e http io loop", t);
+            }
+        }
+        shutdown();
+    }
+
+    private void dispatch(Exchange exchange, long now) {
+        if (!exchange.freshConnection) {
+            ArrayDeque<Connection> connections = idle.get(exchange.key);
+            Connection connection = connections == null ? null : connections.pollLast();
+            if (connection != null) {
+                connection.reused = true;
+                start(connection, exchange, now);
+                connection.selectionKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        InetSocketAddress address = exchange.address;
+        if (address.isUnresolved()) {
+            settle(exchange.future, null, new UnknownHostException(address.getHostString()));
+            return;
+        }
+
+        SocketChannel channel = null;
+        Connection connection = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection = new Connection(channel, exchange.key);
+            start(connection, exchange, now);
+            if (channel.connect(address)) {
+                connection.selectionKey = channel.register(selector, SelectionKey.OP_WRITE, connection);
+            } else {
+                connection.selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                connection.connecting = true;
+                connection.deadline = now + connectTimeoutMillis;
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                active.remove(connection);
+            }
+            closeQuietly(channel);
+            settle(exchange.future, null, e);
+        }
+    }
+
+    private void start(Connection connection, Exchange exchange, long now) {
+        connection.exchange = exchange;
+        connection.out = exchange.encode();
+        connection.parser = new ResponseParser(exchange.request.getMethod() == Method.HEAD);
+        connection.deadline = now + readTimeoutMillis;
+        active.add(connection);
+    }
+
+    private void handle(Connection connection, SelectionKey key, long now) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isConnectable()) {
+            if (connection.channel.finishConnect()) {
+                connection.connecting = false;
+                connection.deadline = now + readTimeoutMillis;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } else if (key.isWritable()) {
+            connection.channel.write(connection.out);
+            connection.deadline = now + readTimeoutMillis;
+            if (!connection.out[connection.out.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else if (key.isReadable()) {
+            read(connection, now);
+        }
+    }
+
+    private void read(Connection connection, long now) throws IOException {
+        if (connection.exchange == null) {
+            // an idle connection only becomes readable when the server closes it
+            removeIdle(connection);
+            closeQuietly(connection.channel);
+            return;
+        }
+
+        readBuffer.clear();
+        int read = connection.channel.read(readBuffer);
+        if (read < 0) {
+            if (connection.parser.completeOnEof()) {
+                complete(connection, false, now);
+            } else if (connection.reused && !connection.parser.started()) {
+                // the server closed a kept-alive connection just as it was reused, retry once on a new one
+                Exchange exchange = connection.exchange;
+                release(connection);
+                exchange.freshConnection = true;
+                dispatch(exchange, now);
+            } else {
+                throw new EOFException("connection closed before the response was complete");
+            }
+            return;
+        }
+
+        connection.deadline = now + readTimeoutMillis;
+        readBuffer.flip();
+        connection.parser.feed(readBuffer);
+        if (connection.parser.isDone()) {
+            complete(connection, connection.parser.keepAlive(), now);
+        }
+    }
+
+    private void complete(Connection connection, boolean keepAlive, long now) {
+        Exchange exchange = connection.exchange;
+        ResponseParser parser = connection.parser;
+        connection.exchange = null;
+        connection.parser = null;
+        connection.out = null;
+        active.remove(connection);
+
+        if (keepAlive && !closed) {
+            connection.reused = false;
+            connection.idleSince = now;
+            connection.selectionKey.interestOps(SelectionKey.OP_READ);
+            idle.computeIfAbsent(connection.key, k -> new ArrayDeque<>()).addLast(connection);
+        } else {
+            closeQuietly(connection.channel);
+        }
+        settle(exchange.future, new Response(parser.code, parser.body()), null);
+    }
+
+    private void fail(Connection connection, Throwable t) {
+        Exchange exchange = connection.exchange;
+        release(connection);
+        removeIdle(connection);
+        if (exchange != null) {
+            settle(exchange.future, null, t);
+        }
+    }
+
+    /**
+     * Completes a future on the callback thread, or on the calling one once the sender is closed.
+     */
+    private void settle(CompletableFuture<Response> future, @Nullable Response response, @Nullable Throwable t) {
+        Runnable completion = () -> {
+            if (t == null) {
+                future.complete(response);
+            } else {
+                future.completeExceptionally(t);
+            }
+        };
+        try {
+            callbackExecutor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    private void release(Connection connection) {
+        connection.exchange = null;
+        active.remove(connection);
+        closeQuietly(connection.channel);
+    }
+
+    private void expire(long now) {
+        if (!active.isEmpty()) {
+            for (Connection connection : new ArrayList<>(active)) {
+                if (now > connection.deadline) {
+                    fail(connection, new SocketTimeoutException(connection.connecting ? "connect timed out" : "read timed out"));
+                }
+            }
+        }
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            // connections are appended as they become idle, so the oldest are first
+            while (!connections.isEmpty() && now - connections.peekFirst().idleSince > IDLE_TIMEOUT_MILLIS) {
+                closeQuietly(connections.pollFirst().channel);
+            }
+        }
+    }
+
+    private void removeIdle(Connection connection) {
+        ArrayDeque<Connection> connections = idle.get(connection.key);
+        if (connections != null) {
+            connections.remove(connection);
+        }
+    }
+
+    private void shutdown() {
+        IOException closedException = new IOException("sender is closed");
+        for (Connection connection : new ArrayList<>(active)) {
+            fail(connection, closedException);
+        }
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            for (Connection connection : connections) {
+                closeQuietly(connection.channel);
+            }
+        }
+        idle.clear();
+        Exchange exchange;
+        while ((exchange = pending.poll()) != null) {
+            settle(exchange.future, null, closedException);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+            /* ignore */
+        }
+    }
+
+    private static void closeQuietly(@Nullable SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                /* ignore */
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        fallbackExecutor.shutdown();
+        try {
+            ioThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the futures failed by the selector thread as it stopped are still completed
+        callbackExecutor.shutdown();
+    }
+
+    private static final class Exchange {
+        private final Request request;
+        private final CompletableFuture<Response> future;
+        private final String key;
+
+        /**
+         * Resolved on the calling thread, so that DNS never blocks the selector thread.
+         */
+        private final InetSocketAddress address;
+
+        private boolean freshConnection;
+
+        Exchange(Request request, CompletableFuture<Response> future) {
+            this.request = request;
+            this.future = future;
+            URL url = request.getUrl();
+            this.key = url.getHost() + ':' + port(url);
+            this.address = new InetSocketAddress(url.getHost(), port(url));
+        }
+
+        ByteBuffer[] encode() {
+            URL url = request.getUrl();
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            byte[] entity = request.getEntity();
+
+            StringBuilder head = new StringBuilder(256)
+                    .append(request.getMethod().name()).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(url.getHost());
+            if (url.getPort() != -1) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+            for (Map.Entry<String, String> header : request.getRequestHeaders().entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (entity.length > 0 || request.getMethod() == Method.POST || request.getMethod() == Method.PUT) {
+                head.append("Content-Length: ").append(entity.length).append("\r\n");
+            }
+            head.append("Connection: keep-alive\r\n\r\n");
+
+            return new ByteBuffer[]{
+                    ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                    ByteBuffer.wrap(entity)
+            };
+        }
+
+        private static int port(URL url) {
+            return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final String key;
+        private SelectionKey selectionKey;
+
+        @Nullable
+        private Exchange exchange;
+
+        @Nullable
+        private ByteBuffer[] out;
+
+        @Nullable
+        private ResponseParser parser;
+
+        private boolean connecting;
+        private boolean reused;
+        private long deadline;
+        private long idleSince;
+
+        Connection(SocketChannel channel, String key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Incremental parser for an HTTP/1.1 response with a content-length, chunked or read-until-close body.
+     */
+    static final class ResponseParser {
+        private static final int STATUS = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILERS = 5;
+        private static final int UNTIL_EOF = 6;
+        private static final int DONE = 7;
+
+        private final boolean head;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        private int state = STATUS;
+        private boolean started;
+        private int code;
+        private boolean http10;
+        private boolean connectionClose;
+        private boolean connectionKeepAlive;
+        private boolean chunked;
+        private long contentLength = -1;
+        private long remaining;
+
+        ResponseParser(boolean head) {
+            this.head = head;
+        }
+
+        void feed(ByteBuffer buf) throws IOException {
+            started |= buf.hasRemaining();
+            while (buf.hasRemaining() && state != DONE) {
+                if (state == BODY) {
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    copy(buf, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = chunked ? CHUNK_END : DONE;
+                    }
+                } else if (state == UNTIL_EOF) {
+                    copy(buf, buf.remaining());
+                } else {
+                    String l = readLine(buf);
+                    if (l != null) {
+                        onLine(l);
+                    }
+                }
+            }
+        }
+
+        private void copy(ByteBuffer buf, int n) {
+            for (int i = 0; i < n; i++) {
+                body.write(buf.get());
+            }
+        }
+
+        @Nullable
+        private String readLine(ByteBuffer buf) {
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    line.reset();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        private void onLine(String l) throws IOException {
+            switch (state) {
+                case STATUS:
+                    String[] status = l.split(" ", 3);
+                    if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                        throw new IOException("malformed status line: " + l);
+                    }
+                    http10 = status[0].equals("HTTP/1.0");
+                    code = Integer.parseInt(status[1]);
+                    state = HEADERS;
+                    break;
+                case HEADERS:
+                    if (l.isEmpty()) {
+                        headersDone();
+                    } else {
+                        header(l);
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    int extension = l.indexOf(';');
+                    long size = Long.parseLong((extension < 0 ? l : l.substring(0, extension)).trim(), 16);
+                    if (size == 0) {
+                        state = TRAILERS;
+                    } else {
+                        remaining = size;
+                        state = BODY;
+                    }
+                    break;
+                case CHUNK_END:
+                    state = CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (l.isEmpty()) {
+                        state = DONE;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected line in state " + state);
+            }
+        }
+
+        private void header(String l) {
+            int colon = l.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            String name = l.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = l.substring(colon + 1).trim();
+            switch (name) {
+                case "content-length":
+                    contentLength = Long.parseLong(value);
+                    break;
+                case "transfer-encoding":
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                    break;
+                case "connection":
+                    connectionClose = value.equalsIgnoreCase("close");
+                    connectionKeepAlive = value.equalsIgnoreCase("keep-alive");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void headersDone() {
+            if (code >= 100 && code < 200) {
+                // interim response, the final one follows
+                state = STATUS;
+                chunked = false;
+                contentLength = -1;
+            } else if (head || code == 204 || code == 304) {
+                state = DONE;
+            } else if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (contentLength >= 0) {
+                remaining = contentLength;
+                state = remaining == 0 ? DONE : BODY;
+            } else {
+                state = UNTIL_EOF;
+            }
+        }
+
+        boolean started() {
+            return started;
+        }
+
+        boolean isDone() {
+            return state == DONE;
+        }
+
+        boolean completeOnEof() {
+            return state == UNTIL_EOF;
+        }
+
+        boolean keepAlive() {
+            return state == DONE && !connectionClose && (!http10 || connectionKeepAlive);
+        }
+
+        int code() {
+            return code;
+        }
+
+        String body() {
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
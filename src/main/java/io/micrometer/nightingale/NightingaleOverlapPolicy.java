@@ -0,0 +1,28 @@
+package io.micrometer.nightingale;
+
+/**
+ * What happens when a publish cycle is due while the previous one is still running. Cycles never run
+ * concurrently; the policy decides how many due cycles may wait for the running one to finish. Due cycles that
+ * are not run are counted as {@code n9e.publish.skipped} and logged.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public enum NightingaleOverlapPolicy {
+    /**
+     * Do not run a cycle that is due while another one is running.
+     */
+    SKIP,
+
+    /**
+     * Run a single cycle as soon as the running one is finished, however many became due meanwhile. It reads the
+     * meters when it starts, so it covers all of them.
+     */
+    MERGE,
+
+    /**
+     * Run every cycle that became due, one after the other, up to {@link NightingaleConfig#maxQueuedCycles()}
+     * waiting at once.
+     */
+    QUEUE
+}
@@ -0,0 +1,31 @@
+package io.micrometer.nightingale;
+
+/**
+ * How batches reach n9e.
+ *
+ * @author ning.chai@foxmail.com
+ * @since 1.0.0
+ */
+public enum NightingaleTransport {
+    /**
+     * POST every batch to {@link NightingaleConfig#uri()} with the HTTP sender of the registry.
+     */
+    HTTP,
+
+    /**
+     * Send every batch as one datagram to the {@link NightingaleConfig#agentAddress() local agent}.
+     */
+    UDP,
+
+    /**
+     * Write every batch as a length-prefixed frame on a TCP connection to the
+     * {@link NightingaleConfig#agentAddress() local agent}.
+     */
+    TCP,
+
+    /**
+     * Write every batch as a length-prefixed frame on a Unix domain socket, whose path is the
+     * {@link NightingaleConfig#agentAddress() agent address}. Requires Java 16 or later.
+     */
+    UNIX
+}
@@ -0,0 +1,70 @@
+package io.micrometer.component;
+
+import io.micrometer.core.instrument.config.validate.ValidationException;
+import io.micrometer.nightingale.NightingaleConfig;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link NightingaleMetricsExportAutoConfiguration}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class NightingaleMetricsExportAutoConfigurationTest {
+	private final Map<String, Object> properties = new HashMap<>();
+
+	@Test
+	void propertiesAreBoundInAnyForm() {
+		properties.put("management.metrics.export.nightingale.url", "http://transfer:5810/api/transfer/push");
+		properties.put("management.metrics.export.nightingale.step", "30s");
+		properties.put("management.metrics.export.nightingale.endpoint", "10.0.0.1");
+		properties.put("management.metrics.export.nightingale.tags", "device=sda");
+		properties.put("management.metrics.export.nightingale.step-overrides", "http=60s");
+		properties.put("management.metrics.export.nightingale.maxInFlightRequests", "4");
+
+		NightingaleConfig config = config();
+
+		assertThat(config.uri()).isEqualTo("http://transfer:5810/api/transfer/push");
+		assertThat(config.step()).isEqualTo(Duration.ofSeconds(30));
+		assertThat(config.endpoint()).isEqualTo("10.0.0.1");
+		assertThat(config.commonTags()).containsEntry("device", "sda");
+		assertThat(config.stepOverrides()).containsEntry("http", Duration.ofSeconds(60));
+		assertThat(config.maxInFlightRequests()).isEqualTo(4);
+	}
+
+	@Test
+	void unsetPropertiesKeepTheirDefaults() {
+		NightingaleConfig config = config();
+
+		assertThat(config.step()).isEqualTo(NightingaleConfig.DEFAULT.step());
+		assertThat(config.uri()).isEqualTo(NightingaleConfig.DEFAULT.uri());
+	}
+
+	@Test
+	void invalidPropertiesFailTheContext() {
+		properties.put("management.metrics.export.nightingale.url", "bad");
+
+		assertThatThrownBy(this::config).isInstanceOf(ValidationException.class);
+	}
+
+	@Test
+	void theConfigurationIsValidatedOnce() {
+		NightingaleConfig config = config();
+
+		assertThat(config.validate()).isSameAs(config.validate());
+	}
+
+	private NightingaleConfig config() {
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("test", properties));
+		return new NightingaleMetricsExportAutoConfiguration().nightingaleConfig(environment);
+	}
+}
@@ -0,0 +1,291 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eBatchShipper}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eBatchShipperTest {
+    private final Map<String, String> props = new HashMap<>();
+    private final NightingaleConfig config = props::get;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+
+    private final HttpSender slowSender = request -> {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(100);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        sent.incrementAndGet();
+        return new HttpSender.Response(200, "");
+    };
+
+    @Test
+    void sendsUpToMaxInFlightBatchesConcurrently() throws InterruptedException {
+        props.put("nightingale.maxInFlightRequests", "4");
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, slowSender)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 8; i++) {
+                shipper.ship(new byte[]{'[', ']'}, 1);
+            }
+            shipper.awaitCompletion();
+
+            assertThat(sent).hasValue(8);
+            assertThat(maxInFlight).hasValue(4);
+            assertThat(System.nanoTime() - start).isLessThan(700_000_000L);
+        }
+    }
+
+    @Test
+    void flushSendsEveryBatchAtOnce() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, slowSender)) {
+            shipper.beginFlush(executor);
+            for (int i = 0; i < 8; i++) {
+                shipper.ship(new byte[]{'[', ']'}, 1);
+            }
+
+            assertThat(shipper.endFlush(System.nanoTime() + TimeUnit.SECONDS.toNanos(5))).isZero();
+            assertThat(sent).hasValue(8);
+            assertThat(maxInFlight.get()).isGreaterThan(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void batchesNotFlushedByTheDeadlineAreDumped() throws InterruptedException, IOException {
+        Path dump = Files.createTempDirectory("n9e-dump");
+        props.put("nightingale.shutdownDumpDirectory", dump.toString());
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, request -> {
+            if (request.getEntity().length > 2) {
+                release.await();
+            }
+            return new HttpSender.Response(200, "");
+        })) {
+            shipper.beginFlush(executor);
+            shipper.ship(new byte[]{'[', ']'}, 1);
+            shipper.ship("[{}]".getBytes(), 1);
+
+            assertThat(shipper.endFlush(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200))).isEqualTo(1);
+            try (Stream<Path> files = Files.list(dump)) {
+                Path[] dumped = files.toArray(Path[]::new);
+                assertThat(dumped).hasSize(1);
+                assertThat(dumped[0].getFileName().toString()).startsWith("n9e-").endsWith(".json");
+                assertThat(Files.readAllBytes(dumped[0])).isEqualTo("[{}]".getBytes());
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            try (Stream<Path> files = Files.list(dump)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    void sendsOnTheCallingThreadByDefault() throws InterruptedException {
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, slowSender)) {
+            for (int i = 0; i < 3; i++) {
+                shipper.ship(new byte[]{'[', ']'}, 1);
+                assertThat(sent).hasValue(i + 1);
+            }
+            assertThat(maxInFlight).hasValue(1);
+        }
+    }
+
+    @Test
+    void publishShipsEveryBatch() {
+        props.put("nightingale.maxInFlightRequests", "3");
+        props.put("nightingale.batchSize", "1");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(config)
+                .clock(new MockClock())
+                .httpClient(slowSender)
+                .build();
+        for (int i = 0; i < 6; i++) {
+            registry.counter("my.counter." + i);
+        }
+
+        registry.publish();
+
+        assertThat(sent).hasValue(6);
+        assertThat(maxInFlight).hasValue(3);
+        registry.close();
+    }
+
+    @Test
+    void batchSizerShrinksOnRejectionAndSlownessAndGrowsBack() {
+        N9eBatchSizer sizer = new N9eBatchSizer(16_000, 1_000, 100, TimeUnit.SECONDS.toNanos(1));
+        assertThat(sizer.targetBytes()).isEqualTo(16_000);
+
+        sizer.onResponse(413, 0);
+        assertThat(sizer.targetBytes()).isEqualTo(8_000);
+        assertThat(sizer.targetPoints()).isEqualTo(50);
+        sizer.onResponse(200, TimeUnit.SECONDS.toNanos(2));
+        sizer.onResponse(503, 0);
+        sizer.onError();
+        sizer.onResponse(500, 0);
+        assertThat(sizer.targetBytes()).isEqualTo(1_000);
+
+        sizer.onResponse(400, 0);
+        assertThat(sizer.targetBytes()).isEqualTo(1_000);
+        for (int i = 0; i < 100; i++) {
+            sizer.onResponse(200, 0);
+        }
+        assertThat(sizer.targetBytes()).isEqualTo(16_000);
+    }
+
+    @Test
+    void publishFillsBatchesUpToTheTargetSize() {
+        props.put("nightingale.batchTargetBytes", "1024");
+        props.put("nightingale.batchMinBytes", "256");
+        props.put("nightingale.enabled", "false");
+        List<Integer> sizes = new ArrayList<>();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(config)
+                .clock(new MockClock())
+                .httpClient(request -> {
+                    sizes.add(request.getEntity().length);
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        for (int i = 0; i < 50; i++) {
+            registry.counter("my.counter." + i);
+        }
+        registry.timer("my.timer");
+
+        registry.publish();
+
+        assertThat(sizes.size()).isGreaterThan(2);
+        // every batch but the last one is closed by the meter that makes it reach the target
+        for (int size : sizes.subList(0, sizes.size() - 1)) {
+            assertThat(size).isBetween(1024, 1024 + 512);
+        }
+        registry.close();
+    }
+
+    @Test
+    void rejectedBatchesMakeTheNextOnesSmaller() {
+        props.put("nightingale.batchTargetBytes", "4096");
+        props.put("nightingale.batchMinBytes", "512");
+        props.put("nightingale.enabled", "false");
+        List<Integer> sizes = new ArrayList<>();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(config)
+                .clock(new MockClock())
+                .httpClient(request -> {
+                    sizes.add(request.getEntity().length);
+                    return new HttpSender.Response(request.getEntity().length > 1024 ? 413 : 200, "");
+                })
+                .build();
+        for (int i = 0; i < 100; i++) {
+            registry.counter("my.counter." + i);
+        }
+
+        registry.publish();
+
+        assertThat(sizes.get(0)).isGreaterThan(4096);
+        assertThat(sizes.get(sizes.size() - 2)).isLessThanOrEqualTo(1024 + 512);
+        registry.close();
+    }
+
+    @Test
+    void batchesRejectedAsTooLargeAreSplitUntilAccepted() throws InterruptedException {
+        List<String> accepted = new ArrayList<>();
+        AtomicInteger requests = new AtomicInteger();
+        HttpSender sender = request -> {
+            requests.incrementAndGet();
+            String body = new String(request.getEntity(), StandardCharsets.UTF_8);
+            if (body.split("\\{", -1).length - 1 > 2) {
+                return new HttpSender.Response(413, "");
+            }
+            accepted.add(body);
+            return new HttpSender.Response(200, "");
+        };
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, sender)) {
+            shipper.ship("[{\"a\":1},{\"b\":2},{\"c\":3},{\"d\":4},{\"e\":5}]".getBytes(StandardCharsets.UTF_8), 5);
+
+            assertThat(shipper.endCycle()).isFalse();
+            assertThat(accepted).containsExactly("[{\"a\":1},{\"b\":2}]", "[{\"c\":3}]", "[{\"d\":4},{\"e\":5}]");
+            assertThat(requests).hasValue(5);
+        }
+    }
+
+    @Test
+    void asynchronousBatchesRejectedAsTooLargeAreSplitInTheirSlot() throws InterruptedException {
+        List<String> accepted = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncHttpSender sender = new AsyncHttpSender() {
+            @Override
+            public CompletableFuture<Response> sendAsync(Request request) {
+                return CompletableFuture.supplyAsync(() -> {
+                    String body = new String(request.getEntity(), StandardCharsets.UTF_8);
+                    if (body.split("\\{", -1).length - 1 > 1) {
+                        return new Response(413, "");
+                    }
+                    accepted.add(body);
+                    return new Response(200, "");
+                }, executor);
+            }
+
+            @Override
+            public Response send(Request request) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, sender)) {
+            shipper.ship("[{\"a\":1},{\"b\":2},{\"c\":3}]".getBytes(StandardCharsets.UTF_8), 3);
+
+            assertThat(shipper.endCycle()).isFalse();
+            assertThat(accepted).containsExactly("[{\"a\":1}]", "[{\"b\":2}]", "[{\"c\":3}]");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void aSinglePointRejectedAsTooLargeIsDropped() throws InterruptedException {
+        AtomicInteger requests = new AtomicInteger();
+        try (N9eBatchShipper shipper = new N9eBatchShipper(config, request -> {
+            requests.incrementAndGet();
+            return new HttpSender.Response(413, "");
+        })) {
+            shipper.ship("[{\"a\":1},{\"b\":2},{\"c\":3},{\"d\":4}]".getBytes(StandardCharsets.UTF_8), 4);
+
+            assertThat(shipper.endCycle()).isTrue();
+            // the batch, its two halves and their four points
+            assertThat(requests).hasValue(7);
+        }
+    }
+}
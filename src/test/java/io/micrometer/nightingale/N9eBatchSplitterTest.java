@@ -0,0 +1,103 @@
+package io.micrometer.nightingale;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link N9eBatchSplitter}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eBatchSplitterTest {
+
+    @Test
+    void jsonBatchesAreSplitBetweenPoints() throws IOException {
+        String batch = "[{\"metric\":\"a\",\"tags\":{\"k\":\"},{\"}},"
+                + "{\"metric\":\"b\",\"tags\":{\"k\":\"\\\"{\"}},"
+                + "{\"metric\":\"c\",\"tags\":{}}]";
+
+        byte[][] halves = N9eBatchSplitter.split(batch.getBytes(StandardCharsets.UTF_8), NightingaleCompression.NONE);
+
+        assertThat(new String(halves[0], StandardCharsets.UTF_8))
+                .isEqualTo("[{\"metric\":\"a\",\"tags\":{\"k\":\"},{\"}}]");
+        assertThat(new String(halves[1], StandardCharsets.UTF_8))
+                .isEqualTo("[{\"metric\":\"b\",\"tags\":{\"k\":\"\\\"{\"}},{\"metric\":\"c\",\"tags\":{}}]");
+    }
+
+    @Test
+    void halvesAreCompressedLikeTheBatch() throws IOException {
+        N9eJsonWriter writer = new N9eJsonWriter(64)
+                .compressWith(new N9eCompressor(NightingaleCompression.GZIP, 64));
+        writer.begin();
+        byte[] head = "{\"metric\":\"m\",\"timestamp\":".getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ",\"tags\":{}}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 4; i++) {
+            writer.writePoint(head, i, i, tail);
+        }
+
+        byte[][] halves = N9eBatchSplitter.split(writer.finish(), NightingaleCompression.GZIP);
+
+        assertThat(gunzip(halves[0])).isEqualTo("[{\"metric\":\"m\",\"timestamp\":0,\"value\":0.0,\"tags\":{}},"
+                + "{\"metric\":\"m\",\"timestamp\":1,\"value\":1.0,\"tags\":{}}]");
+        assertThat(gunzip(halves[1])).startsWith("[{\"metric\":\"m\",\"timestamp\":2,").endsWith("]");
+    }
+
+    @Test
+    void remoteWriteBatchesAreSplitBetweenTimeSeries() throws IOException {
+        N9eRemoteWriteEncoder encoder = new N9eRemoteWriteEncoder(64);
+        encoder.begin();
+        byte[][] labels = new byte[3][];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = N9eRemoteWriteEncoder.labels(new N9eSymbolTable(), new ArrayList<>(), "m" + i,
+                    "10.0.0.1", Arrays.asList("k", "v"), null, null);
+            encoder.writePoint(labels[i], 10, i, null);
+        }
+        byte[] body = encoder.toByteArray();
+
+        byte[][] halves = N9eBatchSplitter.split(encoder.finish(), NightingaleCompression.SNAPPY);
+
+        byte[] first = N9eSnappy.uncompress(halves[0]);
+        byte[] second = N9eSnappy.uncompress(halves[1]);
+        assertThat(first.length + second.length).isEqualTo(body.length);
+        assertThat(Arrays.copyOf(body, first.length)).isEqualTo(first);
+        assertThat(Arrays.copyOfRange(body, first.length, body.length)).isEqualTo(second);
+    }
+
+    @Test
+    void aSinglePointIsNotSplit() throws IOException {
+        byte[] batch = "[{\"metric\":\"a\"}]".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(N9eBatchSplitter.split(batch, NightingaleCompression.NONE)).isNull();
+    }
+
+    @Test
+    void truncatedBatchesAreRejected() {
+        byte[] batch = "[{\"metric\":\"a\"},{\"metric\":\"b".getBytes(StandardCharsets.UTF_8);
+
+        assertThatThrownBy(() -> N9eBatchSplitter.split(batch, NightingaleCompression.NONE))
+                .isInstanceOf(IOException.class);
+    }
+
+    private static String gunzip(byte[] payload) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eCardinalityLimiter}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eCardinalityLimiterTest {
+    private final Map<String, String> props = new HashMap<>();
+    private final MockClock clock = new MockClock();
+    private NightingaleMeterRegistry registry;
+
+    @AfterEach
+    void close() {
+        registry.close();
+    }
+
+    @Test
+    void seriesPastTheLimitCollapseIntoOverflow() {
+        registry = registry(3);
+        for (int i = 0; i < 10; i++) {
+            registry.counter("http.requests", "user", Integer.toString(i)).increment();
+        }
+
+        assertThat(registry.find("http.requests").counters()).hasSize(4);
+        assertThat(registry.get("http.requests").tag("user", N9eCardinalityLimiter.OVERFLOW).counter())
+                .isSameAs(registry.counter("http.requests", "user", "42"));
+        clock.add(NightingaleConfig.DEFAULT.step());
+        assertThat(registry.get("n9e.series.rejected").tag("metric", "http.requests").counter().count())
+                .isEqualTo(8);
+    }
+
+    @Test
+    void eachRejectedCombinationIsCountedOnce() {
+        registry = registry(1);
+        registry.counter("http.requests", "user", "a");
+        for (int i = 0; i < 5; i++) {
+            registry.counter("http.requests", "user", "b").increment();
+            registry.counter("http.requests", "user", "c").increment();
+        }
+
+        clock.add(NightingaleConfig.DEFAULT.step());
+        assertThat(registry.get("n9e.series.rejected").tag("metric", "http.requests").counter().count())
+                .isEqualTo(2);
+        assertThat(registry.get("http.requests").tag("user", N9eCardinalityLimiter.OVERFLOW).counter().count())
+                .isEqualTo(10);
+    }
+
+    @Test
+    void admittedSeriesAreFoundAgainWithoutRejection() {
+        registry = registry(2);
+        Counter counter = registry.counter("http.requests", "user", "a");
+        registry.counter("http.requests", "user", "b");
+
+        assertThat(registry.counter("http.requests", "user", "a")).isSameAs(counter);
+        assertThat(registry.find("n9e.series.rejected").counter()).isNull();
+    }
+
+    @Test
+    void removingAMeterFreesItsSlot() {
+        registry = registry(1);
+        Counter a = registry.counter("http.requests", "user", "a");
+        registry.remove(a);
+
+        Counter b = registry.counter("http.requests", "user", "b");
+
+        assertThat(b.getId().getTag("user")).isEqualTo("b");
+    }
+
+    @Test
+    void unlimitedByDefault() {
+        registry = registry(0);
+        for (int i = 0; i < 10; i++) {
+            registry.counter("http.requests", "user", Integer.toString(i));
+        }
+
+        assertThat(registry.find("http.requests").counters()).hasSize(10);
+    }
+
+    private NightingaleMeterRegistry registry(int maxSeriesPerMetric) {
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.maxSeriesPerMetric", Integer.toString(maxSeriesPerMetric));
+        return NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+    }
+}
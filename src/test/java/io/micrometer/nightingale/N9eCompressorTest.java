@@ -0,0 +1,104 @@
+package io.micrometer.nightingale;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MockClock;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eCompressor}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eCompressorTest {
+
+    @Test
+    void gzipRoundTripWhileDrainingSmallBuffer() throws IOException {
+        N9eJsonWriter writer = new N9eJsonWriter(16)
+                .compressWith(new N9eCompressor(NightingaleCompression.GZIP, 16));
+        String expected = writeSample(writer);
+
+        assertThat(writer.size()).isEqualTo(expected.length());
+        assertThat(read(new GZIPInputStream(new ByteArrayInputStream(writer.toPayload())))).isEqualTo(expected);
+    }
+
+    @Test
+    void deflateRoundTripAcrossReuse() throws IOException {
+        N9eJsonWriter writer = new N9eJsonWriter(64)
+                .compressWith(new N9eCompressor(NightingaleCompression.DEFLATE, 64));
+        for (int i = 0; i < 2; i++) {
+            String expected = writeSample(writer);
+            assertThat(read(new InflaterInputStream(new ByteArrayInputStream(writer.toPayload())))).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void publishSendsGzipBodyToN9e() throws IOException {
+        AtomicReference<String> contentEncoding = new AtomicReference<>();
+        AtomicReference<String> body = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1/push", exchange -> {
+            contentEncoding.set(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            body.set(read(new GZIPInputStream(exchange.getRequestBody())));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            Map<String, String> props = new HashMap<>();
+            props.put("nightingale.url", "http://localhost:" + server.getAddress().getPort() + "/v1/push");
+            props.put("nightingale.endpoint", "127.0.0.1");
+            props.put("nightingale.compression", "gzip");
+            props.put("nightingale.enabled", "false");
+            NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, new MockClock());
+            registry.gauge("my.gauge", 42);
+
+            registry.publish();
+
+            assertThat(contentEncoding).hasValue("gzip");
+            assertThat(body.get()).isEqualTo("[{\"metric\":\"my.gauge\",\"timestamp\":0,\"value\":42.0,"
+                    + "\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE"
+                    + NightingaleMeterRegistryTest.hostnameTags(registry) + "}]");
+            registry.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static String writeSample(N9eJsonWriter writer) {
+        writer.reset();
+        StringBuilder expected = new StringBuilder("[");
+        writer.beginArray();
+        byte[] head = "{\"metric\":\"my.metric\",\"timestamp\":".getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ",\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 1000; i++) {
+            writer.writePoint(head, i, i * 0.5, tail);
+            expected.append(i > 0 ? "," : "").append("{\"metric\":\"my.metric\",\"timestamp\":").append(i)
+                    .append(",\"value\":").append(i * 0.5).append(",\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE}");
+        }
+        writer.endArray();
+        return expected.append(']').toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.config.MeterFilterReply;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eMeterRules}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eMeterRulesTest {
+    private final Map<String, String> props = new HashMap<>();
+    private NightingaleMeterRegistry registry;
+
+    @AfterEach
+    void close() {
+        if (registry != null) {
+            registry.close();
+        }
+    }
+
+    @Test
+    void theLongestPrefixDecides() {
+        N9eMeterRules rules = new N9eMeterRules(Arrays.asList("jvm.memory", "http"), Arrays.asList("jvm", "http.client"),
+                Collections.emptyMap(), Collections.emptyList(), Collections.emptyMap());
+
+        assertThat(rules.accept(id("jvm.memory.used"))).isEqualTo(MeterFilterReply.NEUTRAL);
+        assertThat(rules.accept(id("jvm.gc.pause"))).isEqualTo(MeterFilterReply.DENY);
+        assertThat(rules.accept(id("http.server.requests"))).isEqualTo(MeterFilterReply.NEUTRAL);
+        assertThat(rules.accept(id("http.client.requests"))).isEqualTo(MeterFilterReply.DENY);
+        assertThat(rules.accept(id("process.cpu.usage"))).isEqualTo(MeterFilterReply.DENY);
+        assertThat(rules.accept(id("jv"))).isEqualTo(MeterFilterReply.DENY);
+    }
+
+    @Test
+    void everyMeterNotExcludedIsKeptWithoutIncludes() {
+        N9eMeterRules rules = new N9eMeterRules(Collections.emptyList(), Collections.singletonList("jvm"),
+                Collections.emptyMap(), Collections.emptyList(), Collections.emptyMap());
+
+        assertThat(rules.accept(id("jvm.threads.live"))).isEqualTo(MeterFilterReply.DENY);
+        assertThat(rules.accept(id("process.cpu.usage"))).isEqualTo(MeterFilterReply.NEUTRAL);
+    }
+
+    @Test
+    void tagsAreDroppedRenamedAndAdded() {
+        Map<String, String> common = new LinkedHashMap<>();
+        common.put("device", "sda");
+        common.put("uri", "none");
+        N9eMeterRules rules = new N9eMeterRules(Collections.emptyList(), Collections.emptyList(), common,
+                Collections.singletonList("exception"), Collections.singletonMap("method", "verb"));
+
+        Meter.Id id = rules.map(id("http.server.requests", "uri", "/users", "method", "GET", "exception", "None"));
+
+        assertThat(id.getTags()).containsExactlyInAnyOrder(Tag.of("device", "sda"), Tag.of("uri", "/users"),
+                Tag.of("verb", "GET"));
+    }
+
+    @Test
+    void noRulesAreInstalledByDefault() {
+        assertThat(new N9eMeterRules(NightingaleConfig.DEFAULT).isEmpty()).isTrue();
+    }
+
+    @Test
+    void excludedMetersAreNeverRegistered() {
+        props.put("nightingale.exclude", "jvm");
+        props.put("nightingale.tags", "device=sda");
+        registry = NightingaleMeterRegistry.builder(props::get).clock(new MockClock()).build();
+
+        registry.counter("jvm.gc.collections").increment();
+        registry.counter("http.requests", "device", "sdb").increment();
+        registry.counter("disk.reads").increment();
+
+        assertThat(registry.find("jvm.gc.collections").meters()).isEmpty();
+        assertThat(registry.get("http.requests").counter().getId().getTag("device")).isEqualTo("sdb");
+        assertThat(registry.get("disk.reads").counter().getId().getTag("device")).isEqualTo("sda");
+    }
+
+    @Test
+    void rewrittenTagsArePublished() {
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.tags", "device=sda");
+        props.put("nightingale.renameTags", "method=verb");
+        props.put("nightingale.dropTags", "exception");
+        List<String> bodies = new ArrayList<>();
+        MockClock clock = new MockClock();
+        registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    bodies.add(new String(request.getEntity(), StandardCharsets.UTF_8));
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        registry.counter("http.requests", "method", "GET", "exception", "None").increment();
+        clock.add(Duration.ofSeconds(10));
+
+        registry.publish();
+
+        assertThat(bodies).hasSize(1);
+        assertThat(bodies.get(0)).contains("\"metric\":\"http.requests\",\"timestamp\":10,\"value\":1.0,\"step\":10,"
+                + "\"endpoint\":127.0.0.1,\"counterType\":GAUGE,\"tags\":{\"device\":\"sda\",\"verb\":\"GET\"}}");
+    }
+
+    private static Meter.Id id(String name, String... tags) {
+        return new Meter.Id(name, Tags.of(tags), null, null, Meter.Type.COUNTER);
+    }
+}
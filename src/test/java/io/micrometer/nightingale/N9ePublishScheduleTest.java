@@ -0,0 +1,61 @@
+package io.micrometer.nightingale;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9ePublishSchedule}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9ePublishScheduleTest {
+
+    @Test
+    void offsetIsStablePerInstanceAndSpreadOverTheStep() {
+        Set<Long> offsets = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            long offset = new N9ePublishSchedule(10_000, 0, "10.0.0." + i, "pod-" + i).offsetMillis();
+            assertThat(offset).isBetween(0L, 9_999L);
+            assertThat(new N9ePublishSchedule(10_000, 0, "10.0.0." + i, "pod-" + i).offsetMillis()).isEqualTo(offset);
+            offsets.add(offset / 1000);
+        }
+        // every second of the step gets some of the instances
+        assertThat(offsets).hasSize(10);
+    }
+
+    @Test
+    void offsetAndJitterStayWithinTheStep() {
+        for (int i = 0; i < 100; i++) {
+            N9ePublishSchedule schedule = new N9ePublishSchedule(10_000, 3_000, "10.0.0." + i, null);
+            assertThat(schedule.offsetMillis()).isBetween(0L, 6_999L);
+            long delay = schedule.nextDelayMillis(19_999);
+            assertThat(19_999 + delay).isBetween(20_000 + schedule.offsetMillis(), 29_999L);
+        }
+    }
+
+    @Test
+    void publishesOncePerStepAtTheOffset() {
+        N9ePublishSchedule schedule = new N9ePublishSchedule(10_000, 0, "127.0.0.1", "host");
+        long offset = schedule.offsetMillis();
+
+        long first = 25_000 + schedule.nextDelayMillis(25_000);
+        assertThat(first % 10_000).isEqualTo(offset);
+        assertThat(first).isGreaterThan(25_000).isLessThanOrEqualTo(35_000);
+
+        // a wall clock running slightly behind the scheduler still moves on to the next step
+        long second = first - 1 + schedule.nextDelayMillis(first - 1);
+        assertThat(second).isEqualTo(first + 10_000);
+    }
+
+    @Test
+    void timestampIsTheStartOfTheStep() {
+        N9ePublishSchedule schedule = new N9ePublishSchedule(10_000, 0, "127.0.0.1", "host");
+        assertThat(schedule.timestamp(20_000)).isEqualTo(20);
+        assertThat(schedule.timestamp(27_345)).isEqualTo(20);
+        assertThat(schedule.timestamp(29_999)).isEqualTo(20);
+    }
+}
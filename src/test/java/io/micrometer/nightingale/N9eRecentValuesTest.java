@@ -0,0 +1,136 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eRecentValues}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eRecentValuesTest {
+    private final Map<String, String> props = new HashMap<>();
+    private final MockClock clock = new MockClock();
+    private NightingaleMeterRegistry registry;
+
+    @AfterEach
+    void close() {
+        registry.close();
+    }
+
+    @Test
+    void onlyTheLastStepsAreKept() {
+        registry = registry();
+        Counter counter = registry.counter("my.counter");
+        for (int step = 1; step <= 5; step++) {
+            counter.increment(step);
+            clock.add(Duration.ofSeconds(10));
+            registry.publish();
+        }
+
+        String hostname = NightingaleMeterRegistryTest.hostnameTags(registry);
+        assertThat(registry.recentValues(null)).isEqualTo("["
+                + "{\"metric\":\"my.counter\",\"timestamp\":30,\"value\":3.0,\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"my.counter\",\"timestamp\":40,\"value\":4.0,\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"my.counter\",\"timestamp\":50,\"value\":5.0,\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE" + hostname + "}]");
+    }
+
+    @Test
+    void metersAreSelectedByNamePrefix() {
+        registry = registry();
+        registry.counter("http.requests").increment();
+        registry.gauge("jvm.threads", 4);
+        clock.add(Duration.ofSeconds(10));
+        registry.publish();
+
+        assertThat(registry.recentValues("jvm")).contains("jvm.threads").doesNotContain("http.requests");
+    }
+
+    @Test
+    void valuesAreReadAsJsonPointsInAnyFormat() {
+        props.put("nightingale.format", "remote_write");
+        registry = registry();
+        registry.counter("my.counter").increment(2);
+        clock.add(Duration.ofSeconds(10));
+        registry.publish();
+
+        String hostname = NightingaleMeterRegistryTest.hostnameTags(registry);
+        assertThat(registry.recentValues(null)).isEqualTo("["
+                + "{\"metric\":\"my.counter\",\"timestamp\":10,\"value\":2.0,\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE" + hostname + "}]");
+    }
+
+    @Test
+    void metersRemovedDuringACycleAreNotKept() {
+        props.put("nightingale.format", "remote_write");
+        registry = registry();
+        AtomicReference<Gauge> gauge = new AtomicReference<>();
+        // removed as its value is captured, before the values of the cycle are recorded
+        gauge.set(Gauge.builder("my.gauge", () -> {
+            registry.remove(gauge.get());
+            return 1;
+        }).register(registry));
+        clock.add(Duration.ofSeconds(10));
+        registry.publish();
+
+        assertThat(registry.recentValues(null)).isEqualTo("[]");
+    }
+
+    @Test
+    void nothingIsKeptByDefault() {
+        props.put("nightingale.recentSteps", "0");
+        registry = registry();
+        registry.counter("my.counter").increment();
+        clock.add(Duration.ofSeconds(10));
+        registry.publish();
+
+        assertThat(registry.recentValues(null)).isEqualTo("[]");
+    }
+
+    @Test
+    void readsSeeWholeStepsWhilePublishing() throws InterruptedException {
+        registry = registry();
+        Counter counter = registry.counter("my.counter");
+        AtomicBoolean publishing = new AtomicBoolean(true);
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (publishing.get()) {
+                String values = registry.recentValues(null);
+                int points = values.split("\\{\"metric\"", -1).length - 1;
+                if (!values.startsWith("[") || !values.endsWith("]") || points > 3) {
+                    torn.set(values);
+                }
+            }
+        });
+        reader.start();
+        for (int step = 0; step < 200; step++) {
+            counter.increment();
+            clock.add(Duration.ofSeconds(10));
+            registry.publish();
+        }
+        publishing.set(false);
+        reader.join();
+
+        assertThat(torn.get()).isNull();
+    }
+
+    private NightingaleMeterRegistry registry() {
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.putIfAbsent("nightingale.recentSteps", "3");
+        return NightingaleMeterRegistry.builder(props::get).clock(clock)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+    }
+}
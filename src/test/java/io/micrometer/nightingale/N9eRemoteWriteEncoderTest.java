@@ -0,0 +1,247 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eRemoteWriteEncoder}, decoding the protobuf by hand.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eRemoteWriteEncoderTest {
+
+    @Test
+    void labelsAreSortedAndSanitized() {
+        N9eSymbolTable symbols = new N9eSymbolTable();
+        byte[] labels = N9eRemoteWriteEncoder.labels(symbols, new ArrayList<>(), "http.server.requests",
+                "10.0.0.1", Arrays.asList("uri", "/api", "0status", "200"), "le", "0.5");
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("__name__", "http_server_requests");
+        expected.put("_status", "200");
+        expected.put("ident", "10.0.0.1");
+        expected.put("le", "0.5");
+        expected.put("uri", "/api");
+        assertThat(new ArrayList<>(decodeLabels(labels).entrySet())).isEqualTo(new ArrayList<>(expected.entrySet()));
+    }
+
+    @Test
+    void identTagReplacesTheEndpoint() {
+        byte[] labels = N9eRemoteWriteEncoder.labels(new N9eSymbolTable(), new ArrayList<>(), "up",
+                "10.0.0.1", Arrays.asList("ident", "my-host"), null, null);
+        assertThat(decodeLabels(labels)).containsEntry("ident", "my-host").hasSize(2);
+    }
+
+    @Test
+    void labelStringsAreInternedUntilReleased() {
+        N9eSymbolTable symbols = new N9eSymbolTable();
+        List<String> a = new ArrayList<>();
+        List<String> b = new ArrayList<>();
+        N9eRemoteWriteEncoder.labels(symbols, a, "a", "10.0.0.1", Arrays.asList("k", "v"), null, null);
+        byte[] k = symbols.interned("k");
+        N9eRemoteWriteEncoder.labels(symbols, b, "b", "10.0.0.1", Arrays.asList("k", "v"), null, null);
+        // __name__, a, b, ident, 10.0.0.1, k and v
+        assertThat(symbols.size()).isEqualTo(7);
+        assertThat(symbols.interned("k")).isSameAs(k);
+
+        a.forEach(symbols::release);
+        assertThat(symbols.interned("a")).isNull();
+        assertThat(symbols.interned("k")).isSameAs(k);
+        b.forEach(symbols::release);
+        assertThat(symbols.size()).isZero();
+    }
+
+    @Test
+    void pointsAreTimeSeriesOfOneSample() throws IOException {
+        byte[] labels = N9eRemoteWriteEncoder.labels(new N9eSymbolTable(), new ArrayList<>(), "up",
+                "10.0.0.1", Collections.emptyList(), null, null);
+        N9eRemoteWriteEncoder encoder = new N9eRemoteWriteEncoder(16);
+        for (int i = 0; i < 2; i++) {
+            encoder.begin();
+            encoder.writePoint(labels, 1_600_000_000L, 1.5, new byte[0]);
+            encoder.writePoint(labels, 1_600_000_010L, -2, new byte[0]);
+            assertThat(encoder.points()).isEqualTo(2);
+
+            List<Series> series = decode(Snappy.uncompress(encoder.finish()));
+            assertThat(series).hasSize(2);
+            assertThat(series.get(0).labels).containsEntry("__name__", "up").containsEntry("ident", "10.0.0.1");
+            assertThat(series.get(0).value).isEqualTo(1.5);
+            assertThat(series.get(0).timestamp).isEqualTo(1_600_000_000_000L);
+            assertThat(series.get(1).value).isEqualTo(-2);
+            assertThat(series.get(1).timestamp).isEqualTo(1_600_000_010_000L);
+        }
+    }
+
+    @Test
+    void publishSendsSnappyCompressedProtobuf() throws IOException {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "10.0.0.1");
+        props.put("nightingale.format", "remote_write");
+        props.put("nightingale.enabled", "false");
+        AtomicReference<HttpSender.Request> request = new AtomicReference<>();
+        MockClock clock = new MockClock();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(r -> {
+                    request.set(r);
+                    return new HttpSender.Response(204, "");
+                })
+                .build();
+        registry.counter("my.counter", "k", "v").increment(3);
+        Timer timer = Timer.builder("my.timer").serviceLevelObjectives(Duration.ofMillis(100)).register(registry);
+        timer.record(50, TimeUnit.MILLISECONDS);
+        clock.add(Duration.ofSeconds(10));
+
+        registry.publish();
+
+        assertThat(request.get().getRequestHeaders())
+                .containsEntry("Content-Type", "application/x-protobuf")
+                .containsEntry("Content-Encoding", "snappy")
+                .containsEntry("X-Prometheus-Remote-Write-Version", "0.1.0");
+        Map<String, Series> series = new HashMap<>();
+        for (Series s : decode(Snappy.uncompress(request.get().getEntity()))) {
+            series.put(s.labels.get("__name__") + s.labels.getOrDefault("le", ""), s);
+        }
+        assertThat(series.get("my_counter").value).isEqualTo(3);
+        assertThat(series.get("my_counter").labels).containsEntry("k", "v").containsEntry("ident", "10.0.0.1");
+        assertThat(series.get("my_counter").timestamp).isEqualTo(10_000);
+        assertThat(series.get("my_timer_count").value).isEqualTo(1);
+        assertThat(series.get("my_timer_histogram100").labels).containsEntry("le", "100").hasSize(3);
+        registry.close();
+    }
+
+    @Test
+    void nidIsALabelOfEverySeries() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "10.0.0.1");
+        props.put("nightingale.nid", "42");
+        props.put("nightingale.format", "remote_write");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, new MockClock());
+        Counter counter = registry.counter("my.counter", "k", "v");
+
+        assertThat(decodeLabels(registry.seriesCache().get(counter).head(0)))
+                .containsEntry("nid", "42").containsEntry("ident", "10.0.0.1").containsEntry("k", "v");
+        registry.close();
+    }
+
+    private static Map<String, String> decodeLabels(byte[] labels) {
+        Map<String, String> decoded = new LinkedHashMap<>();
+        Reader reader = new Reader(labels, 0, labels.length);
+        while (reader.more()) {
+            assertThat(reader.tag()).isEqualTo(1 << 3 | 2);
+            Reader label = reader.message();
+            assertThat(label.tag()).isEqualTo(1 << 3 | 2);
+            String name = label.string();
+            assertThat(label.tag()).isEqualTo(2 << 3 | 2);
+            decoded.put(name, label.string());
+        }
+        return decoded;
+    }
+
+    private static List<Series> decode(byte[] writeRequest) {
+        List<Series> decoded = new ArrayList<>();
+        Reader reader = new Reader(writeRequest, 0, writeRequest.length);
+        while (reader.more()) {
+            assertThat(reader.tag()).isEqualTo(1 << 3 | 2);
+            Reader timeSeries = reader.message();
+            Series series = new Series();
+            while (timeSeries.more()) {
+                int tag = timeSeries.tag();
+                Reader field = timeSeries.message();
+                if (tag == (1 << 3 | 2)) {
+                    assertThat(field.tag()).isEqualTo(1 << 3 | 2);
+                    String name = field.string();
+                    assertThat(field.tag()).isEqualTo(2 << 3 | 2);
+                    series.labels.put(name, field.string());
+                } else {
+                    assertThat(tag).isEqualTo(2 << 3 | 2);
+                    assertThat(field.tag()).isEqualTo(1 << 3 | 1);
+                    series.value = Double.longBitsToDouble(field.fixed64());
+                    assertThat(field.tag()).isEqualTo(2 << 3);
+                    series.timestamp = field.varint();
+                }
+            }
+            decoded.add(series);
+        }
+        return decoded;
+    }
+
+    private static final class Series {
+        private final Map<String, String> labels = new LinkedHashMap<>();
+        private double value;
+        private long timestamp;
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int position;
+
+        Reader(byte[] buf, int position, int end) {
+            this.buf = buf;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean more() {
+            return position < end;
+        }
+
+        int tag() {
+            return (int) varint();
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        long fixed64() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (buf[position++] & 0xffL) << (i << 3);
+            }
+            return value;
+        }
+
+        Reader message() {
+            int length = (int) varint();
+            Reader message = new Reader(buf, position, position + length);
+            position += length;
+            return message;
+        }
+
+        String string() {
+            int length = (int) varint();
+            String s = new String(buf, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+    }
+}
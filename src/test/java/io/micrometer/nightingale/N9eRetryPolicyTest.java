@@ -0,0 +1,160 @@
+package io.micrometer.nightingale;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eRetryPolicy} and {@link N9eCircuitBreaker}, against a local n9e that injects faults.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eRetryPolicyTest {
+    private final Map<String, String> props = new HashMap<>();
+    private final NightingaleConfig config = props::get;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger faults = new AtomicInteger();
+    private HttpServer server;
+
+    @BeforeEach
+    void startFakeN9e() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1/push", exchange -> {
+            requests.incrementAndGet();
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the batch
+            }
+            if (faults.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                delivered.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+
+        props.put("nightingale.url", "http://localhost:" + server.getAddress().getPort() + "/v1/push");
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.retryInitialBackoff", "10ms");
+        props.put("nightingale.retryMaxBackoff", "40ms");
+    }
+
+    @AfterEach
+    void stopFakeN9e() {
+        server.stop(0);
+    }
+
+    @Test
+    void backoffGrowsExponentiallyWithJitterUpToTheBound() {
+        N9eRetryPolicy policy = new N9eRetryPolicy(3, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.backoffMillis(0)).isBetween(50L, 100L);
+            assertThat(policy.backoffMillis(2)).isBetween(200L, 400L);
+            assertThat(policy.backoffMillis(10)).isBetween(500L, 1000L);
+            assertThat(policy.backoffMillis(100)).isBetween(500L, 1000L);
+        }
+        assertThat(policy.canRetry(2)).isTrue();
+        assertThat(policy.canRetry(3)).isFalse();
+    }
+
+    @Test
+    void retriesTransientFailures() {
+        faults.set(2);
+        publishOnce(urlConnectionSender());
+
+        assertThat(requests).hasValue(3);
+        assertThat(delivered).hasValue(1);
+    }
+
+    @Test
+    void givesUpAfterMaxRetries() {
+        props.put("nightingale.maxRetries", "1");
+        faults.set(Integer.MAX_VALUE);
+        publishOnce(urlConnectionSender());
+
+        assertThat(requests).hasValue(2);
+        assertThat(delivered).hasValue(0);
+    }
+
+    @Test
+    void circuitBreakerStopsSendingForTheRestOfTheCycle() {
+        props.put("nightingale.batchSize", "1");
+        props.put("nightingale.maxRetries", "1");
+        props.put("nightingale.circuitBreakerThreshold", "3");
+        faults.set(Integer.MAX_VALUE);
+        NightingaleMeterRegistry registry = registry(urlConnectionSender());
+        for (int i = 0; i < 5; i++) {
+            registry.counter("my.counter." + i);
+        }
+
+        registry.publish();
+        // the first batch fails twice, the second once and opens the breaker, the other three are skipped
+        assertThat(requests).hasValue(3);
+
+        faults.set(0);
+        registry.publish();
+        assertThat(delivered).hasValue(5);
+        registry.close();
+    }
+
+    @Test
+    void retriesAsynchronouslyWithoutBlockingTheSender() {
+        faults.set(2);
+        try (NightingaleNioHttpSender sender = new NightingaleNioHttpSender()) {
+            publishOnce(sender);
+        }
+
+        assertThat(requests).hasValue(3);
+        assertThat(delivered).hasValue(1);
+    }
+
+    @Test
+    void rejectedBatchesAreNotRetried() {
+        NightingaleMeterRegistry registry = registry(request -> {
+            requests.incrementAndGet();
+            return new HttpSender.Response(400, "bad batch");
+        });
+        registry.counter("my.counter");
+
+        registry.publish();
+
+        assertThat(requests).hasValue(1);
+        registry.close();
+    }
+
+    private void publishOnce(HttpSender sender) {
+        NightingaleMeterRegistry registry = registry(sender);
+        registry.counter("my.counter");
+        registry.publish();
+        registry.close();
+    }
+
+    private NightingaleMeterRegistry registry(HttpSender sender) {
+        return NightingaleMeterRegistry.builder(config)
+                .clock(new MockClock())
+                .httpClient(sender)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static HttpSender urlConnectionSender() {
+        return new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofSeconds(5));
+    }
+}
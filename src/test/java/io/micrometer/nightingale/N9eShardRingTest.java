@@ -0,0 +1,144 @@
+package io.micrometer.nightingale;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MockClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eShardRing}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eShardRingTest {
+    private static final Pattern METRIC = Pattern.compile("\"metric\":\"([^\"]+)\"");
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void seriesAreSpreadEvenlyAndOnlyMoveWhenTheirShardIsRemoved() {
+        N9eShardRing three = new N9eShardRing(Arrays.asList("http://a/v1/push", "http://b/v1/push", "http://c/v1/push"));
+        N9eShardRing two = new N9eShardRing(Arrays.asList("http://a/v1/push", "http://b/v1/push"));
+        Random random = new Random(42);
+        int[] counts = new int[3];
+        for (int i = 0; i < 30_000; i++) {
+            long hash = N9eShardRing.mix(random.nextLong());
+            int shard = three.route(hash, s -> true);
+            counts[shard]++;
+            if (shard < 2) {
+                assertThat(two.route(hash, s -> true)).isEqualTo(shard);
+            }
+        }
+        for (int count : counts) {
+            assertThat(count).isBetween(7_000, 13_000);
+        }
+    }
+
+    @Test
+    void unhealthyShardFailsOverToTheNextOnTheRing() {
+        N9eShardRing ring = new N9eShardRing(Arrays.asList("http://a/v1/push", "http://b/v1/push", "http://c/v1/push"));
+        Random random = new Random(7);
+        for (int i = 0; i < 1_000; i++) {
+            long hash = random.nextLong();
+            int owner = ring.route(hash, s -> true);
+            int failover = ring.route(hash, s -> s != owner);
+            assertThat(failover).isNotEqualTo(owner);
+            assertThat(ring.route(hash, s -> false)).isEqualTo(owner);
+        }
+    }
+
+    @Test
+    void publishShardsSeriesAcrossTransfersAndFailsOver() throws IOException {
+        Set<String> a = ConcurrentHashMap.newKeySet();
+        Set<String> b = ConcurrentHashMap.newKeySet();
+        AtomicInteger bStatus = new AtomicInteger(200);
+        String uriA = start(a, new AtomicInteger(200));
+        String uriB = start(b, bStatus);
+
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.url", uriA + ", " + uriB);
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.maxRetries", "0");
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(new MockClock())
+                .build();
+        for (int i = 0; i < 100; i++) {
+            registry.counter("my.counter." + i);
+        }
+
+        registry.publish();
+        Set<String> seriesOfA = new HashSet<>(a);
+        Set<String> seriesOfB = new HashSet<>(b);
+        assertThat(seriesOfA.size() + seriesOfB.size()).isEqualTo(100);
+        assertThat(seriesOfA).doesNotContainAnyElementsOf(seriesOfB).isNotEmpty();
+        assertThat(seriesOfB).isNotEmpty();
+
+        // the same series keep going to the same transfer
+        a.clear();
+        b.clear();
+        registry.publish();
+        assertThat(a).isEqualTo(seriesOfA);
+        assertThat(b).isEqualTo(seriesOfB);
+
+        // once b fails, its series go to a until b recovers
+        bStatus.set(503);
+        registry.publish();
+        a.clear();
+        b.clear();
+        registry.publish();
+        assertThat(a).hasSize(100);
+        assertThat(b).isEmpty();
+        registry.close();
+    }
+
+    /**
+     * @return The URI of a fake transfer that records the names of the series it receives.
+     */
+    private String start(Set<String> received, AtomicInteger status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1/push", exchange -> {
+            String body = read(exchange.getRequestBody());
+            if (status.get() == 200) {
+                Matcher metric = METRIC.matcher(body);
+                while (metric.find()) {
+                    received.add(metric.group(1));
+                }
+            }
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        servers.add(server);
+        return "http://localhost:" + server.getAddress().getPort() + "/v1/push";
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,92 @@
+package io.micrometer.nightingale;
+
+import org.junit.jupiter.api.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link N9eSnappy}, against the reference implementation.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eSnappyTest {
+    private final N9eSnappy snappy = new N9eSnappy(16);
+
+    @Test
+    void emptyAndShortInputsAreLiterals() throws IOException {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip("a".getBytes(StandardCharsets.UTF_8));
+        assertRoundTrip("sixteen bytes!!!".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void repetitiveInputIsCompressed() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            json.append("{\"metric\":\"jvm.memory.used\",\"timestamp\":1600000000,\"value\":").append(i)
+                    .append(",\"step\":10,\"endpoint\":10.0.0.1,\"counterType\":GAUGE},");
+        }
+        byte[] input = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = assertRoundTrip(input);
+        assertThat(compressed.length).isLessThan(input.length / 5);
+    }
+
+    @Test
+    void longRunsAndSeveralBlocks() throws IOException {
+        byte[] input = new byte[300_000];
+        Random random = new Random(42);
+        for (int i = 0; i < input.length; i++) {
+            // runs longer than the longest copy, random stretches that do not compress and everything in between
+            input[i] = (byte) ((i / 1000) % 3 == 0 ? 'x' : (i / 1000) % 3 == 1 ? random.nextInt() : random.nextInt(4));
+        }
+        assertRoundTrip(input);
+    }
+
+    @Test
+    void buffersAreReused() throws IOException {
+        byte[] large = new byte[100_000];
+        Arrays.fill(large, (byte) 'y');
+        assertRoundTrip(large);
+        assertRoundTrip("short again".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void onlyTheGivenLengthIsCompressed() throws IOException {
+        byte[] input = "compress only this part, not the rest".getBytes(StandardCharsets.UTF_8);
+        assertThat(Snappy.uncompress(snappy.compress(input, 8))).isEqualTo(Arrays.copyOf(input, 8));
+    }
+
+    @Test
+    void blocksOfTheReferenceImplementationAreDecompressed() throws IOException {
+        byte[] input = new byte[200_000];
+        Random random = new Random(7);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) ((i / 500) % 2 == 0 ? 'z' : random.nextInt(8));
+        }
+        assertThat(N9eSnappy.uncompress(Snappy.compress(input))).isEqualTo(input);
+        assertThat(N9eSnappy.uncompress(Snappy.compress(new byte[0]))).isEmpty();
+    }
+
+    @Test
+    void truncatedBlocksAreRejected() throws IOException {
+        byte[] compressed = Snappy.compress("truncated, truncated, truncated".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> N9eSnappy.uncompress(Arrays.copyOf(compressed, compressed.length - 3)))
+                .isInstanceOf(IOException.class);
+    }
+
+    private byte[] assertRoundTrip(byte[] input) throws IOException {
+        byte[] compressed = snappy.compress(input, input.length);
+        assertThat(Snappy.isValidCompressedBuffer(compressed)).isTrue();
+        assertThat(Snappy.uncompress(compressed)).isEqualTo(input);
+        assertThat(N9eSnappy.uncompress(compressed)).isEqualTo(input);
+        return compressed;
+    }
+}
@@ -0,0 +1,97 @@
+package io.micrometer.nightingale;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eSnapshot}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eSnapshotTest {
+    private final N9eSnapshot snapshot = new N9eSnapshot();
+
+    @Test
+    void slotsAreNotCapturedUntilSet() {
+        snapshot.begin(42);
+        snapshot.add(null, null, 4);
+        snapshot.add(null, null, 2);
+        snapshot.set(1, 1, 3, 1.5);
+
+        assertThat(snapshot.timestamp()).isEqualTo(42);
+        assertThat(snapshot.offset(1)).isEqualTo(4);
+        assertThat(snapshot.slots(1)).isEqualTo(2);
+        for (int slot = 0; slot < 6; slot++) {
+            assertThat(snapshot.index(slot)).isEqualTo(slot == 5 ? 3 : -1);
+        }
+        assertThat(snapshot.value(5)).isEqualTo(1.5);
+    }
+
+    @Test
+    void columnsAreReusedByTheNextCycle() {
+        snapshot.begin(1);
+        for (int i = 0; i < 100; i++) {
+            snapshot.add(null, null, 4);
+            snapshot.set(i, 0, i);
+        }
+        snapshot.end();
+
+        snapshot.begin(2);
+        snapshot.add(null, null, 4);
+        assertThat(snapshot.size()).isEqualTo(1);
+        assertThat(snapshot.index(0)).isEqualTo(-1);
+    }
+
+    @Test
+    void largeSnapshotsAreCapturedInParallelOnTheGivenPool() {
+        ExecutorService pool = Executors.newFixedThreadPool(3, r -> new Thread(r, "capture"));
+        try {
+            N9eSnapshot snapshot = new N9eSnapshot(pool, 4);
+            Set<String> threads = ConcurrentHashMap.newKeySet();
+            int meters = fill(snapshot);
+            snapshot.capture((s, meter) -> {
+                threads.add(Thread.currentThread().getName());
+                s.set(meter, 1, meter);
+            });
+
+            assertCaptured(snapshot, meters);
+            assertThat(threads).allMatch(t -> t.equals("capture") || t.equals(Thread.currentThread().getName()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void rangesRejectedByThePoolAreCapturedOnTheCallingThread() {
+        N9eSnapshot snapshot = new N9eSnapshot(task -> {
+            throw new RejectedExecutionException();
+        }, 4);
+        int meters = fill(snapshot);
+        snapshot.capture((s, meter) -> s.set(meter, 1, meter));
+
+        assertCaptured(snapshot, meters);
+    }
+
+    private static int fill(N9eSnapshot snapshot) {
+        int meters = N9eSnapshot.PARALLEL_THRESHOLD * 4 + 1;
+        snapshot.begin(1);
+        for (int i = 0; i < meters; i++) {
+            snapshot.add(null, null, 2);
+        }
+        return meters;
+    }
+
+    private static void assertCaptured(N9eSnapshot snapshot, int meters) {
+        for (int i = 0; i < meters; i++) {
+            assertThat(snapshot.index(snapshot.offset(i) + 1)).isEqualTo(1);
+            assertThat(snapshot.value(snapshot.offset(i) + 1)).isEqualTo(i);
+        }
+    }
+}
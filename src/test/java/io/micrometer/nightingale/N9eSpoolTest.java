@@ -0,0 +1,179 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eSpool}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eSpoolTest {
+    private static final int SEGMENT_BYTES = 1024;
+
+    private final Path directory;
+
+    N9eSpoolTest() throws IOException {
+        directory = Files.createTempDirectory("n9e-spool");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void replaysOldestFirstAcrossSegments() throws IOException {
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 8 * SEGMENT_BYTES)) {
+            for (int i = 0; i < 60; i++) {
+                assertThat(spool.append(batch(i), NightingaleCompression.NONE)).isTrue();
+            }
+            assertThat(segmentFiles()).isGreaterThan(1);
+
+            assertThat(drain(spool)).containsExactly(expected(0, 60));
+            assertThat(spool.pendingBytes()).isZero();
+            assertThat(segmentFiles()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void survivesRestart() throws IOException {
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 8 * SEGMENT_BYTES)) {
+            for (int i = 0; i < 10; i++) {
+                spool.append(batch(i), i % 2 == 0 ? NightingaleCompression.NONE : NightingaleCompression.GZIP);
+            }
+            for (int i = 0; i < 3; i++) {
+                spool.commit(spool.peek());
+            }
+        }
+
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 8 * SEGMENT_BYTES)) {
+            N9eSpool.Record first = spool.peek();
+            assertThat(first.compression()).isEqualTo(NightingaleCompression.GZIP);
+            spool.append(batch(10), NightingaleCompression.NONE);
+            assertThat(drain(spool)).containsExactly(expected(3, 11));
+        }
+    }
+
+    @Test
+    void dropsOldestSegmentWhenFull() throws IOException {
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 2 * SEGMENT_BYTES)) {
+            for (int i = 0; i < 100; i++) {
+                spool.append(batch(i), NightingaleCompression.NONE);
+            }
+            assertThat(segmentFiles()).isEqualTo(2);
+            List<String> replayed = drain(spool);
+            assertThat(replayed).isNotEmpty().endsWith(name(99));
+            assertThat(replayed).doesNotContain(name(0));
+        }
+    }
+
+    @Test
+    void everyCompressionHasItsOwnCode() {
+        for (NightingaleCompression compression : NightingaleCompression.values()) {
+            assertThat(N9eSpool.compression(N9eSpool.code(compression))).isEqualTo(compression);
+        }
+        assertThat(N9eSpool.compression((byte) NightingaleCompression.values().length)).isNull();
+    }
+
+    @Test
+    void recordsWithAnUnknownCompressionAreCorrupt() throws IOException {
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 8 * SEGMENT_BYTES)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(batch(i), NightingaleCompression.NONE);
+            }
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().get();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        // the compression of the second record
+        bytes[N9eSpool.HEADER_BYTES + N9eSpool.RECORD_HEADER_BYTES + batch(0).length + 8] = 42;
+        Files.write(segment, bytes);
+
+        try (N9eSpool spool = new N9eSpool(directory, SEGMENT_BYTES, 8 * SEGMENT_BYTES)) {
+            assertThat(drain(spool)).containsExactly(name(0));
+        }
+    }
+
+    @Test
+    void failedBatchesAreSpooledAndReplayedOnALaterCycle() throws IOException {
+        List<String> delivered = new ArrayList<>();
+        boolean[] down = {true};
+        HttpSender flakySender = request -> {
+            if (down[0]) {
+                throw new ConnectException("connection refused");
+            }
+            delivered.add(new String(request.getEntity(), StandardCharsets.UTF_8));
+            return new HttpSender.Response(200, "");
+        };
+
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.spoolDirectory", directory.toString());
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(new MockClock())
+                .httpClient(flakySender)
+                .build();
+        registry.gauge("my.gauge", 1);
+
+        registry.publish();
+        assertThat(delivered).isEmpty();
+
+        down[0] = false;
+        registry.publish();
+        assertThat(delivered).hasSize(2).allMatch(body -> body.contains("\"metric\":\"my.gauge\""));
+        registry.close();
+    }
+
+    private static List<String> drain(N9eSpool spool) {
+        List<String> replayed = new ArrayList<>();
+        for (N9eSpool.Record record; (record = spool.peek()) != null; ) {
+            replayed.add(new String(record.payload(), StandardCharsets.UTF_8));
+            spool.commit(record);
+        }
+        return replayed;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] batch(int i) {
+        return name(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String name(int i) {
+        return String.format("[{\"metric\":\"batch.%03d\"}]", i);
+    }
+
+    private static String[] expected(int from, int to) {
+        String[] names = new String[to - from];
+        for (int i = from; i < to; i++) {
+            names[i - from] = name(i);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,65 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tags;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link N9eStepGroups}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class N9eStepGroupsTest {
+    private final Map<String, String> props = new HashMap<>();
+    private final NightingaleConfig config = props::get;
+
+    @Test
+    void metersAreInTheDefaultGroupWithoutOverrides() {
+        N9eStepGroups groups = new N9eStepGroups(config);
+
+        assertThat(groups.size()).isEqualTo(1);
+        assertThat(groups.group(id("http.server.requests"))).isEqualTo(N9eStepGroups.DEFAULT_GROUP);
+        assertThat(groups.step(N9eStepGroups.DEFAULT_GROUP)).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void overridesWithTheSameStepShareAGroup() {
+        props.put("nightingale.stepOverrides", "http.server=1s, jvm=60s, hikaricp=60s, process=10s");
+        N9eStepGroups groups = new N9eStepGroups(config);
+
+        assertThat(groups.size()).isEqualTo(3);
+        assertThat(groups.step(groups.group(id("http.server.requests")))).isEqualTo(Duration.ofSeconds(1));
+        assertThat(groups.group(id("jvm.memory.used"))).isEqualTo(groups.group(id("hikaricp.connections")));
+        assertThat(groups.group(id("process.uptime"))).isEqualTo(N9eStepGroups.DEFAULT_GROUP);
+    }
+
+    @Test
+    void longestPrefixWins() {
+        props.put("nightingale.stepOverrides", "http=60s,http.server.requests=1s");
+        N9eStepGroups groups = new N9eStepGroups(config);
+
+        assertThat(groups.step(groups.group(id("http.server.requests")))).isEqualTo(Duration.ofSeconds(1));
+        assertThat(groups.step(groups.group(id("http.client.requests")))).isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    void tagsWinOverPrefixes() {
+        props.put("nightingale.stepOverrides", "http.server.requests=1s,resolution:low=60s");
+        N9eStepGroups groups = new N9eStepGroups(config);
+
+        assertThat(groups.step(groups.group(id("http.server.requests", "resolution", "low"))))
+                .isEqualTo(Duration.ofSeconds(60));
+        assertThat(groups.step(groups.group(id("http.server.requests", "resolution", "high"))))
+                .isEqualTo(Duration.ofSeconds(1));
+    }
+
+    private static Meter.Id id(String name, String... tags) {
+        return new Meter.Id(name, Tags.of(tags), null, null, Meter.Type.COUNTER);
+    }
+}
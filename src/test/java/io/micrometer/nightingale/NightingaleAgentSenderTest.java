@@ -0,0 +1,162 @@
+package io.micrometer.nightingale;
+
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link NightingaleAgentSender}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class NightingaleAgentSenderTest {
+
+    @Test
+    void publishPacksPointsIntoDatagrams() throws IOException {
+        try (DatagramChannel agent = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Map<String, String> props = new HashMap<>();
+            props.put("nightingale.endpoint", "127.0.0.1");
+            props.put("nightingale.enabled", "false");
+            props.put("nightingale.transport", "udp");
+            props.put("nightingale.agentAddress", "127.0.0.1:" + ((InetSocketAddress) agent.getLocalAddress()).getPort());
+            props.put("nightingale.maxDatagramBytes", "8192");
+            props.put("nightingale.batchMinBytes", "1024");
+            MockClock clock = new MockClock();
+            NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get).clock(clock).build();
+            for (int i = 0; i < 500; i++) {
+                registry.counter("my.counter." + i).increment();
+            }
+            clock.add(Duration.ofSeconds(10));
+
+            registry.publish();
+            registry.close();
+
+            agent.configureBlocking(false);
+            ByteBuffer datagram = ByteBuffer.allocate(65536);
+            int datagrams = 0;
+            int points = 0;
+            while (agent.receive(datagram) != null) {
+                datagram.flip();
+                String batch = StandardCharsets.UTF_8.decode(datagram).toString();
+                assertThat(batch).startsWith("[").endsWith("]");
+                assertThat(batch.length()).isLessThanOrEqualTo(8192);
+                points += batch.split("\\{\"metric\"", -1).length - 1;
+                datagrams++;
+                datagram.clear();
+            }
+            assertThat(points).isEqualTo(500);
+            assertThat(datagrams).isGreaterThan(1).isLessThan(500);
+        }
+    }
+
+    @Test
+    void batchesLargerThanADatagramAreRejected() throws Throwable {
+        try (NightingaleAgentSender sender = new NightingaleAgentSender(NightingaleTransport.UDP, "127.0.0.1:5810", 1024)) {
+            HttpSender.Response response = sender.send(request(new byte[1025]));
+            assertThat(response.code()).isEqualTo(413);
+        }
+    }
+
+    @Test
+    void framesAreLengthPrefixedOverTcp() throws Throwable {
+        try (ServerSocketChannel agent = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             NightingaleAgentSender sender = new NightingaleAgentSender(NightingaleTransport.TCP,
+                     "127.0.0.1:" + ((InetSocketAddress) agent.getLocalAddress()).getPort(), 65507)) {
+            assertThat(sender.send(request("[1]".getBytes(StandardCharsets.UTF_8))).code()).isEqualTo(202);
+            assertThat(sender.send(request(new byte[100_000])).code()).isEqualTo(202);
+
+            try (SocketChannel connection = agent.accept()) {
+                DataInputStream in = new DataInputStream(Channels.newInputStream(connection));
+                assertThat(readFrame(in)).isEqualTo("[1]".getBytes(StandardCharsets.UTF_8));
+                assertThat(readFrame(in)).hasSize(100_000);
+            }
+        }
+    }
+
+    @Test
+    void failedWritesThrowAndReconnect() throws Throwable {
+        int port;
+        try (ServerSocketChannel agent = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            port = ((InetSocketAddress) agent.getLocalAddress()).getPort();
+        }
+        try (NightingaleAgentSender sender = new NightingaleAgentSender(NightingaleTransport.TCP, "127.0.0.1:" + port, 65507)) {
+            assertThatThrownBy(() -> sender.send(request(new byte[1]))).isInstanceOf(IOException.class);
+
+            try (ServerSocketChannel agent = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", port))) {
+                assertThat(sender.send(request(new byte[1])).code()).isEqualTo(202);
+                try (SocketChannel connection = agent.accept()) {
+                    assertThat(readFrame(new DataInputStream(Channels.newInputStream(connection)))).hasSize(1);
+                }
+            }
+        }
+    }
+
+    @Test
+    void framesAreWrittenToAUnixDomainSocket() throws Throwable {
+        assumeTrue(NightingaleAgentSender.unixDomainSocketsSupported());
+        Path directory = Files.createTempDirectory("n9e-agent");
+        Path socket = directory.resolve("n9e.sock");
+        String path = socket.toString();
+        SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", String.class).invoke(null, path);
+        Method open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        try (ServerSocketChannel agent = (ServerSocketChannel) open.invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+             NightingaleAgentSender sender = new NightingaleAgentSender(NightingaleTransport.UNIX, path, 65507)) {
+            agent.bind(address);
+            assertThat(sender.send(request("[2]".getBytes(StandardCharsets.UTF_8))).code()).isEqualTo(202);
+            try (SocketChannel connection = agent.accept()) {
+                assertThat(readFrame(new DataInputStream(Channels.newInputStream(connection))))
+                        .isEqualTo("[2]".getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void addressesMustBeHostAndPort() {
+        assertThat(NightingaleAgentSender.isHostAndPort("127.0.0.1:5810")).isTrue();
+        assertThat(NightingaleAgentSender.isHostAndPort("[::1]:5810")).isTrue();
+        assertThat(NightingaleAgentSender.isHostAndPort("localhost")).isFalse();
+        assertThat(NightingaleAgentSender.isHostAndPort(":5810")).isFalse();
+        assertThat(NightingaleAgentSender.isHostAndPort("localhost:0")).isFalse();
+        assertThatThrownBy(() -> new NightingaleAgentSender(NightingaleTransport.TCP, "localhost", 65507))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static HttpSender.Request request(byte[] entity) throws IOException {
+        return new HttpSender.Request(new URL("http://localhost:5810/v1/push"), entity, HttpSender.Method.POST,
+                new HashMap<>());
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return frame;
+    }
+}
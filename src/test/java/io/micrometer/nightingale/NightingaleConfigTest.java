@@ -20,6 +20,36 @@ class NightingaleConfigTest {
                 .containsExactly("must be a valid URL");
     }
 
+    @Test
+    void stepOverridesMustBeWholeSecondsAtLeast() {
+        props.put("nightingale.stepOverrides", "http.server.requests=500ms");
+
+        assertThat(config.validate().failures().stream().map(Validated.Invalid::getMessage))
+                .containsExactly("steps must be at least 1 second");
+    }
+
+    @Test
+    void stepOverridesMustHaveAStep() {
+        props.put("nightingale.stepOverrides", "http.server.requests");
+
+        assertThat(config.validate().isValid()).isFalse();
+    }
+
+    @Test
+    void globalTagsMustBeKeysAndValues() {
+        props.put("nightingale.tags", "device=sda,region");
+
+        assertThat(config.validate().isValid()).isFalse();
+    }
+
+    @Test
+    void captureThreadsMustBeAtLeastOne() {
+        props.put("nightingale.captureThreads", "0");
+
+        assertThat(config.validate().failures().stream().map(Validated.Invalid::getMessage))
+                .containsExactly("must be at least 1");
+    }
+
     @Test
     void valid() {
         assertThat(config.validate().isValid()).isTrue();
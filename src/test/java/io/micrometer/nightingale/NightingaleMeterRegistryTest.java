@@ -1,10 +1,23 @@
 package io.micrometer.nightingale;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Measurement;
@@ -13,6 +26,9 @@ import io.micrometer.core.instrument.MockClock;
 import io.micrometer.core.instrument.Statistic;
 import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.core.ipc.http.HttpSender;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -27,30 +43,31 @@ class NightingaleMeterRegistryTest {
     private final NightingaleConfig config = key -> null;
     private final MockClock clock = new MockClock();
     private final NightingaleMeterRegistry meterRegistry = new NightingaleMeterRegistry(config, clock);
+    private final N9eJsonWriter writer = new N9eJsonWriter(128);
 
     @Test
     void writeGauge() {
         meterRegistry.gauge("my.gauge", 1d);
         Gauge gauge = meterRegistry.find("my.gauge").gauge();
-        assertThat(meterRegistry.writeGauge(gauge)).hasSize(1);
+        assertThat(meterRegistry.writeGauge(writer, gauge)).isEqualTo(1);
     }
 
     @Test
     void writeGaugeShouldDropNanValue() {
         meterRegistry.gauge("my.gauge", Double.NaN);
         Gauge gauge = meterRegistry.find("my.gauge").gauge();
-        assertThat(meterRegistry.writeGauge(gauge)).isEmpty();
+        assertThat(meterRegistry.writeGauge(writer, gauge)).isZero();
     }
 
     @Test
     void writeGaugeShouldDropInfiniteValues() {
         meterRegistry.gauge("my.gauge", Double.POSITIVE_INFINITY);
         Gauge gauge = meterRegistry.find("my.gauge").gauge();
-        assertThat(meterRegistry.writeGauge(gauge)).isEmpty();
+        assertThat(meterRegistry.writeGauge(writer, gauge)).isZero();
 
         meterRegistry.gauge("my.gauge", Double.NEGATIVE_INFINITY);
         gauge = meterRegistry.find("my.gauge").gauge();
-        assertThat(meterRegistry.writeGauge(gauge)).isEmpty();
+        assertThat(meterRegistry.writeGauge(writer, gauge)).isZero();
     }
 
     @Test
@@ -58,7 +75,7 @@ class NightingaleMeterRegistryTest {
         AtomicReference<Double> obj = new AtomicReference<>(1d);
         meterRegistry.more().timeGauge("my.timeGauge", Tags.empty(), obj, TimeUnit.SECONDS, AtomicReference::get);
         TimeGauge timeGauge = meterRegistry.find("my.timeGauge").timeGauge();
-        assertThat(meterRegistry.writeTimeGauge(timeGauge)).hasSize(1);
+        assertThat(meterRegistry.writeTimeGauge(writer, timeGauge)).isEqualTo(1);
     }
 
     @Test
@@ -66,7 +83,7 @@ class NightingaleMeterRegistryTest {
         AtomicReference<Double> obj = new AtomicReference<>(Double.NaN);
         meterRegistry.more().timeGauge("my.timeGauge", Tags.empty(), obj, TimeUnit.SECONDS, AtomicReference::get);
         TimeGauge timeGauge = meterRegistry.find("my.timeGauge").timeGauge();
-        assertThat(meterRegistry.writeTimeGauge(timeGauge)).isEmpty();
+        assertThat(meterRegistry.writeTimeGauge(writer, timeGauge)).isZero();
     }
 
     @Test
@@ -74,30 +91,30 @@ class NightingaleMeterRegistryTest {
         AtomicReference<Double> obj = new AtomicReference<>(Double.POSITIVE_INFINITY);
         meterRegistry.more().timeGauge("my.timeGauge", Tags.empty(), obj, TimeUnit.SECONDS, AtomicReference::get);
         TimeGauge timeGauge = meterRegistry.find("my.timeGauge").timeGauge();
-        assertThat(meterRegistry.writeTimeGauge(timeGauge)).isEmpty();
+        assertThat(meterRegistry.writeTimeGauge(writer, timeGauge)).isZero();
 
         obj = new AtomicReference<>(Double.NEGATIVE_INFINITY);
         meterRegistry.more().timeGauge("my.timeGauge", Tags.empty(), obj, TimeUnit.SECONDS, AtomicReference::get);
         timeGauge = meterRegistry.find("my.timeGauge").timeGauge();
-        assertThat(meterRegistry.writeTimeGauge(timeGauge)).isEmpty();
+        assertThat(meterRegistry.writeTimeGauge(writer, timeGauge)).isZero();
     }
 
     @Test
     void writeFunctionCounter() {
         FunctionCounter counter = FunctionCounter.builder("myCounter", 1d, Number::doubleValue).register(meterRegistry);
         clock.add(config.step());
-        assertThat(meterRegistry.writeFunctionCounter(counter)).hasSize(1);
+        assertThat(meterRegistry.writeFunctionCounter(writer, counter)).isEqualTo(1);
     }
 
     @Test
     void writeFunctionCounterShouldDropInfiniteValues() {
         FunctionCounter counter = FunctionCounter.builder("myCounter", Double.POSITIVE_INFINITY, Number::doubleValue).register(meterRegistry);
         clock.add(config.step());
-        assertThat(meterRegistry.writeFunctionCounter(counter)).isEmpty();
+        assertThat(meterRegistry.writeFunctionCounter(writer, counter)).isZero();
 
         counter = FunctionCounter.builder("myCounter", Double.NEGATIVE_INFINITY, Number::doubleValue).register(meterRegistry);
         clock.add(config.step());
-        assertThat(meterRegistry.writeFunctionCounter(counter)).isEmpty();
+        assertThat(meterRegistry.writeFunctionCounter(writer, counter)).isZero();
     }
 
     @Test
@@ -107,7 +124,7 @@ class NightingaleMeterRegistryTest {
         Measurement measurement3 = new Measurement(() -> Double.NaN, Statistic.VALUE);
         List<Measurement> measurements = Arrays.asList(measurement1, measurement2, measurement3);
         Meter meter = Meter.builder("my.meter", Meter.Type.GAUGE, measurements).register(this.meterRegistry);
-        assertThat(meterRegistry.writeCustomMetric(meter)).isEmpty();
+        assertThat(meterRegistry.writeCustomMetric(writer, meter)).isZero();
     }
 
     @Test
@@ -119,7 +136,649 @@ class NightingaleMeterRegistryTest {
         Measurement measurement5 = new Measurement(() -> 2d, Statistic.VALUE);
         List<Measurement> measurements = Arrays.asList(measurement1, measurement2, measurement3, measurement4, measurement5);
         Meter meter = Meter.builder("my.meter", Meter.Type.GAUGE, measurements).register(this.meterRegistry);
-        assertThat(meterRegistry.writeCustomMetric(meter)).hasSize(2);
+        assertThat(meterRegistry.writeCustomMetric(writer, meter)).isEqualTo(2);
     }
 
-}
\ No newline at end of file
+    @Test
+    void writeProducesLegacyJsonFormat() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+
+        registry.counter("my.counter", "k", "v").increment(20);
+        Timer timer = registry.timer("my.timer");
+        timer.record(1500, TimeUnit.MILLISECONDS);
+        Measurement measurement = new Measurement(() -> 0.25, Statistic.VALUE);
+        Meter.builder("my.meter", Meter.Type.GAUGE, Arrays.asList(measurement)).tag("k", "\u00e9\"").register(registry);
+        clock.add(config.step());
+
+        writer.beginArray();
+        registry.write(writer, registry.find("my.counter").counter());
+        registry.write(writer, timer);
+        registry.write(writer, registry.find("my.meter").meter());
+        writer.endArray();
+
+        String common = ",\"timestamp\":10,\"value\":%s,\"step\":10,\"endpoint\":127.0.0.1";
+        String hostname = hostnameTags(registry);
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).isEqualTo("["
+                + "{\"metric\":\"my.counter\"" + String.format(common, "20.0") + ",\"counterType\":GAUGE,\"tags\":{\"k\":\"v\"}},"
+                + "{\"metric\":\"my.timer.count\"" + String.format(common, "1.0") + ",\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"my.timer.max\"" + String.format(common, "1500.0") + ",\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"my.timer.avg\"" + String.format(common, "1500.0") + ",\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"my.timer.sum\"" + String.format(common, "1500.0") + ",\"counterType\":GAUGE" + hostname + "},"
+                + "{\"metric\":\"value\"" + String.format(common, "0.25") + ",\"tags\":{\"k\":\"\u00e9\\\\\\\"\"}}"
+                + "]");
+        assertThat(writer.points()).isEqualTo(6);
+        registry.close();
+    }
+
+    @Test
+    void writeDoubleMatchesStringBuilder() {
+        double[] values = {0, -0.0, 1, -1, 0.1, 1e7, 9999999, 1e-4, 123456789.125, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.MAX_VALUE, Double.MIN_VALUE, Long.MAX_VALUE};
+        StringBuilder expected = new StringBuilder();
+        for (double value : values) {
+            writer.writeDouble(value).writeByte(' ');
+            expected.append(value).append(' ');
+        }
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(expected.toString());
+    }
+
+    @Test
+    void seriesFragmentsAreEvictedWhenMeterIsRemoved() {
+        int before = meterRegistry.seriesCache().size();
+        Timer timer = meterRegistry.timer("my.timer");
+        assertThat(meterRegistry.seriesCache().size()).isEqualTo(before + 1);
+
+        meterRegistry.remove(timer);
+        assertThat(meterRegistry.seriesCache().size()).isEqualTo(before);
+    }
+
+    @Test
+    void removedMetersAreNotAddedBackToTheSeriesCache() {
+        Timer timer = meterRegistry.timer("my.timer");
+        meterRegistry.remove(timer);
+        int before = meterRegistry.seriesCache().size();
+
+        // as a publish cycle that captured the meter before it was removed does
+        assertThat(meterRegistry.seriesCache().get(timer).series()).isEqualTo(4);
+        assertThat(meterRegistry.seriesCache().size()).isEqualTo(before);
+        assertThat(meterRegistry.seriesCache().contains(timer)).isFalse();
+    }
+
+    @Test
+    void remoteWriteLabelsAreReusedAcrossCyclesUntilTheirMetersAreRemoved() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "10.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.format", "remote_write");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        N9eSymbolTable symbols = registry.seriesCache().symbols();
+        Counter first = registry.counter("first", "region", "east");
+        registry.publish();
+        byte[] region = symbols.interned("region");
+        assertThat(region).isNotNull();
+
+        // created in a later cycle, with the same tag
+        Counter second = registry.counter("second", "region", "east");
+        registry.publish();
+        assertThat(symbols.interned("region")).isSameAs(region);
+
+        registry.remove(first);
+        assertThat(symbols.interned("first")).isNull();
+        assertThat(symbols.interned("region")).isSameAs(region);
+        registry.remove(second);
+        assertThat(symbols.size()).isZero();
+        registry.close();
+    }
+
+    @Test
+    void nidIsWrittenAfterTheEndpoint() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "10.0.0.1");
+        props.put("nightingale.nid", "42");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        Gauge gauge = Gauge.builder("my.gauge", () -> 1).register(registry);
+        Timer timer = Timer.builder("my.timer").publishPercentiles(0.5).register(registry);
+
+        registry.writeGauge(writer, gauge);
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8))
+                .contains("\"endpoint\":10.0.0.1,\"nid\":42,");
+        assertThat(new String(registry.seriesCache().get(timer).tail(registry.seriesCache().get(timer).series() - 1),
+                StandardCharsets.UTF_8)).contains("\"endpoint\":10.0.0.1,\"nid\":42,");
+        registry.close();
+    }
+
+    @Test
+    void endpointIsResolvedOnceAndRefreshedInTheBackground() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "10.0.0.1");
+        props.put("nightingale.identityRefreshInterval", "0s");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        Gauge gauge = Gauge.builder("my.gauge", () -> 1).register(registry);
+        // the first resolution runs in the background
+        assertThat(registry.identity().endpoint()).isEqualTo("10.0.0.1");
+
+        props.put("nightingale.endpoint", "10.0.0.2");
+        registry.writeGauge(writer, gauge);
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).contains("\"endpoint\":10.0.0.1");
+
+        registry.identity().refresh();
+        writer.reset();
+        registry.writeGauge(writer, gauge);
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).contains("\"endpoint\":10.0.0.2");
+        registry.close();
+    }
+
+    @Test
+    void creatingTheRegistryDoesNotWaitForTheIdentity() throws InterruptedException {
+        CountDownLatch dns = new CountDownLatch(1);
+        NightingaleConfig config = key -> {
+            if ("nightingale.endpoint".equals(key)) {
+                try {
+                    dns.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "10.0.0.1";
+            }
+            return "nightingale.enabled".equals(key) ? "false" : null;
+        };
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(config).clock(clock)
+                .httpClient(request -> new HttpSender.Response(200, "")).build();
+        Gauge gauge = Gauge.builder("my.gauge", () -> 1).register(registry);
+        assertThat(registry.identity().isResolved()).isFalse();
+
+        dns.countDown();
+        registry.writeGauge(writer, gauge);
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).contains("\"endpoint\":10.0.0.1");
+        registry.close();
+    }
+
+    @Test
+    void phasedPublishAlignsTimestampsToTheStep() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.phasedPublish", "true");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        registry.counter("my.counter").increment();
+        clock.add(Duration.ofMillis(13_500));
+
+        writer.beginArray();
+        registry.write(writer, registry.find("my.counter").counter());
+        writer.endArray();
+
+        assertThat(new String(writer.toByteArray(), StandardCharsets.UTF_8)).contains("\"timestamp\":10,");
+        assertThat(registry.schedule().offsetMillis()).isBetween(0L, 9_999L);
+        registry.close();
+    }
+
+    @Test
+    void phasedPublishPublishesOncePerStep() throws InterruptedException {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.phasedPublish", "true");
+        props.put("nightingale.step", "200ms");
+        CountDownLatch published = new CountDownLatch(3);
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .httpClient(request -> {
+                    published.countDown();
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        registry.counter("my.counter");
+
+        assertThat(published.await(5, TimeUnit.SECONDS)).isTrue();
+        registry.stop();
+        registry.close();
+    }
+
+    @Test
+    void overriddenStepsAreAccumulatedAndStampedOnTheirOwnStep() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.stepOverrides", "critical=1s");
+        List<String> bodies = new ArrayList<>();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    bodies.add(new String(request.getEntity(), StandardCharsets.UTF_8));
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        registry.counter("critical.requests").increment();
+        registry.counter("other.requests").increment();
+        clock.add(Duration.ofSeconds(1));
+
+        registry.publish();
+
+        assertThat(bodies).hasSize(2);
+        assertThat(bodies.get(0)).contains("\"metric\":\"other.requests\",\"timestamp\":1,\"value\":0.0,\"step\":10,")
+                .doesNotContain("critical");
+        assertThat(bodies.get(1)).contains("\"metric\":\"critical.requests\",\"timestamp\":1,\"value\":1.0,\"step\":1,")
+                .doesNotContain("other");
+        registry.close();
+    }
+
+    @Test
+    void largeRegistriesAreSnapshotInParallelBeforeEncoding() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        AtomicInteger points = new AtomicInteger();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    String body = new String(request.getEntity(), StandardCharsets.UTF_8);
+                    points.addAndGet(body.split("\\{\"metric\"", -1).length - 1);
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        int meters = N9eSnapshot.PARALLEL_THRESHOLD * 3;
+        for (int i = 0; i < meters; i++) {
+            registry.counter("my.counter", "i", Integer.toString(i)).increment();
+        }
+        clock.add(Duration.ofSeconds(10));
+
+        registry.publish();
+
+        assertThat(points.get()).isEqualTo(meters);
+        registry.close();
+    }
+
+    @Test
+    void closeFlushesTheLastCompleteAndThePartialStep() {
+        List<String> bodies = new ArrayList<>();
+        NightingaleMeterRegistry registry = flushingRegistry(bodies);
+        registry.counter("my.counter").increment(2);
+        // the step is over, but its cycle has not run yet
+        clock.add(Duration.ofSeconds(10));
+
+        registry.close();
+
+        // the batches of the flush are sent in parallel, and each step has a timestamp of its own, as n9e keeps
+        // only one of the points of a series with the same timestamp
+        assertThat(bodies).hasSize(2)
+                .anySatisfy(body -> assertThat(body).contains("\"timestamp\":10,").contains("\"value\":2.0"))
+                .anySatisfy(body -> assertThat(body).contains("\"timestamp\":20,").contains("\"value\":0.0"));
+    }
+
+    @Test
+    void closeDoesNotPublishAStepTwice() {
+        List<String> bodies = new ArrayList<>();
+        NightingaleMeterRegistry registry = flushingRegistry(bodies);
+        registry.counter("my.counter").increment();
+        clock.add(Duration.ofSeconds(10));
+        registry.publish();
+        registry.counter("my.counter").increment(4);
+
+        registry.close();
+
+        assertThat(bodies).hasSize(2);
+        assertThat(bodies.get(0)).contains("\"value\":1.0");
+        assertThat(bodies.get(1)).contains("\"value\":4.0");
+    }
+
+    private NightingaleMeterRegistry flushingRegistry(List<String> bodies) {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.step", "10s");
+        return NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    synchronized (bodies) {
+                        bodies.add(new String(request.getEntity(), StandardCharsets.UTF_8));
+                    }
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+    }
+
+    @Test
+    void overlappingCyclesAreSkipped() throws InterruptedException {
+        assertOverlappingCycles("skip", 1, 4);
+    }
+
+    @Test
+    void overlappingCyclesAreMergedIntoOne() throws InterruptedException {
+        assertOverlappingCycles("merge", 2, 3);
+    }
+
+    @Test
+    void overlappingCyclesAreQueuedUpToTheLimit() throws InterruptedException {
+        assertOverlappingCycles("queue", 3, 2);
+    }
+
+    @Test
+    void cyclesOnABoundedExecutorDoNotWaitForSendsQueuedBehindThem() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.url", "http://n9e-1:5810/v1/push,http://n9e-2:5810/v1/push");
+        props.put("nightingale.maxInFlightRequests", "2");
+        Set<String> hosts = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                    .clock(clock)
+                    .executor(executor)
+                    .httpClient(request -> {
+                        hosts.add(request.getUrl().getHost());
+                        return new HttpSender.Response(200, "");
+                    })
+                    .build();
+            for (int i = 0; i < 20; i++) {
+                registry.counter("my.counter", "i", Integer.toString(i)).increment();
+            }
+            clock.add(Duration.ofSeconds(10));
+
+            registry.triggerCycle(0);
+            // runs once the cycle has released the only thread
+            executor.submit(() -> {
+            }).get(5, TimeUnit.SECONDS);
+
+            assertThat(hosts).containsExactlyInAnyOrder("n9e-1", "n9e-2");
+            registry.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertOverlappingCycles(String policy, int expectedCycles, int expectedSkipped) throws InterruptedException {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.selfMetrics", "true");
+        props.put("nightingale.overlapPolicy", policy);
+        props.put("nightingale.maxQueuedCycles", "2");
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger cycles = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .executor(executor)
+                .httpClient(request -> {
+                    cycles.incrementAndGet();
+                    sending.countDown();
+                    release.await();
+                    return new HttpSender.Response(200, "");
+                })
+                .build();
+        registry.counter("my.counter");
+
+        registry.triggerCycle(0);
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 4; i++) {
+            registry.triggerCycle(0);
+        }
+        release.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(cycles.get()).isEqualTo(expectedCycles);
+        clock.add(Duration.ofSeconds(10));
+        assertThat(registry.get("n9e.publish.skipped").counter().count()).isEqualTo(expectedSkipped);
+        registry.close();
+    }
+
+    @Test
+    void selfMetricsDescribeThePublishCycle() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.selfMetrics", "true");
+        props.put("nightingale.maxRetries", "0");
+        props.put("nightingale.step", "1s");
+        AtomicReference<String> body = new AtomicReference<>();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    body.set(new String(request.getEntity(), StandardCharsets.UTF_8));
+                    clock.add(Duration.ofMillis(500));
+                    return new HttpSender.Response(503, "unavailable");
+                })
+                .build();
+        registry.counter("my.counter");
+
+        registry.publish();
+        clock.add(Duration.ofSeconds(1));
+
+        assertThat(registry.get("n9e.publish.duration").timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(500);
+        assertThat(registry.get("n9e.publish.send.duration").timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(500);
+        assertThat(registry.get("n9e.publish.encode.duration").timer().totalTime(TimeUnit.MILLISECONDS)).isZero();
+        assertThat(registry.get("n9e.publish.overruns").counter().count()).isZero();
+        assertThat(registry.get("n9e.requests.failed").tag("status", "503").counter().count()).isEqualTo(1);
+        assertThat(registry.get("n9e.points.written").counter().count())
+                .isEqualTo(body.get().split("\\{\"metric\"", -1).length - 1);
+        assertThat(registry.get("n9e.batch.size").summary().totalAmount()).isEqualTo(body.get().length());
+        registry.close();
+    }
+
+    @Test
+    void cyclesLongerThanTheStepAreCountedAsOverruns() {
+        SimpleMeterRegistry simple = new SimpleMeterRegistry();
+        N9ePublishMetrics metrics = new N9ePublishMetrics(simple);
+
+        metrics.cycle(TimeUnit.SECONDS.toNanos(9), TimeUnit.SECONDS.toNanos(6), TimeUnit.SECONDS.toNanos(10));
+        metrics.cycle(TimeUnit.SECONDS.toNanos(12), TimeUnit.SECONDS.toNanos(11), TimeUnit.SECONDS.toNanos(10));
+
+        assertThat(simple.get("n9e.publish.overruns").counter().count()).isEqualTo(1);
+        assertThat(simple.get("n9e.publish.encode.duration").timer().totalTime(TimeUnit.SECONDS)).isEqualTo(4);
+    }
+
+    @Test
+    void selfMetricsCountSkippedNonFiniteValues() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.selfMetrics", "true");
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> new HttpSender.Response(200, ""))
+                .build();
+        Gauge gauge = Gauge.builder("my.gauge", () -> Double.NaN).register(registry);
+
+        assertThat(registry.writeGauge(writer, gauge)).isZero();
+        clock.add(config.step());
+
+        assertThat(registry.get("n9e.points.skipped").tag("reason", "non_finite").counter().count()).isEqualTo(1);
+        registry.close();
+    }
+
+    @Test
+    void unchangedPointsAreSuppressedUntilTheHeartbeat() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.suppressUnchanged", "true");
+        props.put("nightingale.heartbeatSteps", "3");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        AtomicReference<Double> value = new AtomicReference<>(1.0);
+        Gauge gauge = Gauge.builder("my.gauge", value, AtomicReference::get).register(registry);
+        Timer timer = registry.timer("my.timer");
+
+        assertThat(registry.writeGauge(writer, gauge)).isEqualTo(1);
+        assertThat(registry.writeTimer(writer, timer)).isEqualTo(4);
+        assertThat(registry.writeGauge(writer, gauge)).isZero();
+        assertThat(registry.writeTimer(writer, timer)).isZero();
+
+        value.set(2.0);
+        timer.record(5, TimeUnit.MILLISECONDS);
+        clock.add(config.step());
+        assertThat(registry.writeGauge(writer, gauge)).isEqualTo(1);
+        assertThat(registry.writeTimer(writer, timer)).isEqualTo(4);
+
+        assertThat(registry.writeGauge(writer, gauge)).isZero();
+        assertThat(registry.writeGauge(writer, gauge)).isZero();
+        assertThat(registry.writeGauge(writer, gauge)).isEqualTo(1);
+        registry.close();
+    }
+
+    @Test
+    void stepMetersAreOnlySuppressedWhileIdle() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.suppressUnchanged", "true");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        Counter counter = registry.counter("my.counter");
+
+        for (int step = 0; step < 3; step++) {
+            counter.increment();
+            clock.add(config.step());
+            assertThat(registry.writeCounter(writer, counter)).isEqualTo(1);
+        }
+        clock.add(config.step());
+        assertThat(registry.writeCounter(writer, counter)).isEqualTo(1);
+        clock.add(config.step());
+        assertThat(registry.writeCounter(writer, counter)).isZero();
+        registry.close();
+    }
+
+    @Test
+    void measurementsOfACustomMeterSharingAStatisticAreSuppressedApart() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.suppressUnchanged", "true");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        AtomicReference<Double> changing = new AtomicReference<>(0.0);
+        Meter meter = Meter.builder("my.meter", Meter.Type.GAUGE, Arrays.asList(
+                new Measurement(() -> 1.0, Statistic.VALUE),
+                new Measurement(changing::get, Statistic.VALUE))).register(registry);
+
+        assertThat(registry.writeCustomMetric(writer, meter)).isEqualTo(2);
+        for (int step = 1; step < 3; step++) {
+            changing.set((double) step);
+            assertThat(registry.writeCustomMetric(writer, meter)).isEqualTo(1);
+        }
+        assertThat(registry.writeCustomMetric(writer, meter)).isZero();
+        registry.close();
+    }
+
+    @Test
+    void unchangedPointsAreShippedAgainAfterAFailedCycle() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.suppressUnchanged", "true");
+        AtomicInteger status = new AtomicInteger(400);
+        List<String> bodies = new ArrayList<>();
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(clock)
+                .httpClient(request -> {
+                    bodies.add(new String(request.getEntity(), StandardCharsets.UTF_8));
+                    return new HttpSender.Response(status.get(), "");
+                })
+                .build();
+        registry.gauge("my.gauge", 1);
+
+        registry.publish();
+        status.set(200);
+        registry.publish();
+        registry.publish();
+
+        assertThat(bodies).hasSize(2);
+        assertThat(bodies.get(1)).contains("\"metric\":\"my.gauge\"");
+        registry.close();
+    }
+
+    @Test
+    void suppressionStateIsEvictedWithTheMeter() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        props.put("nightingale.suppressUnchanged", "true");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        Gauge gauge = Gauge.builder("my.gauge", () -> 1).register(registry);
+        registry.writeGauge(writer, gauge);
+        assertThat(registry.writeGauge(writer, gauge)).isZero();
+
+        registry.remove(gauge);
+        gauge = Gauge.builder("my.gauge", () -> 1).register(registry);
+
+        assertThat(registry.writeGauge(writer, gauge)).isEqualTo(1);
+        registry.close();
+    }
+
+    @Test
+    void writeTimerExportsPercentilesAndHistogramBuckets() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        Timer timer = Timer.builder("my.timer")
+                .publishPercentiles(0.5, 0.99)
+                .serviceLevelObjectives(Duration.ofMillis(100), Duration.ofSeconds(1))
+                .register(registry);
+        timer.record(50, TimeUnit.MILLISECONDS);
+
+        assertThat(registry.writeTimer(writer, timer)).isEqualTo(8);
+        String json = new String(writer.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(json)
+                .contains("{\"metric\":\"my.timer.percentile\",\"timestamp\":0,\"value\":")
+                .contains(",\"step\":10,\"endpoint\":127.0.0.1,\"counterType\":GAUGE,\"tags\":{\"phi\":\"0.99\"}}")
+                .contains("{\"metric\":\"my.timer.histogram\",\"timestamp\":0,\"value\":1.0,\"step\":10,"
+                        + "\"endpoint\":127.0.0.1,\"counterType\":GAUGE,\"tags\":{\"le\":\"100\"}}")
+                .contains("\"tags\":{\"le\":\"1000\"}}");
+        // no separate gauges for the percentiles and buckets
+        assertThat(registry.getMeters()).hasSize(1);
+        registry.close();
+    }
+
+    @Test
+    void percentilesAndBucketsAreTaggedLikeTheirMeter() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.endpoint", "127.0.0.1");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = new NightingaleMeterRegistry(props::get, clock);
+        for (String uri : Arrays.asList("/a", "/b")) {
+            Timer.builder("my.timer").tag("uri", uri)
+                    .publishPercentiles(0.99)
+                    .serviceLevelObjectives(Duration.ofMillis(100))
+                    .register(registry)
+                    .record(50, TimeUnit.MILLISECONDS);
+        }
+
+        writer.beginArray();
+        registry.getMeters().forEach(meter -> registry.write(writer, meter));
+        writer.endArray();
+        String json = new String(writer.toByteArray(), StandardCharsets.UTF_8);
+        for (String uri : Arrays.asList("/a", "/b")) {
+            assertThat(json)
+                    .contains("\"tags\":{\"uri\":\"" + uri + "\",\"phi\":\"0.99\"}}")
+                    .contains("\"tags\":{\"uri\":\"" + uri + "\",\"le\":\"100\"}}");
+        }
+        registry.close();
+    }
+
+    @Test
+    void writeSummaryWithoutDistributionOnlyWritesStatistics() {
+        DistributionSummary plain = meterRegistry.summary("my.summary");
+        DistributionSummary withHistogram = DistributionSummary.builder("my.histogram")
+                .serviceLevelObjectives(1, 10, 100)
+                .register(meterRegistry);
+
+        assertThat(meterRegistry.writeSummary(writer, plain)).isEqualTo(4);
+        assertThat(meterRegistry.writeSummary(writer, withHistogram)).isEqualTo(7);
+    }
+
+    @Test
+    void percentileHistogramIsExported() {
+        Timer timer = Timer.builder("my.timer").publishPercentileHistogram().register(meterRegistry);
+
+        assertThat(meterRegistry.writeTimer(writer, timer)).isGreaterThan(4 + 50);
+    }
+
+    /**
+     * The tags n9e gets for a meter without tags, the hostname of the registry.
+     */
+    static String hostnameTags(NightingaleMeterRegistry registry) {
+        String hostname = registry.identity().hostname();
+        return ",\"tags\":{" + (hostname == null ? "" : "\"hostname\":\"" + hostname + "\"") + "}";
+    }
+}
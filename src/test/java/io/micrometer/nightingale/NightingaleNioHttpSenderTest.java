@@ -0,0 +1,163 @@
+package io.micrometer.nightingale;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link NightingaleNioHttpSender}.
+ *
+ * @author ning.chai@foxmail.com
+ */
+class NightingaleNioHttpSenderTest {
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger received = new AtomicInteger();
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private final NightingaleNioHttpSender sender = new NightingaleNioHttpSender(Duration.ofSeconds(1), Duration.ofMillis(300));
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/v1/push", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = drain(exchange.getRequestBody());
+            received.incrementAndGet();
+            byte[] response = ("got " + body.length).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.createContext("/chunked", exchange -> {
+            drain(exchange.getRequestBody());
+            exchange.sendResponseHeaders(500, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("first,".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                out.write("second".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            drain(exchange.getRequestBody());
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ignore) {
+                /* ignore */
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        sender.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void postsAndReusesTheConnection() throws Throwable {
+        for (int i = 0; i < 3; i++) {
+            HttpSender.Response response = sender.post(url("/v1/push")).withJsonContent("[1,2,3]").send();
+            assertThat(response.code()).isEqualTo(200);
+            assertThat(response.body()).isEqualTo("got 7");
+        }
+        assertThat(clientPorts).hasSize(1);
+    }
+
+    @Test
+    void readsChunkedErrorBody() throws Throwable {
+        HttpSender.Response response = sender.post(url("/chunked")).withJsonContent("[]").send();
+        assertThat(response.code()).isEqualTo(500);
+        assertThat(response.body()).isEqualTo("first,second");
+    }
+
+    @Test
+    void slowServerTimesOutWithoutStallingOtherRequests() throws Exception {
+        CompletableFuture<HttpSender.Response> slow = sender.sendAsync(request("/slow"));
+        long start = System.nanoTime();
+        HttpSender.Response fast = sender.sendAsync(request("/v1/push")).get(5, TimeUnit.SECONDS);
+        assertThat(fast.code()).isEqualTo(200);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(300));
+
+        assertThatThrownBy(() -> slow.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(SocketTimeoutException.class);
+    }
+
+    @Test
+    void callbacksDoNotRunOnTheSelectorThread() throws Exception {
+        String thread = sender.sendAsync(request("/v1/push"))
+                .thenApply(response -> Thread.currentThread().getName())
+                .get(5, TimeUnit.SECONDS);
+
+        assertThat(thread).doesNotStartWith("n9e-http-io");
+    }
+
+    @Test
+    void registryPublishesAsynchronously() {
+        Map<String, String> props = new HashMap<>();
+        props.put("nightingale.url", url("/v1/push"));
+        props.put("nightingale.batchSize", "1");
+        props.put("nightingale.enabled", "false");
+        NightingaleMeterRegistry registry = NightingaleMeterRegistry.builder(props::get)
+                .clock(new MockClock())
+                .httpClient(sender)
+                .build();
+        for (int i = 0; i < 5; i++) {
+            registry.counter("my.counter." + i);
+        }
+
+        registry.publish();
+
+        assertThat(received).hasValue(5);
+        registry.close();
+    }
+
+    private HttpSender.Request request(String path) throws Exception {
+        return new HttpSender.Request(new URL(url(path)), new byte[]{'[', ']'}, HttpSender.Method.POST,
+                new HashMap<>());
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}